@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+import pl.derwinski.labeler.data.LabelFile;
+
+/**
+ * Command line entry point rendering label files without a window system.
+ * Files are rendered at the same time on a fixed number of threads, each file
+ * on one of them, and reported in the order given once done.
+ * <p>
+ * Usage: {@code BatchRenderer [-o directory] [-j threads] [-f png|pdf|svg|tif]
+ * file|glob...}
+ *
+ * @author Dominik Derwiński
+ */
+public final class BatchRenderer {
+
+  public static final int EXIT_OK = 0;
+  public static final int EXIT_FAILED = 1;
+  public static final int EXIT_USAGE = 2;
+
+  private static final String USAGE = "Usage: BatchRenderer [-o directory] [-j threads] [-f png|pdf|svg|tif] file|glob...";
+
+  private File outputDirectory = new File(".");
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private String format = "png";
+  private final ArrayList<String> inputs = new ArrayList<>();
+
+  public static void main(String[] args) {
+    System.setProperty("java.awt.headless", "true");
+    System.exit(run(args, System.out, System.err));
+  }
+
+  /**
+   * Renders the files given by the arguments, writing progress to out and
+   * problems to err, and returns the exit code.
+   */
+  public static int run(String[] args, PrintStream out, PrintStream err) {
+    BatchRenderer batch = new BatchRenderer();
+    try {
+      batch.parse(args);
+    } catch (IllegalArgumentException ex) {
+      err.println(ex.getMessage());
+      err.println(USAGE);
+      return EXIT_USAGE;
+    }
+    if ((batch.outputDirectory.isDirectory() == false) && (batch.outputDirectory.mkdirs() == false)) {
+      err.println(String.format("Cannot create output directory %s.", batch.outputDirectory));
+      return EXIT_USAGE;
+    }
+    return batch.render(out, err);
+  }
+
+  private void parse(String[] args) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if ((arg.startsWith("-") == false) || (arg.length() == 1)) {
+        inputs.add(arg);
+        continue;
+      }
+      if (arg.equals("--")) {
+        for (i++; i < args.length; i++) {
+          inputs.add(args[i]);
+        }
+        break;
+      }
+      if ((arg.equals("-o") || arg.equals("-j") || arg.equals("-f")) == false) {
+        throw new IllegalArgumentException(String.format("Unknown option %s.", arg));
+      }
+      if (i + 1 >= args.length) {
+        throw new IllegalArgumentException(String.format("Missing value of %s.", arg));
+      }
+      String value = args[++i];
+      if (arg.equals("-o")) {
+        outputDirectory = new File(value);
+      } else if (arg.equals("-j")) {
+        try {
+          threads = Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+          throw new IllegalArgumentException(String.format("Invalid thread count %s.", value));
+        }
+        if (threads <= 0) {
+          throw new IllegalArgumentException("Thread count must be greater than 0.");
+        }
+      } else {
+        format = value.toLowerCase();
+        if ((format.equals("png") || format.equals("pdf") || format.equals("svg") || format.equals("tif")) == false) {
+          throw new IllegalArgumentException(String.format("Unknown format %s.", value));
+        }
+      }
+    }
+    if (inputs.isEmpty()) {
+      throw new IllegalArgumentException("No label files given.");
+    }
+  }
+
+  private int render(PrintStream out, PrintStream err) {
+    long start = System.nanoTime();
+    ArrayList<String> names = new ArrayList<>();
+    ArrayList<File> files = new ArrayList<>();
+    ArrayList<String> problems = new ArrayList<>();
+    HashMap<File, File> outputs = new HashMap<>();
+    for (String input : inputs) {
+      try {
+        for (File file : expand(input)) {
+          File output = new File(outputDirectory, String.format("%s.%s", Util.getFileName(file), format)).getAbsoluteFile();
+          File previous = outputs.putIfAbsent(output, file);
+          names.add(file.getPath());
+          files.add(file);
+          problems.add(previous != null ? String.format("Output %s is already written for %s.", output.getName(), previous.getPath()) : null);
+        }
+      } catch (IOException | IllegalArgumentException ex) {
+        names.add(input);
+        files.add(null);
+        problems.add(Util.getMessage(ex));
+      }
+    }
+
+    StampCache stamps = new StampCache(StampCache.DEFAULT_MAX_BYTES);
+    ArrayList<RenderJob<long[]>> results = new ArrayList<>();
+    try (RenderScheduler scheduler = new RenderScheduler(Math.min(threads, Math.max(1, files.size())))) {
+      for (int i = 0; i < files.size(); i++) {
+        if (problems.get(i) != null) {
+          results.add(null);
+          continue;
+        }
+        File file = files.get(i);
+        File output = new File(outputDirectory, String.format("%s.%s", Util.getFileName(file), format));
+        results.add(scheduler.submit(file.getPath(), RenderScheduler.PRIORITY_BULK, progress -> {
+          long fileStart = System.nanoTime();
+          PageRenderer renderer = new PageRenderer();
+          renderer.setStampCache(stamps);
+          renderer.setProgress(progress);
+          int count = renderer.render(LabelFile.load(file), output);
+          return new long[]{count, (System.nanoTime() - fileStart) / 1000000L};
+        }));
+      }
+
+      int rendered = 0;
+      long pages = 0L;
+      for (int i = 0; i < files.size(); i++) {
+        String problem = problems.get(i);
+        if (problem == null) {
+          try {
+            long[] result = results.get(i).get();
+            rendered++;
+            pages += result[0];
+            out.println(String.format("%s: %d pages, %d ms", names.get(i), result[0], result[1]));
+            continue;
+          } catch (ExecutionException ex) {
+            problem = Util.getMessage(ex.getCause());
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            problem = "Interrupted.";
+          }
+        }
+        err.println(String.format("%s: failed, %s", names.get(i), problem));
+      }
+      out.println(String.format("Rendered %d of %d files, %d pages in %d ms.", rendered, files.size(), pages, (System.nanoTime() - start) / 1000000L));
+      return rendered == files.size() ? EXIT_OK : EXIT_FAILED;
+    }
+  }
+
+  /**
+   * Returns the file named by the argument, or the files matching it in name
+   * order if it is a glob. Only the part after the last separator before the
+   * first wildcard is matched, a ** matches across directories, none
+   * included, so **&#47;*.xml matches the files at the top as well.
+   */
+  static List<File> expand(String input) throws IOException {
+    ArrayList<File> files = new ArrayList<>();
+    int wildcard = -1;
+    for (int i = 0; i < input.length(); i++) {
+      if ("*?[{".indexOf(input.charAt(i)) >= 0) {
+        wildcard = i;
+        break;
+      }
+    }
+    if (wildcard < 0) {
+      File file = new File(input);
+      if (file.isFile() == false) {
+        throw new IllegalArgumentException(String.format("File %s does not exist.", input));
+      }
+      files.add(file);
+      return files;
+    }
+    int cut = Math.max(input.lastIndexOf('/', wildcard), input.lastIndexOf(File.separatorChar, wildcard));
+    Path base = cut < 0 ? Paths.get(".") : Paths.get(input.substring(0, cut + 1));
+    String pattern = input.substring(cut + 1);
+    ArrayList<PathMatcher> matchers = new ArrayList<>();
+    for (String variant : expandDirectoryWildcards(pattern)) {
+      matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + variant));
+    }
+    int depth = pattern.contains("**") ? Integer.MAX_VALUE : pattern.split("[/\\\\]").length;
+    if (Files.isDirectory(base)) {
+      try (Stream<Path> paths = Files.walk(base, depth)) {
+        paths.filter(p -> Files.isRegularFile(p) && matchers.stream().anyMatch(m -> m.matches(base.relativize(p)))).sorted().forEach(p -> files.add(p.normalize().toFile()));
+      }
+    }
+    if (files.isEmpty()) {
+      throw new IllegalArgumentException(String.format("No files match %s.", input));
+    }
+    return files;
+  }
+
+  /**
+   * Returns the pattern with each **&#47; kept or removed in every combination,
+   * as a glob **&#47; needs at least one directory to match.
+   */
+  private static List<String> expandDirectoryWildcards(String pattern) {
+    ArrayList<String> variants = new ArrayList<>();
+    variants.add(pattern);
+    for (int i = 0; i < variants.size(); i++) {
+      String variant = variants.get(i);
+      for (int at = variant.indexOf("**/"); at >= 0; at = variant.indexOf("**/", at + 1)) {
+        String removed = variant.substring(0, at) + variant.substring(at + 3);
+        if (variants.contains(removed) == false) {
+          variants.add(removed);
+        }
+      }
+    }
+    return variants;
+  }
+
+}
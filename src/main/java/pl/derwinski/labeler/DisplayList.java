@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import pl.derwinski.labeler.data.LabelFile;
+import pl.derwinski.labeler.data.LabelSet;
+
+/**
+ * Labels laid out and fitted once, recorded as label outlines and glyphs
+ * placed with transforms in millimetres. The list can be replayed into a
+ * graphics at any resolution with only a scale, or into a vector canvas at
+ * the resolution it was recorded at, without fitting text again.
+ * <p>
+ * Outlines and glyphs are referenced, not copied, so a list stays small.
+ * Lists are immutable and can be replayed from many threads.
+ *
+ * @author Dominik Derwiński
+ */
+public final class DisplayList {
+
+  private static final FontRenderContext FONT_RENDER_CONTEXT = new FontRenderContext(null, true, false);
+  private static final byte BACKGROUND = 0;
+  private static final byte GLYPH = 1;
+  private static final byte LAST_GLYPH = 2;
+
+  private final double dpi;
+  private final double pageWidth;
+  private final double pageHeight;
+  private final double segmentHeight;
+  private final boolean roll;
+  private final Paint pagePaint;
+  private final PixelFormat format;
+  private PixelFormat indexedFormat;
+  private String indexedError = "Display list was not recorded from a label file.";
+  private final double clipX;
+  private final double clipY;
+  private final double clipWidth;
+  private final double clipHeight;
+  private int[] pageLabels = new int[2];
+  private int[] labelOps = new int[64];
+  private double[] labelBounds = new double[256];
+  private byte[] kinds = new byte[1024];
+  private int[] geometryRefs = new int[1024];
+  private int[] glyphRefs = new int[1024];
+  private double[] transforms = new double[6144];
+  private int pageCount;
+  private int labelCount;
+  private int opCount;
+  private LabelGeometry[] geometries;
+  private GlyphCache.Glyph[] glyphs;
+
+  /**
+   * Records all pages of the file, laid out like {@link LayoutPlan} does at
+   * the resolution of the file.
+   */
+  public static DisplayList record(LabelFile labelFile) {
+    LayoutPlan plan = LayoutPlan.create(labelFile);
+    double mm = Util.MM_PER_INCH / plan.getDpi();
+    DisplayList list = new DisplayList(plan.getDpi(), plan.getPageWidth() * mm, plan.getPageHeight() * mm,
+            plan.getSegmentHeight() * mm, plan.isRoll(), labelFile.getPagePaint().createPaint(), PixelFormat.select(labelFile),
+            plan.getClipX() * mm, plan.getClipY() * mm, plan.getClipWidth() * mm, plan.getClipHeight() * mm);
+    try {
+      list.indexedFormat = PixelFormat.createIndexed(labelFile);
+    } catch (IllegalStateException ex) {
+      list.indexedError = ex.getMessage();
+    }
+    Recorder recorder = list.new Recorder();
+    LabelRenderer renderer = new LabelRenderer();
+    for (int p = 0; p < plan.getPageCount(); p++) {
+      for (int i = plan.getPageStart(p); i < plan.getPageEnd(p); i++) {
+        LabelGeometry geometry = plan.getGeometry(i);
+        list.beginLabel(plan.getX(i), plan.getY(i), geometry);
+        renderer.render(geometry, plan.getX(i), plan.getY(i), plan.isRotated(i), recorder, plan.getText(i));
+      }
+      list.endPage();
+    }
+    list.finish(recorder);
+    return list;
+  }
+
+  /**
+   * Records a single label of the set on a page of the label bounds, without
+   * page paint. The geometry is compiled and fitted at the given resolution.
+   */
+  public static DisplayList record(LabelSet labelSet, String text, double dpi) {
+    LabelGeometry geometry = LabelGeometry.compile(labelSet, dpi);
+    geometry.validate();
+    double mm = Util.MM_PER_INCH / dpi;
+    double width = geometry.getWidth() * mm;
+    double height = geometry.getHeight() * mm;
+    DisplayList list = new DisplayList(dpi, width, height, height, false, null, null, 0d, 0d, width, height);
+    Recorder recorder = list.new Recorder();
+    list.beginLabel(0, 0, geometry);
+    new LabelRenderer().render(geometry, 0, 0, recorder, text);
+    list.endPage();
+    list.finish(recorder);
+    return list;
+  }
+
+  private DisplayList(double dpi, double pageWidth, double pageHeight, double segmentHeight, boolean roll, Paint pagePaint, PixelFormat format,
+          double clipX, double clipY, double clipWidth, double clipHeight) {
+    this.dpi = dpi;
+    this.pageWidth = pageWidth;
+    this.pageHeight = pageHeight;
+    this.segmentHeight = segmentHeight;
+    this.roll = roll;
+    this.pagePaint = pagePaint;
+    this.format = format;
+    this.clipX = clipX;
+    this.clipY = clipY;
+    this.clipWidth = clipWidth;
+    this.clipHeight = clipHeight;
+  }
+
+  private void beginLabel(int x, int y, LabelGeometry geometry) {
+    if ((labelCount + 2) > labelOps.length) {
+      labelOps = Arrays.copyOf(labelOps, labelOps.length * 2);
+      labelBounds = Arrays.copyOf(labelBounds, labelBounds.length * 2);
+    }
+    double mm = Util.MM_PER_INCH / dpi;
+    labelOps[labelCount] = opCount;
+    labelBounds[labelCount * 4] = (x - 1) * mm;
+    labelBounds[labelCount * 4 + 1] = (y - 1) * mm;
+    labelBounds[labelCount * 4 + 2] = (geometry.getWidth() + 2) * mm;
+    labelBounds[labelCount * 4 + 3] = (geometry.getHeight() + 2) * mm;
+    labelCount++;
+    labelOps[labelCount] = opCount;
+  }
+
+  private void endPage() {
+    if ((pageCount + 2) > pageLabels.length) {
+      pageLabels = Arrays.copyOf(pageLabels, pageLabels.length * 2);
+    }
+    pageCount++;
+    pageLabels[pageCount] = labelCount;
+  }
+
+  private void finish(Recorder recorder) {
+    geometries = recorder.geometryTable.toArray(new LabelGeometry[recorder.geometryTable.size()]);
+    glyphs = recorder.glyphTable.toArray(new GlyphCache.Glyph[recorder.glyphTable.size()]);
+    pageLabels = Arrays.copyOf(pageLabels, pageCount + 1);
+    labelOps = Arrays.copyOf(labelOps, labelCount + 1);
+    labelBounds = Arrays.copyOf(labelBounds, labelCount * 4);
+    kinds = Arrays.copyOf(kinds, opCount);
+    geometryRefs = Arrays.copyOf(geometryRefs, opCount);
+    glyphRefs = Arrays.copyOf(glyphRefs, opCount);
+    transforms = Arrays.copyOf(transforms, opCount * 6);
+  }
+
+  /**
+   * Returns the resolution the list was laid out and fitted at.
+   */
+  public double getDpi() {
+    return dpi;
+  }
+
+  /**
+   * Returns the page width in millimetres.
+   */
+  public double getPageWidth() {
+    return pageWidth;
+  }
+
+  /**
+   * Returns the page height in millimetres, the whole content height for a
+   * roll.
+   */
+  public double getPageHeight() {
+    return pageHeight;
+  }
+
+  public boolean isRoll() {
+    return roll;
+  }
+
+  /**
+   * Returns the height in millimetres of the segments a roll is cut into for
+   * paged output, or the page height.
+   */
+  public double getSegmentHeight() {
+    return segmentHeight;
+  }
+
+  /**
+   * Returns the page paint, or null if the page is not filled.
+   */
+  public Paint getPagePaint() {
+    return pagePaint;
+  }
+
+  /**
+   * Returns the smallest pixel format holding all colours of the list, see
+   * {@link PixelFormat#select(LabelFile)}, or null if it was not recorded from
+   * a file.
+   */
+  public PixelFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * Returns the indexed pixel format holding all colours of the list, see
+   * {@link PixelFormat#createIndexed(LabelFile)}.
+   *
+   * @throws IllegalStateException if the colours cannot be indexed, naming why
+   */
+  public PixelFormat getIndexedFormat() {
+    if (indexedFormat == null) {
+      throw new IllegalStateException(indexedError);
+    }
+    return indexedFormat;
+  }
+
+  public double getClipX() {
+    return clipX;
+  }
+
+  public double getClipY() {
+    return clipY;
+  }
+
+  public double getClipWidth() {
+    return clipWidth;
+  }
+
+  public double getClipHeight() {
+    return clipHeight;
+  }
+
+  public int getPageCount() {
+    return pageCount;
+  }
+
+  public int getLabelCount() {
+    return labelCount;
+  }
+
+  /**
+   * Returns the number of recorded backgrounds and glyphs.
+   */
+  public int getOperationCount() {
+    return opCount;
+  }
+
+  /**
+   * Draws the page into the graphics, with the page origin at the current
+   * origin and millimetres scaled to the given resolution. The page is filled
+   * with the page paint first. Labels outside the clip of the graphics are
+   * skipped.
+   */
+  public void replay(int page, Graphics2D g, double dpi) {
+    checkPage(page);
+    double scale = Util.dpiToDpmm(dpi);
+    AffineTransform base = g.getTransform();
+    Shape clip = g.getClip();
+    Path2D.Float textPath = new Path2D.Float(Path2D.WIND_NON_ZERO, 1024);
+    AffineTransform transform = new AffineTransform();
+    float[] points = new float[256];
+    try {
+      if (pagePaint != null) {
+        g.setPaint(pagePaint);
+        g.fillRect(0, 0, Util.mmToPixels(pageWidth, dpi), Util.mmToPixels(pageHeight, dpi));
+      }
+      g.scale(scale, scale);
+      g.clip(new Rectangle2D.Double(clipX, clipY, clipWidth, clipHeight));
+      Rectangle2D visible = g.getClip().getBounds2D();
+      AffineTransform pageTransform = g.getTransform();
+      for (int l = pageLabels[page]; l < pageLabels[page + 1]; l++) {
+        if (visible.intersects(labelBounds[l * 4], labelBounds[l * 4 + 1], labelBounds[l * 4 + 2], labelBounds[l * 4 + 3]) == false) {
+          continue;
+        }
+        for (int o = labelOps[l]; o < labelOps[l + 1]; o++) {
+          LabelGeometry geometry = geometries[geometryRefs[o]];
+          transform.setTransform(transforms[o * 6], transforms[o * 6 + 1], transforms[o * 6 + 2], transforms[o * 6 + 3], transforms[o * 6 + 4], transforms[o * 6 + 5]);
+          if (kinds[o] == BACKGROUND) {
+            g.setPaint(geometry.getBackgroundPaint());
+            g.transform(transform);
+            try {
+              g.fill(geometry.getOutline());
+            } finally {
+              g.setTransform(pageTransform);
+            }
+            continue;
+          }
+          GlyphCache.Glyph glyph = glyphs[glyphRefs[o]];
+          float[] coordinates = glyph.getCoordinates();
+          if (points.length < coordinates.length) {
+            points = new float[Math.max(coordinates.length, points.length * 2)];
+          }
+          transform.transform(coordinates, 0, points, 0, coordinates.length / 2);
+          int j = 0;
+          for (byte type : glyph.getSegmentTypes()) {
+            if (type == PathIterator.SEG_MOVETO) {
+              textPath.moveTo(points[j], points[j + 1]);
+              j += 2;
+            } else if (type == PathIterator.SEG_LINETO) {
+              textPath.lineTo(points[j], points[j + 1]);
+              j += 2;
+            } else {
+              textPath.closePath();
+            }
+          }
+          if (kinds[o] == LAST_GLYPH) {
+            g.setPaint(geometry.getTextPaint());
+            g.fill(textPath);
+            textPath.reset();
+          }
+        }
+      }
+    } finally {
+      g.setTransform(base);
+      g.setClip(clip);
+    }
+  }
+
+  /**
+   * Replays the labels of the page overlapping the given rows, in
+   * millimetres, into the canvas at the resolution the list was recorded at.
+   * The canvas fills the page and applies the clip itself.
+   */
+  public void replay(int page, double top, double height, LabelCanvas canvas) {
+    checkPage(page);
+    double scale = Util.dpiToDpmm(dpi);
+    AffineTransform transform = new AffineTransform();
+    for (int l = pageLabels[page]; l < pageLabels[page + 1]; l++) {
+      if ((labelBounds[l * 4 + 1] >= top + height) || (labelBounds[l * 4 + 1] + labelBounds[l * 4 + 3] <= top)) {
+        continue;
+      }
+      for (int o = labelOps[l]; o < labelOps[l + 1]; o++) {
+        LabelGeometry geometry = geometries[geometryRefs[o]];
+        transform.setTransform(transforms[o * 6] * scale, transforms[o * 6 + 1] * scale, transforms[o * 6 + 2] * scale,
+                transforms[o * 6 + 3] * scale, transforms[o * 6 + 4] * scale, transforms[o * 6 + 5] * scale);
+        if (kinds[o] == BACKGROUND) {
+          boolean rotated = transform.getScaleX() < 0d;
+          int x = (int) Math.round(transform.getTranslateX()) - (rotated ? geometry.getWidth() : 0);
+          int y = (int) Math.round(transform.getTranslateY()) - (rotated ? geometry.getHeight() : 0);
+          canvas.fillBackground(geometry, x, y, rotated);
+        } else {
+          canvas.fillGlyph(geometry, glyphs[glyphRefs[o]], transform);
+          if (kinds[o] == LAST_GLYPH) {
+            canvas.endText(geometry);
+          }
+        }
+      }
+    }
+  }
+
+  private void checkPage(int page) {
+    if ((page < 0) || (page >= pageCount)) {
+      throw new IllegalArgumentException(String.format("Page %d out of range.", page));
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("DisplayList [dpi=");
+    sb.append(dpi);
+    sb.append(", pageWidth=");
+    sb.append(pageWidth);
+    sb.append(", pageHeight=");
+    sb.append(pageHeight);
+    sb.append(", roll=");
+    sb.append(roll);
+    sb.append(", pages=");
+    sb.append(pageCount);
+    sb.append(", labels=");
+    sb.append(labelCount);
+    sb.append(", operations=");
+    sb.append(opCount);
+    sb.append(", glyphs=");
+    sb.append(glyphs.length);
+    sb.append("]");
+    return sb.toString();
+  }
+
+  /**
+   * Canvas appending everything drawn to the list, converted to millimetres.
+   */
+  private final class Recorder implements LabelCanvas {
+
+    private final ArrayList<LabelGeometry> geometryTable = new ArrayList<>();
+    private final ArrayList<GlyphCache.Glyph> glyphTable = new ArrayList<>();
+    private final IdentityHashMap<LabelGeometry, Integer> geometryIndices = new IdentityHashMap<>();
+    private final HashMap<GlyphCache.Glyph, Integer> glyphIndices = new HashMap<>();
+    private final double mm = Util.MM_PER_INCH / dpi;
+
+    @Override
+    public FontRenderContext getFontRenderContext() {
+      return FONT_RENDER_CONTEXT;
+    }
+
+    @Override
+    public void fillBackground(LabelGeometry geometry, int x, int y, boolean rotated) {
+      if (rotated) {
+        add(BACKGROUND, geometry, -1, -1d, 0d, 0d, -1d, x + geometry.getWidth(), y + geometry.getHeight());
+      } else {
+        add(BACKGROUND, geometry, -1, 1d, 0d, 0d, 1d, x, y);
+      }
+    }
+
+    @Override
+    public void fillGlyph(LabelGeometry geometry, GlyphCache.Glyph glyph, AffineTransform transform) {
+      Integer index = glyphIndices.get(glyph);
+      if (index == null) {
+        index = glyphTable.size();
+        glyphTable.add(glyph);
+        glyphIndices.put(glyph, index);
+      }
+      add(GLYPH, geometry, index, transform.getScaleX(), transform.getShearY(), transform.getShearX(), transform.getScaleY(),
+              transform.getTranslateX(), transform.getTranslateY());
+    }
+
+    @Override
+    public void endText(LabelGeometry geometry) {
+      if ((opCount > labelOps[labelCount - 1]) && (kinds[opCount - 1] == GLYPH)) {
+        kinds[opCount - 1] = LAST_GLYPH;
+      }
+    }
+
+    private void add(byte kind, LabelGeometry geometry, int glyph, double m00, double m10, double m01, double m11, double m02, double m12) {
+      Integer index = geometryIndices.get(geometry);
+      if (index == null) {
+        index = geometryTable.size();
+        geometryTable.add(geometry);
+        geometryIndices.put(geometry, index);
+      }
+      if (opCount == kinds.length) {
+        kinds = Arrays.copyOf(kinds, opCount * 2);
+        geometryRefs = Arrays.copyOf(geometryRefs, opCount * 2);
+        glyphRefs = Arrays.copyOf(glyphRefs, opCount * 2);
+        transforms = Arrays.copyOf(transforms, opCount * 12);
+      }
+      kinds[opCount] = kind;
+      geometryRefs[opCount] = index;
+      glyphRefs[opCount] = glyph;
+      double[] t = transforms;
+      int p = opCount * 6;
+      t[p] = m00 * mm;
+      t[p + 1] = m10 * mm;
+      t[p + 2] = m01 * mm;
+      t[p + 3] = m11 * mm;
+      t[p + 4] = m02 * mm;
+      t[p + 5] = m12 * mm;
+      opCount++;
+      labelOps[labelCount] = opCount;
+    }
+
+  }
+
+}
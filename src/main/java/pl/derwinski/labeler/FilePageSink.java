@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the first page to the given file and each following page to a
+ * numbered file next to it, for example labels.png, labels-2.png,
+ * labels-3.png. Run length encoded pages are written as TIFF images if the
+ * extension is tif or tiff, and as PNG images otherwise.
+ *
+ * @author Dominik Derwiński
+ */
+public final class FilePageSink implements PageSink, RunLengthSink, PageOutput {
+
+  private final File file;
+  private final String extension;
+  private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+  private Executor executor;
+
+  public FilePageSink(File file) {
+    this(file, "png");
+  }
+
+  public FilePageSink(File file, String extension) {
+    this.file = Objects.requireNonNull(file);
+    this.extension = Objects.requireNonNull(extension);
+  }
+
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  public void setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  public File getPageFile(int pageIndex) {
+    if (pageIndex == 0) {
+      return file;
+    } else {
+      return new File(file.getParentFile(), String.format("%s-%d.%s", Util.getFileName(file), pageIndex + 1, extension));
+    }
+  }
+
+  @Override
+  public OutputStream openPage(int pageIndex) throws IOException {
+    return new BufferedOutputStream(new FileOutputStream(getPageFile(pageIndex), false));
+  }
+
+  @Override
+  public void accept(int pageIndex, BufferedImage page, double dpi) throws IOException {
+    try (FileOutputStream fos = new FileOutputStream(getPageFile(pageIndex), false);
+            BufferedOutputStream bos = new BufferedOutputStream(fos)) {
+      PageRenderer.saveGridImage(page, bos, dpi, compressionLevel, executor);
+    }
+  }
+
+  @Override
+  public void accept(int pageIndex, RunLengthPage page, double dpi) throws IOException {
+    try (FileOutputStream fos = new FileOutputStream(getPageFile(pageIndex), false);
+            BufferedOutputStream bos = new BufferedOutputStream(fos)) {
+      if (extension.equalsIgnoreCase("tif") || extension.equalsIgnoreCase("tiff")) {
+        new TiffEncoder(bos, dpi).write(page);
+      } else {
+        PngEncoder encoder = new PngEncoder(bos, page.getWidth(), page.getHeight(), dpi, page.getFormat(), compressionLevel, executor);
+        encoder.writeRows(page);
+        encoder.finish();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import pl.derwinski.labeler.data.LabelFile;
+
+/**
+ * Watches a folder for label files and renders them again whenever they
+ * change. Writes are debounced, a file is only loaded once it was left alone
+ * for the quiet period. Each page is compared with the previous layout of
+ * the file by its content hash, and only the changed pages are rendered, the
+ * files of the others are left as they are.
+ * <p>
+ * Usage: {@code FolderWatcher [-o directory] [-f png|pdf|svg|tif]
+ * [-d quiet ms] directory}
+ *
+ * @author Dominik Derwiński
+ */
+public final class FolderWatcher implements Closeable, Runnable {
+
+  public static final long DEFAULT_QUIET_MILLIS = 500L;
+
+  private static final String USAGE = "Usage: FolderWatcher [-o directory] [-f png|pdf|svg|tif] [-d quiet ms] directory";
+
+  private final Path directory;
+  private final File outputDirectory;
+  private final String format;
+  private final PrintStream out;
+  private final PrintStream err;
+  private final WatchService watchService;
+  private final StampCache stampCache = new StampCache(StampCache.DEFAULT_MAX_BYTES);
+  private final HashMap<Path, long[]> pageHashes = new HashMap<>();
+  private final HashMap<Path, Long> pending = new HashMap<>();
+  private long quietMillis = DEFAULT_QUIET_MILLIS;
+
+  /**
+   * Starts watching the directory, files are rendered into the output
+   * directory in the given format once run.
+   */
+  public FolderWatcher(Path directory, File outputDirectory, String format, PrintStream out, PrintStream err) throws IOException {
+    if (Files.isDirectory(directory) == false) {
+      throw new IllegalArgumentException(String.format("Directory %s does not exist.", directory));
+    }
+    if ((format.equals("png") || format.equals("pdf") || format.equals("svg") || format.equals("tif")) == false) {
+      throw new IllegalArgumentException(String.format("Unknown format %s.", format));
+    }
+    this.directory = directory;
+    this.outputDirectory = outputDirectory;
+    this.format = format;
+    this.out = out;
+    this.err = err;
+    watchService = directory.getFileSystem().newWatchService();
+    directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+  }
+
+  public long getQuietMillis() {
+    return quietMillis;
+  }
+
+  /**
+   * Sets how long a file must not change before it is rendered, so a burst of
+   * writes while it is being saved renders it once.
+   */
+  public void setQuietMillis(long quietMillis) {
+    if (quietMillis < 0L) {
+      throw new IllegalArgumentException("Quiet time must be greater or equal 0.");
+    }
+    this.quietMillis = quietMillis;
+  }
+
+  /**
+   * Renders the label files whose output is missing or older than the file,
+   * and then every file changed afterwards, until closed. Files already
+   * rendered are only laid out to record their page hashes.
+   */
+  @Override
+  public void run() {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.xml")) {
+      for (Path path : files) {
+        File output = getOutput(path);
+        if (output.isFile() && (output.lastModified() >= path.toFile().lastModified())) {
+          try {
+            LabelFile labelFile = LabelFile.load(path.toFile());
+            pageHashes.put(path, hashPages(labelFile, LayoutPlan.create(labelFile)));
+          } catch (IOException | RuntimeException ex) {
+            pending.put(path, System.nanoTime());
+          }
+        } else {
+          pending.put(path, System.nanoTime());
+        }
+      }
+    } catch (IOException ex) {
+      err.println(String.format("Cannot list %s: %s", directory, ex.getMessage()));
+    }
+    try {
+      while (true) {
+        WatchKey key;
+        if (pending.isEmpty()) {
+          key = watchService.take();
+        } else {
+          long wait = Long.MAX_VALUE;
+          for (long due : pending.values()) {
+            wait = Math.min(wait, due - System.nanoTime());
+          }
+          key = watchService.poll(Math.max(0L, wait), TimeUnit.NANOSECONDS);
+        }
+        if (key != null) {
+          for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+              try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.xml")) {
+                for (Path path : files) {
+                  schedule(path);
+                }
+              }
+            } else {
+              Path path = directory.resolve((Path) event.context());
+              if (path.getFileName().toString().toLowerCase().endsWith(".xml")) {
+                schedule(path);
+              }
+            }
+          }
+          key.reset();
+        }
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator(); it.hasNext();) {
+          Map.Entry<Path, Long> entry = it.next();
+          if (entry.getValue() - now <= 0L) {
+            it.remove();
+            render(entry.getKey());
+          }
+        }
+      }
+    } catch (ClosedWatchServiceException ex) {
+      // closed
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (IOException ex) {
+      err.println(String.format("Cannot list %s: %s", directory, ex.getMessage()));
+    }
+  }
+
+  /**
+   * Stops watching, a render in progress is completed first.
+   */
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+
+  private void schedule(Path path) {
+    pending.put(path, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(quietMillis));
+  }
+
+  private File getOutput(Path path) {
+    return new File(outputDirectory, String.format("%s.%s", Util.getFileName(path.toFile()), format));
+  }
+
+  /**
+   * Renders the changed pages of the file, or forgets it if it was removed.
+   * A PDF document is a single file, written whole if any page changed.
+   */
+  void render(Path path) {
+    long start = System.nanoTime();
+    if (Files.isRegularFile(path) == false) {
+      if (pageHashes.remove(path) != null) {
+        out.println(String.format("%s: removed", path));
+      }
+      return;
+    }
+    try {
+      LabelFile labelFile = LabelFile.load(path.toFile());
+      LayoutPlan plan = LayoutPlan.create(labelFile);
+      long[] hashes = hashPages(labelFile, plan);
+      long[] previous = pageHashes.get(path);
+      File output = getOutput(path);
+      FilePageSink files = new FilePageSink(output, format);
+      BitSet changed = new BitSet(hashes.length);
+      for (int i = 0; i < hashes.length; i++) {
+        File page = files.getPageFile(format.equals("pdf") ? 0 : i);
+        if ((previous == null) || (i >= previous.length) || (previous[i] != hashes[i]) || (page.isFile() == false)) {
+          changed.set(i);
+        }
+      }
+      boolean resized = (previous == null) || (previous.length != hashes.length);
+      if (format.equals("pdf") && (resized || (changed.isEmpty() == false))) {
+        changed.set(0, hashes.length);
+      }
+      if (changed.isEmpty() && (resized == false)) {
+        out.println(String.format("%s: unchanged", path));
+        return;
+      }
+      PageRenderer renderer = new PageRenderer();
+      renderer.setStampCache(stampCache);
+      renderer.setSelectedPages(changed);
+      renderer.setLayoutPlan(plan);
+      if (changed.isEmpty() == false) {
+        renderer.render(labelFile, output);
+      }
+      if ((previous != null) && (format.equals("pdf") == false)) {
+        for (int i = hashes.length; i < previous.length; i++) {
+          files.getPageFile(i).delete();
+        }
+      }
+      pageHashes.put(path, hashes);
+      out.println(String.format("%s: %d of %d pages rendered, %d ms", path, changed.cardinality(), hashes.length, (System.nanoTime() - start) / 1000000L));
+    } catch (IOException | RuntimeException ex) {
+      err.println(String.format("%s: failed, %s", path, Util.getMessage(ex)));
+    }
+  }
+
+  /**
+   * Returns the content hash of each page, including what all pages share:
+   * the page paint and the pixel format, which depends on the colours of the
+   * whole file.
+   */
+  private static long[] hashPages(LabelFile labelFile, LayoutPlan plan) {
+    PixelFormat pixelFormat = PixelFormat.select(labelFile);
+    long shared = Util.hash(0L, labelFile.getPagePaint().createPaint().hashCode());
+    shared = Util.hash(shared, labelFile.isRoll() ? 1L : 0L);
+    shared = Util.hash(shared, pixelFormat.getType());
+    shared = Util.hash(shared, Arrays.hashCode(pixelFormat.getPalette()));
+    long[] hashes = new long[plan.getPageCount()];
+    for (int p = 0; p < hashes.length; p++) {
+      hashes[p] = Util.hash(shared, plan.getPageHash(p));
+    }
+    return hashes;
+  }
+
+  public static void main(String[] args) throws IOException {
+    System.setProperty("java.awt.headless", "true");
+    File outputDirectory = new File(".");
+    String format = "png";
+    long quietMillis = DEFAULT_QUIET_MILLIS;
+    String directory = null;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if ((arg.startsWith("-") == false) || (arg.length() == 1)) {
+          if (directory != null) {
+            throw new IllegalArgumentException("Only one directory can be watched.");
+          }
+          directory = arg;
+          continue;
+        }
+        if ((arg.equals("-o") || arg.equals("-f") || arg.equals("-d")) == false) {
+          throw new IllegalArgumentException(String.format("Unknown option %s.", arg));
+        }
+        if (i + 1 >= args.length) {
+          throw new IllegalArgumentException(String.format("Missing value of %s.", arg));
+        }
+        String value = args[++i];
+        if (arg.equals("-o")) {
+          outputDirectory = new File(value);
+        } else if (arg.equals("-f")) {
+          format = value.toLowerCase();
+        } else {
+          try {
+            quietMillis = Long.parseLong(value);
+          } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Invalid number %s.", value));
+          }
+        }
+      }
+      if (directory == null) {
+        throw new IllegalArgumentException("No directory given.");
+      }
+      if ((outputDirectory.isDirectory() == false) && (outputDirectory.mkdirs() == false)) {
+        throw new IllegalArgumentException(String.format("Cannot create output directory %s.", outputDirectory));
+      }
+      FolderWatcher watcher = new FolderWatcher(Paths.get(directory), outputDirectory, format, System.out, System.err);
+      watcher.setQuietMillis(quietMillis);
+      System.out.println(String.format("Watching %s.", directory));
+      watcher.run();
+    } catch (IllegalArgumentException ex) {
+      System.err.println(ex.getMessage());
+      System.err.println(USAGE);
+      System.exit(BatchRenderer.EXIT_USAGE);
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("FolderWatcher [directory=");
+    sb.append(directory);
+    sb.append(", output=");
+    sb.append(outputDirectory);
+    sb.append(", format=");
+    sb.append(format);
+    sb.append(", files=");
+    sb.append(pageHashes.size());
+    sb.append("]");
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.Rectangle2D;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ *
+ * @author Dominik Derwiński
+ */
+public final class FontFitter {
+
+  private static final String PROBE = "bp";
+
+  private static final int FIT_CACHE_SIZE = 1024;
+  private static final int PROBE_CACHE_SIZE = 256;
+
+  private final Font font;
+  private final double fontSize;
+  private final double fontReductionStep;
+  private final double horizontalMargin;
+  private final double verticalMargin;
+  private final int maxStep;
+
+  private final LinkedHashMap<FitKey, Fit> fits = new LinkedHashMap<>(16, 0.75f, true) {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<FitKey, Fit> eldest) {
+      return size() > FIT_CACHE_SIZE;
+    }
+
+  };
+
+  private final LinkedHashMap<ProbeKey, Rectangle2D> probes = new LinkedHashMap<>(16, 0.75f, true) {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<ProbeKey, Rectangle2D> eldest) {
+      return size() > PROBE_CACHE_SIZE;
+    }
+
+  };
+
+  public FontFitter(Font font, double fontSize, double fontReductionStep, double horizontalMargin, double verticalMargin) {
+    this.font = Objects.requireNonNull(font);
+    this.fontSize = fontSize;
+    this.fontReductionStep = fontReductionStep;
+    this.horizontalMargin = horizontalMargin;
+    this.verticalMargin = verticalMargin;
+    int n = 0;
+    if ((fontSize > 0d) && (fontReductionStep > 0d)) {
+      n = (int) Math.min(Integer.MAX_VALUE - 1, Math.ceil(fontSize / fontReductionStep));
+      while ((n > 0) && (getSize(n) <= 0d)) {
+        n--;
+      }
+    }
+    this.maxStep = n;
+  }
+
+  public boolean isConfiguredFor(Font font, double fontSize, double fontReductionStep, double horizontalMargin, double verticalMargin) {
+    return this.font.equals(font)
+            && (this.fontSize == fontSize)
+            && (this.fontReductionStep == fontReductionStep)
+            && (this.horizontalMargin == horizontalMargin)
+            && (this.verticalMargin == verticalMargin);
+  }
+
+  public Fit fit(FontRenderContext frc, String text, double maxWidth, double maxHeight) {
+    FitKey key = new FitKey(frc, text, maxWidth, maxHeight);
+    Fit fit;
+    synchronized (fits) {
+      fit = fits.get(key);
+    }
+    if (fit == null) {
+      fit = search(frc, text, maxWidth - 2d * horizontalMargin, maxHeight - 2d * verticalMargin);
+      synchronized (fits) {
+        Fit previous = fits.putIfAbsent(key, fit);
+        if (previous != null) {
+          fit = previous;
+        }
+      }
+    }
+    return fit;
+  }
+
+  private Fit search(FontRenderContext frc, String text, double maxWidth, double maxHeight) {
+    if (fontSize <= 0d) {
+      throw new IllegalArgumentException(String.format("Text \"%s\" is too large", text));
+    }
+
+    Measure reference = measure(frc, text, 0);
+    if (reference.fits(maxWidth, maxHeight)) {
+      return reference.toFit();
+    }
+
+    int lo = 1;
+    int hi = maxStep;
+    int candidate = maxStep;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      double scale = getSize(mid) / fontSize;
+      if ((reference.width * scale <= maxWidth) && (reference.height * scale < maxHeight)) {
+        candidate = mid;
+        hi = mid - 1;
+      } else {
+        lo = mid + 1;
+      }
+    }
+
+    int n = candidate;
+    if (n < 1) {
+      throw new IllegalArgumentException(String.format("Text \"%s\" is too large", text));
+    }
+    Measure m = measure(frc, text, n);
+    if (m.fits(maxWidth, maxHeight)) {
+      while (n > 1) {
+        Measure p = measure(frc, text, n - 1);
+        if (p.fits(maxWidth, maxHeight) == false) {
+          break;
+        }
+        n--;
+        m = p;
+      }
+    } else {
+      do {
+        n++;
+        if (n > maxStep) {
+          throw new IllegalArgumentException(String.format("Text \"%s\" is too large", text));
+        }
+        m = measure(frc, text, n);
+      } while (m.fits(maxWidth, maxHeight) == false);
+    }
+    return m.toFit();
+  }
+
+  private double getSize(int n) {
+    return fontSize - ((double) n * fontReductionStep);
+  }
+
+  private Measure measure(FontRenderContext frc, String text, int n) {
+    Font f = font.deriveFont((float) getSize(n));
+    GlyphVector gv = f.createGlyphVector(frc, text);
+    Rectangle2D bpbounds = getProbeBounds(frc, f);
+    return new Measure(f, gv, bpbounds);
+  }
+
+  private Rectangle2D getProbeBounds(FontRenderContext frc, Font f) {
+    ProbeKey key = new ProbeKey(frc, f);
+    Rectangle2D bounds;
+    synchronized (probes) {
+      bounds = probes.get(key);
+    }
+    if (bounds == null) {
+      bounds = f.createGlyphVector(frc, PROBE).getVisualBounds();
+      synchronized (probes) {
+        probes.putIfAbsent(key, bounds);
+      }
+    }
+    return bounds;
+  }
+
+  public static final class Fit {
+
+    private final Font font;
+    private final double heightAdjustment;
+    private final int[] glyphCodes;
+    private final float[] glyphPositions;
+
+    private Fit(Font font, double heightAdjustment, GlyphVector gv) {
+      this.font = font;
+      this.heightAdjustment = heightAdjustment;
+      int n = gv.getNumGlyphs();
+      this.glyphCodes = gv.getGlyphCodes(0, n, null);
+      this.glyphPositions = gv.getGlyphPositions(0, n, null);
+    }
+
+    public Font getFont() {
+      return font;
+    }
+
+    public double getHeightAdjustment() {
+      return heightAdjustment;
+    }
+
+    public int getNumGlyphs() {
+      return glyphCodes.length;
+    }
+
+    /**
+     * Glyph codes of the text laid out in the fitted font. Must not be
+     * modified.
+     */
+    public int[] getGlyphCodes() {
+      return glyphCodes;
+    }
+
+    /**
+     * Glyph positions of the text laid out in the fitted font, as x and y
+     * pairs. Must not be modified.
+     */
+    public float[] getGlyphPositions() {
+      return glyphPositions;
+    }
+
+  }
+
+  private static final class Measure {
+
+    private final Font font;
+    private final GlyphVector gv;
+    private final double width;
+    private final double height;
+    private final Rectangle2D bpbounds;
+
+    private Measure(Font font, GlyphVector gv, Rectangle2D bpbounds) {
+      Rectangle2D bounds = gv.getVisualBounds();
+      this.font = font;
+      this.gv = gv;
+      this.width = Math.max(bounds.getWidth(), bpbounds.getHeight());
+      this.height = Math.max(bounds.getHeight(), bpbounds.getHeight());
+      this.bpbounds = bpbounds;
+    }
+
+    private boolean fits(double maxWidth, double maxHeight) {
+      return (width <= maxWidth) && (height < maxHeight);
+    }
+
+    private Fit toFit() {
+      return new Fit(font, -bpbounds.getY() - bpbounds.getHeight() / 2d, gv);
+    }
+
+  }
+
+  private static final class FitKey {
+
+    private final FontRenderContext frc;
+    private final String text;
+    private final double maxWidth;
+    private final double maxHeight;
+
+    private FitKey(FontRenderContext frc, String text, double maxWidth, double maxHeight) {
+      this.frc = frc;
+      this.text = text;
+      this.maxWidth = maxWidth;
+      this.maxHeight = maxHeight;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if ((o instanceof FitKey) == false) {
+        return false;
+      }
+      FitKey k = (FitKey) o;
+      return (maxWidth == k.maxWidth) && (maxHeight == k.maxHeight) && text.equals(k.text) && frc.equals(k.frc);
+    }
+
+    @Override
+    public int hashCode() {
+      int h = 31 * frc.hashCode() + text.hashCode();
+      h = 31 * h + Double.hashCode(maxWidth);
+      return 31 * h + Double.hashCode(maxHeight);
+    }
+
+  }
+
+  private static final class ProbeKey {
+
+    private final FontRenderContext frc;
+    private final Font font;
+
+    private ProbeKey(FontRenderContext frc, Font font) {
+      this.frc = frc;
+      this.font = font;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if ((o instanceof ProbeKey) == false) {
+        return false;
+      }
+      ProbeKey k = (ProbeKey) o;
+      return font.equals(k.font) && frc.equals(k.frc);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * frc.hashCode() + font.hashCode();
+    }
+
+  }
+
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author Dominik Derwiński
+ */
+public final class GlyphCache {
+
+  public static final GlyphCache SHARED = new GlyphCache(16384);
+
+  private static final double FLATNESS = 0.05d;
+  private static final int PAGE_BITS = 8;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final int PAGE_COUNT = 0x10000 >> PAGE_BITS;
+
+  private final int maxGlyphs;
+  private final LinkedHashMap<FaceKey, Face> faces = new LinkedHashMap<>(16, 0.75f, true);
+  private final AtomicInteger size = new AtomicInteger();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public GlyphCache(int maxGlyphs) {
+    if (maxGlyphs <= 0) {
+      throw new IllegalArgumentException("Cache size must be greater than 0.");
+    }
+    this.maxGlyphs = maxGlyphs;
+  }
+
+  public Face getFace(Font font, FontRenderContext frc) {
+    FaceKey key = new FaceKey(font, frc);
+    synchronized (faces) {
+      Face face = faces.get(key);
+      if (face == null) {
+        face = new Face(font, frc);
+        faces.put(key, face);
+      }
+      return face;
+    }
+  }
+
+  public int getMaxGlyphs() {
+    return maxGlyphs;
+  }
+
+  public int getSize() {
+    return size.get();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public void clear() {
+    synchronized (faces) {
+      for (Face face : faces.values()) {
+        face.evicted = true;
+      }
+      faces.clear();
+      size.set(0);
+    }
+  }
+
+  private void evict(Face current) {
+    synchronized (faces) {
+      Iterator<Map.Entry<FaceKey, Face>> it = faces.entrySet().iterator();
+      while ((size.get() > maxGlyphs) && it.hasNext()) {
+        Face face = it.next().getValue();
+        if (face != current) {
+          face.evicted = true;
+          it.remove();
+          size.addAndGet(-face.count.get());
+        }
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("GlyphCache [maxGlyphs=");
+    sb.append(maxGlyphs);
+    sb.append(", size=");
+    sb.append(size.get());
+    sb.append(", hits=");
+    sb.append(hits.sum());
+    sb.append(", misses=");
+    sb.append(misses.sum());
+    sb.append("]");
+    return sb.toString();
+  }
+
+  public final class Face {
+
+    private final Font font;
+    private final FontRenderContext frc;
+    private final AtomicReferenceArray<AtomicReferenceArray<Glyph>> pages = new AtomicReferenceArray<>(PAGE_COUNT);
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile boolean evicted;
+
+    private Face(Font font, FontRenderContext frc) {
+      this.font = font;
+      this.frc = frc;
+    }
+
+    public Font getFont() {
+      return font;
+    }
+
+    public FontRenderContext getFontRenderContext() {
+      return frc;
+    }
+
+    public Glyph getGlyph(GlyphVector gv, int index) {
+      return getGlyph(gv.getGlyphCode(index), gv, index);
+    }
+
+    /**
+     * Returns the cached glyph of the given code, or null if it has not been
+     * created yet.
+     */
+    public Glyph findGlyph(int code) {
+      if ((code < 0) || (code >= PAGE_COUNT * PAGE_SIZE)) {
+        return null;
+      }
+      AtomicReferenceArray<Glyph> page = pages.get(code >>> PAGE_BITS);
+      Glyph glyph = page != null ? page.get(code & (PAGE_SIZE - 1)) : null;
+      if (glyph != null) {
+        hits.increment();
+      }
+      return glyph;
+    }
+
+    /**
+     * Returns the glyph of the given code, which must be the code of the glyph
+     * at the given index of the vector. The vector is only used on a miss.
+     */
+    public Glyph getGlyph(int code, GlyphVector gv, int index) {
+      if ((code < 0) || (code >= PAGE_COUNT * PAGE_SIZE)) {
+        misses.increment();
+        return createGlyph(gv, index);
+      }
+      AtomicReferenceArray<Glyph> page = pages.get(code >>> PAGE_BITS);
+      if (page == null) {
+        pages.compareAndSet(code >>> PAGE_BITS, null, new AtomicReferenceArray<>(PAGE_SIZE));
+        page = pages.get(code >>> PAGE_BITS);
+      }
+      Glyph glyph = page.get(code & (PAGE_SIZE - 1));
+      if (glyph != null) {
+        hits.increment();
+        return glyph;
+      }
+      misses.increment();
+      glyph = createGlyph(gv, index);
+      if (page.compareAndSet(code & (PAGE_SIZE - 1), null, glyph)) {
+        if (evicted == false) {
+          count.incrementAndGet();
+          if (size.incrementAndGet() > maxGlyphs) {
+            evict(this);
+          }
+        }
+        return glyph;
+      }
+      return page.get(code & (PAGE_SIZE - 1));
+    }
+
+    private Glyph createGlyph(GlyphVector gv, int index) {
+      Point2D position = gv.getGlyphPosition(index);
+      float x = (float) position.getX();
+      float y = (float) position.getY();
+      Path2D.Float outline = new Path2D.Float();
+      outline.append(gv.getGlyphOutline(index, -x, -y).getPathIterator(null, FLATNESS), false);
+      Rectangle2D bounds = gv.getGlyphVisualBounds(index).getBounds2D();
+      return new Glyph(font, frc, gv.getGlyphCode(index), outline, bounds.getX() - x, bounds.getY() - y, bounds.getWidth(), bounds.getHeight());
+    }
+
+  }
+
+  /**
+   * Outline of a glyph of a face. Glyphs are equal if they have the same code
+   * in equal faces, even if one was created again after its face was evicted.
+   */
+  public static final class Glyph {
+
+    private final Font font;
+    private final FontRenderContext frc;
+    private final int code;
+    private final int hash;
+    private final Path2D.Float outline;
+    private final float[] coordinates;
+    private final byte[] segmentTypes;
+    private final double x;
+    private final double y;
+    private final double width;
+    private final double height;
+
+    private Glyph(Font font, FontRenderContext frc, int code, Path2D.Float outline, double x, double y, double width, double height) {
+      this.font = font;
+      this.frc = frc;
+      this.code = code;
+      this.hash = 31 * (31 * frc.hashCode() + font.hashCode()) + code;
+      this.outline = outline;
+      float[] c = new float[6];
+      int segments = 0;
+      int points = 0;
+      for (PathIterator it = outline.getPathIterator(null); it.isDone() == false; it.next()) {
+        segments++;
+        if (it.currentSegment(c) != PathIterator.SEG_CLOSE) {
+          points++;
+        }
+      }
+      this.coordinates = new float[points * 2];
+      this.segmentTypes = new byte[segments];
+      int i = 0;
+      int j = 0;
+      for (PathIterator it = outline.getPathIterator(null); it.isDone() == false; it.next()) {
+        int type = it.currentSegment(c);
+        segmentTypes[i++] = (byte) type;
+        if (type != PathIterator.SEG_CLOSE) {
+          coordinates[j++] = c[0];
+          coordinates[j++] = c[1];
+        }
+      }
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+    }
+
+    public int getCode() {
+      return code;
+    }
+
+    /**
+     * Flattened outline relative to the glyph origin. Must not be modified.
+     */
+    public Path2D.Float getOutline() {
+      return outline;
+    }
+
+    /**
+     * Points of the flattened outline, one pair per move or line segment, in
+     * the order of {@link #getSegmentTypes()}. Must not be modified.
+     */
+    public float[] getCoordinates() {
+      return coordinates;
+    }
+
+    /**
+     * Segment types of the flattened outline, only moves, lines and closes.
+     * Must not be modified.
+     */
+    public byte[] getSegmentTypes() {
+      return segmentTypes;
+    }
+
+    public double getX() {
+      return x;
+    }
+
+    public double getY() {
+      return y;
+    }
+
+    public double getWidth() {
+      return width;
+    }
+
+    public double getHeight() {
+      return height;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if ((o instanceof Glyph) == false) {
+        return false;
+      }
+      Glyph g = (Glyph) o;
+      return (code == g.code) && (hash == g.hash) && font.equals(g.font) && frc.equals(g.frc);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+  }
+
+  private static final class FaceKey {
+
+    private final Font font;
+    private final FontRenderContext frc;
+
+    private FaceKey(Font font, FontRenderContext frc) {
+      this.font = Objects.requireNonNull(font);
+      this.frc = Objects.requireNonNull(frc);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if ((o instanceof FaceKey) == false) {
+        return false;
+      }
+      FaceKey k = (FaceKey) o;
+      return font.equals(k.font) && frc.equals(k.frc);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * frc.hashCode() + font.hashCode();
+    }
+
+  }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
+
+/**
+ * Target of {@link LabelRenderer}, receiving the label background and each
+ * glyph separately, so vector backends can reuse shapes drawn many times.
+ *
+ * @author Dominik Derwiński
+ */
+public interface LabelCanvas {
+
+  FontRenderContext getFontRenderContext();
+
+  /**
+   * Fills the outline of the label placed at the given position with its
+   * background paint, turned by 180 degrees within its bounds if rotated.
+   */
+  void fillBackground(LabelGeometry geometry, int x, int y, boolean rotated);
+
+  /**
+   * Fills the outline of the glyph, transformed with the given transform, with
+   * the text paint of the label. The transform may be reused by the caller.
+   */
+  void fillGlyph(LabelGeometry geometry, GlyphCache.Glyph glyph, AffineTransform transform);
+
+  /**
+   * Called after the last glyph of a label, so glyphs can be filled together.
+   */
+  void endText(LabelGeometry geometry);
+
+}
@@ -0,0 +1,551 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import pl.derwinski.labeler.data.LabelFont;
+import pl.derwinski.labeler.data.LabelSet;
+import pl.derwinski.labeler.data.Margins;
+
+/**
+ * Compiled, immutable render plan of a label set at a given resolution. All
+ * dimensions are in dots, relative to the top left corner of the label bounds.
+ *
+ * @author Dominik Derwiński
+ */
+public final class LabelGeometry {
+
+  public static final int QUADRANGLE = 0;
+  public static final int CYLINDER = 1;
+  public static final int CONE = 2;
+
+  /**
+   * Number of sub-pixel positions background stamps are made for, along each
+   * axis.
+   */
+  public static final int PHASES = 4;
+
+  private static final int CACHE_SIZE = 64;
+
+  private static final LinkedHashMap<Key, LabelGeometry> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, LabelGeometry> eldest) {
+      return size() > CACHE_SIZE;
+    }
+
+  };
+
+  public static LabelGeometry compile(LabelSet set, double dpi) {
+    Key key = new Key(set, dpi);
+    synchronized (CACHE) {
+      LabelGeometry geometry = CACHE.get(key);
+      if (geometry == null) {
+        geometry = new LabelGeometry(key);
+        CACHE.put(key, geometry);
+      }
+      return geometry;
+    }
+  }
+
+  private final double dpi;
+  private final double topDiameter;
+  private final double bottomDiameter;
+  private final double height;
+  private final double coveredAngle;
+  private final double insetsTop;
+  private final double insetsLeft;
+  private final double insetsBottom;
+  private final double insetsRight;
+  private final Font font;
+  private final double fontSize;
+  private final double fontReductionStep;
+  private final double horizontalMargin;
+  private final double verticalMargin;
+  private final Paint backgroundPaint;
+  private final Paint textPaint;
+  private final FontFitter fitter;
+  private final long contentHash;
+
+  private final int type;
+  private final boolean happy;
+  private final double shorterRadius;
+  private final double longerRadius;
+  private final double angle;
+  private final double startAngle;
+  private final double endAngle;
+
+  private final int boundsWidth;
+  private final int boundsHeight;
+  private final double centerX;
+  private final double centerY;
+  private final double textWidth;
+  private final double textHeight;
+  private final Path2D.Double outline;
+  private final AtomicReferenceArray<BufferedImage> backgroundStamps = new AtomicReferenceArray<>(2 * PHASES * PHASES);
+
+  private LabelGeometry(Key key) {
+    dpi = key.dpi;
+    topDiameter = Util.mmToDots(key.topDiameter, dpi);
+    bottomDiameter = Util.mmToDots(key.bottomDiameter, dpi);
+    height = Util.mmToDots(key.height, dpi);
+    coveredAngle = key.coveredAngle;
+    insetsTop = Util.mmToDots(key.insetsTop, dpi);
+    insetsLeft = Util.mmToDots(key.insetsLeft, dpi);
+    insetsBottom = Util.mmToDots(key.insetsBottom, dpi);
+    insetsRight = Util.mmToDots(key.insetsRight, dpi);
+    font = key.font;
+    fontSize = Util.mmToDots(key.fontSize, dpi);
+    fontReductionStep = Util.mmToDots(key.fontReductionStep, dpi);
+    horizontalMargin = Util.mmToDots(key.horizontalMargin, dpi);
+    verticalMargin = Util.mmToDots(key.verticalMargin, dpi);
+    backgroundPaint = key.backgroundPaint;
+    textPaint = key.textPaint;
+    fitter = new FontFitter(font, fontSize, fontReductionStep, horizontalMargin, verticalMargin);
+    contentHash = key.contentHash();
+
+    if (coveredAngle == 0d) {
+      type = QUADRANGLE;
+    } else if (topDiameter == bottomDiameter) {
+      type = CYLINDER;
+    } else {
+      type = CONE;
+    }
+
+    if (type == CONE) {
+      boolean h = topDiameter < bottomDiameter;
+      double sr = (h ? topDiameter : bottomDiameter) / 2d;
+      double lr = (h ? bottomDiameter : topDiameter) / 2d;
+      double a = coveredAngle;
+
+      if (height > 0d) {
+        double radiusDiff = lr - sr;
+        double scaleRatio = sr / radiusDiff;
+        double slant = Math.sqrt((height * height) + (radiusDiff * radiusDiff));
+        sr = slant * scaleRatio;
+        lr = slant + sr;
+        double fullArc = ((h ? topDiameter : bottomDiameter) * 360d) / (sr * 2d);
+        a = (a * fullArc) / 360d;
+      }
+
+      if (insetsTop > 0d || insetsBottom > 0d) {
+        sr += h ? insetsTop : insetsBottom;
+        lr -= h ? insetsBottom : insetsTop;
+      }
+
+      if (insetsLeft > 0d || insetsRight > 0d) {
+        double centerRadius = (sr + lr) / 2d;
+        double centerLength = (a * 2d * Math.PI * centerRadius) / 360d;
+        double adjustedLength = centerLength - insetsLeft - insetsRight;
+        a = (a * adjustedLength) / centerLength;
+      }
+
+      happy = h;
+      shorterRadius = sr;
+      longerRadius = lr;
+      angle = a;
+      double halfAngle = angle / 2d;
+      startAngle = happy ? 270d - halfAngle : 90d + halfAngle;
+      endAngle = happy ? 270d + halfAngle : 90d - halfAngle;
+
+      Dimension bounds = getBounds(createUpperArc(0d, 0d), createLowerArc(0d, 0d));
+      boundsWidth = bounds.width;
+      boundsHeight = bounds.height;
+      centerX = bounds.width / 2;
+      centerY = happy ? bounds.height - longerRadius : longerRadius;
+
+      Arc2D.Double upperArc = createUpperArc(centerX, centerY);
+      Arc2D.Double lowerArc = createLowerArc(centerX, centerY);
+      Line2D.Double rightLine = new Line2D.Double(upperArc.getEndPoint(), lowerArc.getStartPoint());
+      Line2D.Double leftLine = new Line2D.Double(lowerArc.getEndPoint(), upperArc.getStartPoint());
+
+      outline = new Path2D.Double();
+      outline.append(upperArc, true);
+      outline.append(rightLine, true);
+      outline.append(lowerArc, true);
+      outline.append(leftLine, true);
+
+      double centerRadius = (longerRadius + shorterRadius) / 2d;
+      textWidth = (angle * 2d * Math.PI * centerRadius) / 360d;
+      textHeight = longerRadius - shorterRadius;
+    } else {
+      happy = false;
+      shorterRadius = 0d;
+      longerRadius = 0d;
+      angle = 0d;
+      startAngle = 0d;
+      endAngle = 0d;
+
+      double topWidth;
+      double bottomWidth;
+      if (type == CYLINDER) {
+        topWidth = ((topDiameter * Math.PI * coveredAngle) / 360d) - insetsLeft - insetsRight;
+        bottomWidth = topWidth;
+      } else {
+        topWidth = topDiameter - insetsLeft - insetsRight;
+        bottomWidth = bottomDiameter - insetsLeft - insetsRight;
+      }
+      double h = height - insetsTop - insetsBottom;
+      double w = Math.max(topWidth, bottomWidth);
+      double topMargin = (w - topWidth) / 2d;
+      double bottomMargin = (w - bottomWidth) / 2d;
+
+      boundsWidth = (int) Math.ceil(w);
+      boundsHeight = (int) Math.ceil(h);
+      centerX = w / 2d;
+      centerY = h / 2d;
+
+      Line2D.Double topLine = new Line2D.Double(topMargin, 0d, topMargin + topWidth, 0d);
+      Line2D.Double bottomLine = new Line2D.Double(bottomMargin + bottomWidth, h, bottomMargin, h);
+      Line2D.Double rightLine = new Line2D.Double(topLine.getX2(), topLine.getY2(), bottomLine.getX1(), bottomLine.getY1());
+      Line2D.Double leftLine = new Line2D.Double(bottomLine.getX2(), bottomLine.getY2(), topLine.getX1(), topLine.getY1());
+
+      outline = new Path2D.Double();
+      outline.append(topLine, true);
+      outline.append(rightLine, true);
+      outline.append(bottomLine, true);
+      outline.append(leftLine, true);
+
+      textWidth = Math.min(topWidth, bottomWidth);
+      textHeight = h;
+    }
+  }
+
+  public void validate() {
+    if (dpi <= 0d) {
+      throw new IllegalStateException("DPI must be greater than 0.");
+    }
+    if (topDiameter <= 0d) {
+      throw new IllegalStateException("Top diameter must be greater than 0.");
+    }
+    if (bottomDiameter <= 0d) {
+      throw new IllegalStateException("Bottom diameter must be greater than 0.");
+    }
+    if (height < 0d) {
+      throw new IllegalStateException("Height must be greater or equal 0.");
+    }
+    if ((height == 0d) && (coveredAngle <= 0d)) {
+      throw new IllegalStateException("Covered angle must be greater than 0.");
+    } else if (coveredAngle < 0d) {
+      throw new IllegalStateException("Covered angle must be greater or equal 0.");
+    }
+    if (coveredAngle > 360d) {
+      throw new IllegalStateException("Covered angle must be less or equal 360.");
+    }
+    if (insetsTop < 0d || insetsLeft < 0d || insetsBottom < 0d || insetsRight < 0d) {
+      throw new IllegalStateException("Insets must be greater or equal 0.");
+    }
+    if (fontSize <= 0d) {
+      throw new IllegalStateException("Font size must be greater than 0.");
+    }
+    if (fontReductionStep <= 0d) {
+      throw new IllegalStateException("Font reduction step must be greater than 0.");
+    }
+    if (horizontalMargin < 0d) {
+      throw new IllegalStateException("Horizontal margin must be greater or equal 0.");
+    }
+    if (verticalMargin < 0d) {
+      throw new IllegalStateException("Vertical margin must be greater or equal 0.");
+    }
+  }
+
+  public double getDpi() {
+    return dpi;
+  }
+
+  /**
+   * Returns a 64-bit hash of the label set properties this geometry is
+   * compiled from, equal for equal geometries of files loaded separately.
+   */
+  public long getContentHash() {
+    return contentHash;
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  public Font getFont() {
+    return font;
+  }
+
+  public FontFitter getFitter() {
+    return fitter;
+  }
+
+  public Paint getBackgroundPaint() {
+    return backgroundPaint;
+  }
+
+  public Paint getTextPaint() {
+    return textPaint;
+  }
+
+  public boolean isHappy() {
+    return happy;
+  }
+
+  public double getShorterRadius() {
+    return shorterRadius;
+  }
+
+  public double getLongerRadius() {
+    return longerRadius;
+  }
+
+  public double getAngle() {
+    return angle;
+  }
+
+  public double getStartAngle() {
+    return startAngle;
+  }
+
+  public double getEndAngle() {
+    return endAngle;
+  }
+
+  public int getWidth() {
+    return boundsWidth;
+  }
+
+  public int getHeight() {
+    return boundsHeight;
+  }
+
+  public Dimension getBounds() {
+    return new Dimension(boundsWidth, boundsHeight);
+  }
+
+  /**
+   * Center of the label (quadrangles) or of its arcs (cones).
+   */
+  public double getCenterX() {
+    return centerX;
+  }
+
+  public double getCenterY() {
+    return centerY;
+  }
+
+  public double getTextWidth() {
+    return textWidth;
+  }
+
+  public double getTextHeight() {
+    return textHeight;
+  }
+
+  /**
+   * Label outline with the bounds starting at 0, 0. Must not be modified.
+   */
+  public Shape getOutline() {
+    return outline;
+  }
+
+  /**
+   * Returns the background of the label rasterized once, one pixel larger
+   * than the bounds, with the outline shifted right and down by the given
+   * number of {@link #PHASES} parts of a pixel. Must not be modified.
+   */
+  public BufferedImage getBackgroundStamp(int phaseX, int phaseY, boolean antialiased) {
+    if ((phaseX < 0) || (phaseX >= PHASES) || (phaseY < 0) || (phaseY >= PHASES)) {
+      throw new IllegalArgumentException(String.format("Phase must be between 0 and %d.", PHASES - 1));
+    }
+    int index = ((antialiased ? PHASES : 0) + phaseY) * PHASES + phaseX;
+    BufferedImage stamp = backgroundStamps.get(index);
+    if (stamp == null) {
+      stamp = new BufferedImage(boundsWidth + 1, boundsHeight + 1, BufferedImage.TYPE_INT_ARGB_PRE);
+      Graphics2D g = stamp.createGraphics();
+      try {
+        LabelRenderer.initGraphics(g);
+        if (antialiased == false) {
+          g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        }
+        g.translate((double) phaseX / PHASES, (double) phaseY / PHASES);
+        g.setPaint(backgroundPaint);
+        g.fill(outline);
+      } finally {
+        g.dispose();
+      }
+      if (backgroundStamps.compareAndSet(index, null, stamp) == false) {
+        stamp = backgroundStamps.get(index);
+      }
+    }
+    return stamp;
+  }
+
+  private Arc2D.Double createUpperArc(double x, double y) {
+    Arc2D.Double upperArc = new Arc2D.Double();
+    upperArc.setArcByCenter(x, y, happy ? shorterRadius : longerRadius, startAngle, happy ? angle : -angle, Arc2D.OPEN);
+    return upperArc;
+  }
+
+  private Arc2D.Double createLowerArc(double x, double y) {
+    Arc2D.Double lowerArc = new Arc2D.Double();
+    lowerArc.setArcByCenter(x, y, happy ? longerRadius : shorterRadius, endAngle, happy ? -angle : angle, Arc2D.OPEN);
+    return lowerArc;
+  }
+
+  private static Dimension getBounds(Arc2D.Double upperArc, Arc2D.Double lowerArc) {
+    Rectangle2D upperArcBounds = upperArc.getBounds2D();
+    Rectangle2D lowerArcBounds = lowerArc.getBounds2D();
+
+    int minX = (int) Math.floor(Math.min(upperArcBounds.getMinX(), lowerArcBounds.getMinX()));
+    int minY = (int) Math.floor(Math.min(upperArcBounds.getMinY(), lowerArcBounds.getMinY()));
+    int maxX = (int) Math.ceil(Math.max(upperArcBounds.getMaxX(), lowerArcBounds.getMaxX()));
+    int maxY = (int) Math.ceil(Math.max(upperArcBounds.getMaxY(), lowerArcBounds.getMaxY()));
+
+    int w = maxX - minX;
+    if (w % 2 == 1) {
+      w++;
+    }
+
+    int h = maxY - minY;
+    if (h % 2 == 1) {
+      h++;
+    }
+
+    return new Dimension(w, h);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("LabelGeometry [dpi=");
+    sb.append(dpi);
+    sb.append(", type=");
+    sb.append(type);
+    sb.append(", width=");
+    sb.append(boundsWidth);
+    sb.append(", height=");
+    sb.append(boundsHeight);
+    sb.append(", font=");
+    sb.append(font);
+    sb.append("]");
+    return sb.toString();
+  }
+
+  private static final class Key {
+
+    private final double dpi;
+    private final double topDiameter;
+    private final double bottomDiameter;
+    private final double height;
+    private final double coveredAngle;
+    private final double insetsTop;
+    private final double insetsLeft;
+    private final double insetsBottom;
+    private final double insetsRight;
+    private final Font font;
+    private final double fontSize;
+    private final double fontReductionStep;
+    private final double horizontalMargin;
+    private final double verticalMargin;
+    private final Paint backgroundPaint;
+    private final Paint textPaint;
+
+    private Key(LabelSet set, double dpi) {
+      this.dpi = dpi;
+      topDiameter = set.getTopDiameter();
+      bottomDiameter = set.getBottomDiameter();
+      height = set.getHeight();
+      coveredAngle = set.getCoveredAngle();
+      Margins insets = set.getInsets();
+      insetsTop = insets != null ? insets.getTop() : 0d;
+      insetsLeft = insets != null ? insets.getLeft() : 0d;
+      insetsBottom = insets != null ? insets.getBottom() : 0d;
+      insetsRight = insets != null ? insets.getRight() : 0d;
+      LabelFont labelFont = set.getFont();
+      font = labelFont.createFont();
+      fontSize = labelFont.getSize();
+      fontReductionStep = labelFont.getReductionStep();
+      horizontalMargin = labelFont.getHorizontalMargin();
+      verticalMargin = labelFont.getVerticalMargin();
+      backgroundPaint = set.getBackgroundPaint().createPaint();
+      textPaint = set.getTextPaint().createPaint();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if ((o instanceof Key) == false) {
+        return false;
+      }
+      Key k = (Key) o;
+      return (dpi == k.dpi)
+              && (topDiameter == k.topDiameter)
+              && (bottomDiameter == k.bottomDiameter)
+              && (height == k.height)
+              && (coveredAngle == k.coveredAngle)
+              && (insetsTop == k.insetsTop)
+              && (insetsLeft == k.insetsLeft)
+              && (insetsBottom == k.insetsBottom)
+              && (insetsRight == k.insetsRight)
+              && (fontSize == k.fontSize)
+              && (fontReductionStep == k.fontReductionStep)
+              && (horizontalMargin == k.horizontalMargin)
+              && (verticalMargin == k.verticalMargin)
+              && font.equals(k.font)
+              && backgroundPaint.equals(k.backgroundPaint)
+              && textPaint.equals(k.textPaint);
+    }
+
+    /**
+     * Returns a hash of the properties, equal for equal label sets loaded
+     * separately, unlike the identity of the cached geometry.
+     */
+    private long contentHash() {
+      long h = 0L;
+      for (double v : new double[]{dpi, topDiameter, bottomDiameter, height, coveredAngle, insetsTop, insetsLeft, insetsBottom, insetsRight,
+        fontSize, fontReductionStep, horizontalMargin, verticalMargin}) {
+        h = Util.hash(h, Double.doubleToLongBits(v));
+      }
+      h = Util.hash(h, font.getName());
+      h = Util.hash(h, font.getStyle());
+      h = Util.hash(h, Float.floatToIntBits(font.getSize2D()));
+      h = Util.hash(h, backgroundPaint.hashCode());
+      return Util.hash(h, textPaint.hashCode());
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(dpi, topDiameter, bottomDiameter, height, coveredAngle, insetsTop, insetsLeft, insetsBottom, insetsRight,
+              font, fontSize, fontReductionStep, horizontalMargin, verticalMargin, backgroundPaint, textPaint);
+    }
+
+  }
+
+}
@@ -17,87 +17,53 @@
 package pl.derwinski.labeler;
 
 import java.awt.Dimension;
-import java.awt.Font;
 import java.awt.Graphics2D;
-import java.awt.Paint;
 import java.awt.RenderingHints;
 import java.awt.font.FontRenderContext;
 import java.awt.font.GlyphVector;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Arc2D;
-import java.awt.geom.Line2D;
 import java.awt.geom.Path2D;
-import java.awt.geom.Rectangle2D;
+import java.awt.geom.PathIterator;
 import pl.derwinski.labeler.data.LabelSet;
 
 /**
+ * Renders labels of compiled geometries. Rendering keeps no state on the
+ * renderer, so one renderer can be used from many threads at once, the
+ * buffers reused between labels are kept per thread.
  *
  * @author Dominik Derwiński
  */
 public final class LabelRenderer {
 
+  private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
   public static void initGraphics(Graphics2D g) {
     g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
     g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
     g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
   }
 
-  private double dpi;
-  private double topDiameter;
-  private double bottomDiameter;
-  private double height;
-  private double coveredAngle;
-  private double insetsTop;
-  private double insetsLeft;
-  private double insetsBottom;
-  private double insetsRight;
-  private Font font;
-  private double fontSize;
-  private double fontReductionStep;
-  private double horizontalMargin;
-  private double verticalMargin;
-  private Paint backgroundPaint;
-  private Paint textPaint;
-
-  private boolean happy;
-  private double shorterRadius;
-  private double longerRadius;
-  private double angle;
-  private double startAngle;
-  private double endAngle;
-
-  private double heightAdjustment;
-  private double textLength;
+  private LabelGeometry geometry;
+  private boolean backgroundStamps;
 
   public LabelRenderer() {
 
   }
 
-  private GlyphVector getAdjustedGlyphVector(Graphics2D g, double maxWidth, double maxHeight, String text) {
-    FontRenderContext frc = g.getFontRenderContext();
-    int n = 0;
-    double fs = fontSize;
-    maxWidth -= 2d * horizontalMargin;
-    maxHeight -= 2d * verticalMargin;
-    while (fs > 0d) {
-      fs = fontSize - ((double) n * fontReductionStep);
-      Font f = font.deriveFont((float) fs);
-      GlyphVector gv = f.createGlyphVector(frc, text);
-      Rectangle2D bounds = gv.getVisualBounds();
-      GlyphVector bpgv = f.createGlyphVector(frc, "bp");
-      Rectangle2D bpbounds = bpgv.getVisualBounds();
-      double w = Math.max(bounds.getWidth(), bpbounds.getHeight());
-      double h = Math.max(bounds.getHeight(), bpbounds.getHeight());
-      if ((w <= maxWidth) && (h < maxHeight)) {
-        heightAdjustment = -bpbounds.getY() - bpbounds.getHeight() / 2d;
-        return gv;
-      }
-      n++;
-    }
-    throw new IllegalArgumentException(String.format("Text \"%s\" is too large", text));
+  public boolean isBackgroundStamps() {
+    return backgroundStamps;
+  }
+
+  /**
+   * Enables drawing label backgrounds from stamps rasterized once per set and
+   * sub-pixel phase, when the graphics is only translated. Backgrounds placed
+   * between phases are snapped to the nearest lower one.
+   */
+  public void setBackgroundStamps(boolean backgroundStamps) {
+    this.backgroundStamps = backgroundStamps;
   }
 
-  private void renderText(Graphics2D g, String text, double maxWidth, double maxHeight, GlyphTransformer glyphTransformer) {
+  private static void renderText(Scratch scratch, LabelCanvas canvas, String text, double x, double y, boolean rotated, LabelGeometry geometry) {
     if (text == null) {
       return;
     }
@@ -108,298 +74,252 @@ public final class LabelRenderer {
       return;
     }
 
-    GlyphVector gv = getAdjustedGlyphVector(g, maxWidth, maxHeight, text);
-
-    Rectangle2D firstBounds = gv.getGlyphVisualBounds(0).getBounds2D();
-    Rectangle2D lastBounds = gv.getGlyphVisualBounds(gv.getNumGlyphs() - 1).getBounds2D();
+    FontRenderContext frc = canvas.getFontRenderContext();
+    FontFitter.Fit fit = geometry.getFitter().fit(frc, text, geometry.getTextWidth(), geometry.getTextHeight());
+    GlyphCache.Face face = GlyphCache.SHARED.getFace(fit.getFont(), frc);
+    int[] codes = fit.getGlyphCodes();
+    float[] positions = fit.getGlyphPositions();
+    GlyphVector gv = null;
+
+    int gvl = fit.getNumGlyphs();
+    scratch.ensureCapacity(gvl);
+    GlyphCache.Glyph[] glyphs = scratch.glyphs;
+    double[] glyphX = scratch.glyphX;
+    double[] glyphWidth = scratch.glyphWidth;
+    AffineTransform transform = scratch.transform;
+    for (int i = 0; i < gvl; i++) {
+      GlyphCache.Glyph glyph = face.findGlyph(codes[i]);
+      if (glyph == null) {
+        if (gv == null) {
+          gv = fit.getFont().createGlyphVector(frc, text);
+        }
+        glyph = face.getGlyph(codes[i], gv, i);
+      }
+      glyphs[i] = glyph;
+      glyphX[i] = positions[i * 2] + glyph.getX();
+      glyphWidth[i] = glyph.getWidth();
+    }
 
-    double firstCenter = firstBounds.getWidth() / 2d;
-    double lastCenter = lastBounds.getX() - firstBounds.getX() + lastBounds.getWidth() / 2d;
+    double firstX = glyphX[0];
+    double firstCenter = glyphWidth[0] / 2d;
+    double lastCenter = glyphX[gvl - 1] - firstX + glyphWidth[gvl - 1] / 2d;
 
-    textLength = lastCenter - firstCenter;
+    double textLength = lastCenter - firstCenter;
+    boolean cone = geometry.getType() == LabelGeometry.CONE;
 
-    int gvl = gv.getNumGlyphs();
     for (int i = 0; i < gvl; i++) {
-      Rectangle2D glyphBounds = gv.getGlyphVisualBounds(i).getBounds2D();
-
-      if (glyphBounds.getWidth() == 0d) {
+      if (glyphWidth[i] == 0d) {
         continue;
       }
 
-      double thisCenter = glyphBounds.getX() - firstBounds.getX() + glyphBounds.getWidth() / 2d - firstCenter;
+      double thisCenter = glyphX[i] - firstX + glyphWidth[i] / 2d - firstCenter;
       double progress = thisCenter / textLength;
 
-      AffineTransform at = glyphTransformer.getTransform(glyphBounds, progress);
+      if (cone) {
+        setConeTransform(transform, geometry, x, y, glyphX[i], glyphWidth[i], progress, textLength, fit.getHeightAdjustment());
+      } else {
+        setQuadrangleTransform(transform, geometry, x, y, glyphX[i], glyphWidth[i], progress, textLength, fit.getHeightAdjustment());
+      }
+      transform.translate(positions[i * 2], positions[i * 2 + 1]);
+      if (rotated) {
+        transform.preConcatenate(scratch.rotation);
+      }
 
-      g.fill(at.createTransformedShape(gv.getGlyphOutline(i)));
+      canvas.fillGlyph(geometry, glyphs[i], transform);
+      glyphs[i] = null;
     }
-  }
-
-  private void renderCone(int x, int y, Graphics2D g, String text) {
-    calculateArc();
-
-    Dimension bounds = getBounds(createUpperArc(0d, 0d), createLowerArc(0d, 0d));
-    double dx = x + bounds.width / 2;
-    double dy = happy ? y + bounds.height - longerRadius : y + longerRadius;
 
-    Arc2D.Double upperArc = createUpperArc(dx, dy);
-    Arc2D.Double lowerArc = createLowerArc(dx, dy);
-    Line2D.Double rightLine = new Line2D.Double(upperArc.getEndPoint(), lowerArc.getStartPoint());
-    Line2D.Double leftLine = new Line2D.Double(lowerArc.getEndPoint(), upperArc.getStartPoint());
-
-    Path2D.Double label = new Path2D.Double();
-    label.append(upperArc, true);
-    label.append(rightLine, true);
-    label.append(lowerArc, true);
-    label.append(leftLine, true);
-
-    g.setPaint(backgroundPaint);
-    g.fill(label);
-
-    double centerRadius = (longerRadius + shorterRadius) / 2d;
-    double maxWidth = (angle * 2d * Math.PI * centerRadius) / 360d;
-    double maxHeight = longerRadius - shorterRadius;
-
-    g.setPaint(textPaint);
-    renderText(g, text, maxWidth, maxHeight, (glyphBounds, progress) -> {
-
-      double textAngle = (textLength * angle) / maxWidth;
-      double textStartAngle = happy ? 270d - (textAngle / 2d) : 90d + (textAngle / 2d);
-      double thisAngle = happy ? textStartAngle + (textAngle * progress) : textStartAngle - (textAngle * progress);
-      double thisX = dx - glyphBounds.getX() - (glyphBounds.getWidth() / 2d);
-      double thisY = dy + heightAdjustment + (happy ? centerRadius : -centerRadius);
-
-      AffineTransform at = AffineTransform.getRotateInstance(Math.toRadians(happy ? 270d - thisAngle : 90d - thisAngle), dx, dy);
-      at.translate(thisX, thisY);
-      return at;
-    });
+    canvas.endText(geometry);
   }
 
-  private void renderQuadrangleImpl(double topWidth, double bottomWidth, double height, int x, int y, Graphics2D g, String text) {
-    double dx = x;
-    double dy = y;
-    double width = Math.max(topWidth, bottomWidth);
-    double topMargin = (width - topWidth) / 2d;
-    double bottomMargin = (width - bottomWidth) / 2d;
-
-    Line2D.Double topLine = new Line2D.Double(dx + topMargin, dy, dx + topMargin + topWidth, dy);
-    Line2D.Double bottomLine = new Line2D.Double(dx + bottomMargin + bottomWidth, dy + height, dx + bottomMargin, dy + height);
-    Line2D.Double rightLine = new Line2D.Double(topLine.getX2(), topLine.getY2(), bottomLine.getX1(), bottomLine.getY1());
-    Line2D.Double leftLine = new Line2D.Double(bottomLine.getX2(), bottomLine.getY2(), topLine.getX1(), topLine.getY1());
-
-    Path2D.Double label = new Path2D.Double();
-    label.append(topLine, true);
-    label.append(rightLine, true);
-    label.append(bottomLine, true);
-    label.append(leftLine, true);
+  private static void setConeTransform(AffineTransform transform, LabelGeometry geometry, double x, double y, double glyphX, double glyphWidth, double progress, double textLength, double heightAdjustment) {
+    boolean happy = geometry.isHappy();
+    double dx = x + geometry.getCenterX();
+    double dy = y + geometry.getCenterY();
+    double centerRadius = (geometry.getLongerRadius() + geometry.getShorterRadius()) / 2d;
 
-    g.setPaint(backgroundPaint);
-    g.fill(label);
+    double textAngle = (textLength * geometry.getAngle()) / geometry.getTextWidth();
+    double textStartAngle = happy ? 270d - (textAngle / 2d) : 90d + (textAngle / 2d);
+    double thisAngle = happy ? textStartAngle + (textAngle * progress) : textStartAngle - (textAngle * progress);
+    double thisX = dx - glyphX - (glyphWidth / 2d);
+    double thisY = dy + heightAdjustment + (happy ? centerRadius : -centerRadius);
 
-    double maxLength = Math.min(topWidth, bottomWidth);
-    double centerX = dx + width / 2d;
-    double centerY = dy + height / 2d;
-
-    g.setPaint(textPaint);
-    renderText(g, text, maxLength, height, (glyphBounds, progress) -> {
+    transform.setToRotation(Math.toRadians(happy ? 270d - thisAngle : 90d - thisAngle), dx, dy);
+    transform.translate(thisX, thisY);
+  }
 
-      double thisX = centerX - (textLength / 2d) + (textLength * progress) - glyphBounds.getX() - (glyphBounds.getWidth() / 2d);
-      double thisY = centerY + heightAdjustment;
+  private static void setQuadrangleTransform(AffineTransform transform, LabelGeometry geometry, double x, double y, double glyphX, double glyphWidth, double progress, double textLength, double heightAdjustment) {
+    double centerX = x + geometry.getCenterX();
+    double centerY = y + geometry.getCenterY();
 
-      return AffineTransform.getTranslateInstance(thisX, thisY);
-    });
-  }
+    double thisX = centerX - (textLength / 2d) + (textLength * progress) - glyphX - (glyphWidth / 2d);
+    double thisY = centerY + heightAdjustment;
 
-  private void renderCylinder(int x, int y, Graphics2D g, String text) {
-    double w = ((topDiameter * Math.PI * coveredAngle) / 360d) - insetsLeft - insetsRight;
-    double h = height - insetsTop - insetsBottom;
-    renderQuadrangleImpl(w, w, h, x, y, g, text);
+    transform.setToTranslation(thisX, thisY);
   }
 
-  private void renderQuadrangle(int x, int y, Graphics2D g, String text) {
-    double wTop = topDiameter - insetsLeft - insetsRight;
-    double wBottom = bottomDiameter - insetsLeft - insetsRight;
-    double h = height - insetsTop - insetsBottom;
-    renderQuadrangleImpl(wTop, wBottom, h, x, y, g, text);
+  public void render(LabelGeometry geometry, int x, int y, Graphics2D g, String text) {
+    render(geometry, x, y, false, g, text);
   }
 
-  public void render(int x, int y, Graphics2D g, String text) {
-    if (coveredAngle == 0d) {
-      renderQuadrangle(x, y, g, text);
-    } else {
-      if (topDiameter == bottomDiameter) {
-        renderCylinder(x, y, g, text);
-      } else {
-        renderCone(x, y, g, text);
-      }
+  /**
+   * Renders the label at the given position, turned by 180 degrees within its
+   * bounds if rotated.
+   */
+  public void render(LabelGeometry geometry, int x, int y, boolean rotated, Graphics2D g, String text) {
+    GraphicsCanvas canvas = SCRATCH.get().graphicsCanvas;
+    canvas.g = g;
+    canvas.backgroundStamps = backgroundStamps;
+    try {
+      render(geometry, x, y, rotated, canvas, text);
+    } finally {
+      canvas.g = null;
     }
   }
 
-  private Dimension getConeBounds() {
-    calculateArc();
-    return getBounds(createUpperArc(0d, 0d), createLowerArc(0d, 0d));
+  public void render(LabelGeometry geometry, int x, int y, LabelCanvas canvas, String text) {
+    render(geometry, x, y, false, canvas, text);
   }
 
-  private Dimension getCylinderBounds() {
-    double w = ((topDiameter * Math.PI * coveredAngle) / 360d) - insetsLeft - insetsRight;
-    double h = height - insetsTop - insetsBottom;
-    return new Dimension((int) Math.ceil(w), (int) Math.ceil(h));
+  public void render(LabelGeometry geometry, int x, int y, boolean rotated, LabelCanvas canvas, String text) {
+    Scratch scratch = SCRATCH.get();
+    if (rotated) {
+      scratch.rotation.setTransform(-1d, 0d, 0d, -1d, 2d * x + geometry.getWidth(), 2d * y + geometry.getHeight());
+    }
+    canvas.fillBackground(geometry, x, y, rotated);
+    renderText(scratch, canvas, text, x, y, rotated, geometry);
   }
 
-  private Dimension getQuadrangleBounds() {
-    double w = Math.max(topDiameter, bottomDiameter) - insetsLeft - insetsRight;
-    double h = height - insetsTop - insetsBottom;
-    return new Dimension((int) Math.ceil(w), (int) Math.ceil(h));
+  public void render(int x, int y, Graphics2D g, String text) {
+    render(geometry, x, y, g, text);
   }
 
   public Dimension getBounds() {
-    if (coveredAngle == 0d) {
-      return getQuadrangleBounds();
-    } else {
-      if (topDiameter == bottomDiameter) {
-        return getCylinderBounds();
-      } else {
-        return getConeBounds();
-      }
-    }
+    return geometry.getBounds();
   }
 
   public void validate() {
-    if (dpi <= 0d) {
-      throw new IllegalStateException("DPI must be greater than 0.");
-    }
-    if (topDiameter <= 0d) {
-      throw new IllegalStateException("Top diameter must be greater than 0.");
-    }
-    if (bottomDiameter <= 0d) {
-      throw new IllegalStateException("Bottom diameter must be greater than 0.");
-    }
-    if (height < 0d) {
-      throw new IllegalStateException("Height must be greater or equal 0.");
-    }
-    if ((height == 0d) && (coveredAngle <= 0d)) {
-      throw new IllegalStateException("Covered angle must be greater than 0.");
-    } else if (coveredAngle < 0d) {
-      throw new IllegalStateException("Covered angle must be greater or equal 0.");
-    }
-    if (coveredAngle > 360d) {
-      throw new IllegalStateException("Covered angle must be less or equal 360.");
-    }
-    if (insetsTop < 0d || insetsLeft < 0d || insetsBottom < 0d || insetsRight < 0d) {
-      throw new IllegalStateException("Insets must be greater or equal 0.");
-    }
-    if (fontSize <= 0d) {
-      throw new IllegalStateException("Font size must be greater than 0.");
-    }
-    if (fontReductionStep <= 0d) {
-      throw new IllegalStateException("Font reduction step must be greater than 0.");
-    }
-    if (horizontalMargin < 0d) {
-      throw new IllegalStateException("Horizontal margin must be greater or equal 0.");
-    }
-    if (verticalMargin < 0d) {
-      throw new IllegalStateException("Vertical margin must be greater or equal 0.");
-    }
+    geometry.validate();
   }
 
   public void configure(LabelSet set, double dpi) {
-    this.dpi = dpi;
-    topDiameter = Util.mmToDots(set.getTopDiameter(), dpi);
-    bottomDiameter = Util.mmToDots(set.getBottomDiameter(), dpi);
-    height = Util.mmToDots(set.getHeight(), dpi);
-    coveredAngle = set.getCoveredAngle();
-    if (set.getInsets() != null) {
-      insetsTop = Util.mmToDots(set.getInsets().getTop(), dpi);
-      insetsLeft = Util.mmToDots(set.getInsets().getLeft(), dpi);
-      insetsBottom = Util.mmToDots(set.getInsets().getBottom(), dpi);
-      insetsRight = Util.mmToDots(set.getInsets().getRight(), dpi);
-    } else {
-      insetsTop = 0d;
-      insetsLeft = 0d;
-      insetsBottom = 0d;
-      insetsRight = 0d;
-    }
-    font = set.getFont().createFont();
-    fontSize = Util.mmToDots(set.getFont().getSize(), dpi);
-    fontReductionStep = Util.mmToDots(set.getFont().getReductionStep(), dpi);
-    horizontalMargin = Util.mmToDots(set.getFont().getHorizontalMargin(), dpi);
-    verticalMargin = Util.mmToDots(set.getFont().getVerticalMargin(), dpi);
-    backgroundPaint = set.getBackgroundPaint().createPaint();
-    textPaint = set.getTextPaint().createPaint();
+    geometry = LabelGeometry.compile(set, dpi);
   }
 
-  @FunctionalInterface
-  private interface GlyphTransformer {
-
-    AffineTransform getTransform(Rectangle2D glyphBounds, double progress);
-
+  public LabelGeometry getGeometry() {
+    return geometry;
   }
 
-  private void calculateArc() {
-    happy = topDiameter < bottomDiameter;
-    shorterRadius = (happy ? topDiameter : bottomDiameter) / 2d;
-    longerRadius = (happy ? bottomDiameter : topDiameter) / 2d;
-    angle = coveredAngle;
-
-    if (height > 0d) {
-      double radiusDiff = longerRadius - shorterRadius;
-      double scaleRatio = shorterRadius / radiusDiff;
-      double h = Math.sqrt((height * height) + (radiusDiff * radiusDiff));
-      shorterRadius = h * scaleRatio;
-      longerRadius = h + shorterRadius;
-      double fullArc = ((happy ? topDiameter : bottomDiameter) * 360d) / (shorterRadius * 2d);
-      angle = (angle * fullArc) / 360d;
-    }
-
-    if (insetsTop > 0d || insetsBottom > 0d) {
-      shorterRadius += happy ? insetsTop : insetsBottom;
-      longerRadius -= happy ? insetsBottom : insetsTop;
-    }
-
-    if (insetsLeft > 0d || insetsRight > 0d) {
-      double centerRadius = (shorterRadius + longerRadius) / 2d;
-      double centerLength = (angle * 2d * Math.PI * centerRadius) / 360d;
-      double adjustedLength = centerLength - insetsLeft - insetsRight;
-      angle = (angle * adjustedLength) / centerLength;
+  /**
+   * Buffers reused by the labels rendered on one thread. Canvases are not
+   * called back into the renderer, so a thread only uses them for one label
+   * at a time.
+   */
+  private static final class Scratch {
+
+    private final AffineTransform transform = new AffineTransform();
+    private final AffineTransform rotation = new AffineTransform();
+    private final GraphicsCanvas graphicsCanvas = new GraphicsCanvas();
+    private GlyphCache.Glyph[] glyphs = new GlyphCache.Glyph[32];
+    private double[] glyphX = new double[32];
+    private double[] glyphWidth = new double[32];
+
+    private void ensureCapacity(int n) {
+      if (glyphs.length < n) {
+        int size = Math.max(n, glyphs.length * 2);
+        glyphs = new GlyphCache.Glyph[size];
+        glyphX = new double[size];
+        glyphWidth = new double[size];
+      }
     }
 
-    double halfAngle = angle / 2d;
-    startAngle = happy ? 270d - halfAngle : 90d + halfAngle;
-    endAngle = happy ? 270d + halfAngle : 90d - halfAngle;
   }
 
-  private Arc2D.Double createUpperArc(double x, double y) {
-    Arc2D.Double upperArc = new Arc2D.Double();
-    upperArc.setArcByCenter(x, y, happy ? shorterRadius : longerRadius, startAngle, happy ? angle : -angle, Arc2D.OPEN);
-    return upperArc;
-  }
+  /**
+   * Canvas drawing into the graphics set for the current label, the glyphs of
+   * a label collected into one path filled at its end.
+   */
+  private static final class GraphicsCanvas implements LabelCanvas {
 
-  private Arc2D.Double createLowerArc(double x, double y) {
-    Arc2D.Double lowerArc = new Arc2D.Double();
-    lowerArc.setArcByCenter(x, y, happy ? longerRadius : shorterRadius, endAngle, happy ? -angle : angle, Arc2D.OPEN);
-    return lowerArc;
-  }
+    private final Path2D.Float textPath = new Path2D.Float(Path2D.WIND_NON_ZERO, 1024);
+    private float[] points = new float[256];
+    private Graphics2D g;
+    private boolean backgroundStamps;
 
-  private Dimension getBounds(Arc2D.Double upperArc, Arc2D.Double lowerArc) {
-    Rectangle2D upperArcBounds = upperArc.getBounds2D();
-    Rectangle2D lowerArcBounds = lowerArc.getBounds2D();
+    @Override
+    public FontRenderContext getFontRenderContext() {
+      return g.getFontRenderContext();
+    }
 
-    int minX = (int) Math.floor(Math.min(upperArcBounds.getMinX(), lowerArcBounds.getMinX()));
-    int minY = (int) Math.floor(Math.min(upperArcBounds.getMinY(), lowerArcBounds.getMinY()));
-    int maxX = (int) Math.ceil(Math.max(upperArcBounds.getMaxX(), lowerArcBounds.getMaxX()));
-    int maxY = (int) Math.ceil(Math.max(upperArcBounds.getMaxY(), lowerArcBounds.getMaxY()));
+    @Override
+    public void fillBackground(LabelGeometry geometry, int x, int y, boolean rotated) {
+      AffineTransform t = g.getTransform();
+      if (rotated) {
+        g.setPaint(geometry.getBackgroundPaint());
+        g.translate(x + geometry.getWidth(), y + geometry.getHeight());
+        g.scale(-1d, -1d);
+        try {
+          g.fill(geometry.getOutline());
+        } finally {
+          g.setTransform(t);
+        }
+      } else if (backgroundStamps && ((t.getType() & ~AffineTransform.TYPE_TRANSLATION) == 0)) {
+        double dx = t.getTranslateX() + x;
+        double dy = t.getTranslateY() + y;
+        double ix = Math.floor(dx);
+        double iy = Math.floor(dy);
+        int phaseX = Math.min(LabelGeometry.PHASES - 1, (int) ((dx - ix) * LabelGeometry.PHASES));
+        int phaseY = Math.min(LabelGeometry.PHASES - 1, (int) ((dy - iy) * LabelGeometry.PHASES));
+        boolean antialiased = g.getRenderingHint(RenderingHints.KEY_ANTIALIASING) == RenderingHints.VALUE_ANTIALIAS_ON;
+        g.translate(ix - t.getTranslateX(), iy - t.getTranslateY());
+        try {
+          g.drawImage(geometry.getBackgroundStamp(phaseX, phaseY, antialiased), 0, 0, null);
+        } finally {
+          g.setTransform(t);
+        }
+      } else {
+        g.setPaint(geometry.getBackgroundPaint());
+        g.translate(x, y);
+        try {
+          g.fill(geometry.getOutline());
+        } finally {
+          g.translate(-x, -y);
+        }
+      }
+      g.setPaint(geometry.getTextPaint());
+    }
 
-    int w = maxX - minX;
-    if (w % 2 == 1) {
-      w++;
+    @Override
+    public void fillGlyph(LabelGeometry geometry, GlyphCache.Glyph glyph, AffineTransform transform) {
+      float[] coordinates = glyph.getCoordinates();
+      if (points.length < coordinates.length) {
+        points = new float[Math.max(coordinates.length, points.length * 2)];
+      }
+      transform.transform(coordinates, 0, points, 0, coordinates.length / 2);
+      byte[] types = glyph.getSegmentTypes();
+      int j = 0;
+      for (byte type : types) {
+        if (type == PathIterator.SEG_MOVETO) {
+          textPath.moveTo(points[j], points[j + 1]);
+          j += 2;
+        } else if (type == PathIterator.SEG_LINETO) {
+          textPath.lineTo(points[j], points[j + 1]);
+          j += 2;
+        } else {
+          textPath.closePath();
+        }
+      }
     }
 
-    int h = maxY - minY;
-    if (h % 2 == 1) {
-      h++;
+    @Override
+    public void endText(LabelGeometry geometry) {
+      try {
+        g.fill(textPath);
+      } finally {
+        textPath.reset();
+      }
     }
 
-    return new Dimension(w, h);
   }
 
 }
@@ -0,0 +1,625 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.List;
+import pl.derwinski.labeler.data.LabelFile;
+import pl.derwinski.labeler.data.LabelSet;
+import pl.derwinski.labeler.data.Margins;
+
+/**
+ * Positions of all labels of a file on its pages, computed from the label
+ * bounds, page margins and spacing only, without rendering anything.
+ * Placements are stored in page order, and within a page from top to bottom,
+ * as parallel arrays indexed by placement.
+ *
+ * @author Dominik Derwiński
+ */
+public final class LayoutPlan {
+
+  private static final int ROLL_HEIGHT = Integer.MAX_VALUE / 4;
+
+  /**
+   * Lays out all labels of the file on pages, packed by their outlines if
+   * dense packing is enabled, or in rows of label bounds otherwise. On a roll
+   * all labels are placed on a single page, as high as its content.
+   */
+  public static LayoutPlan create(LabelFile labelFile) {
+    LayoutPlan plan = new LayoutPlan(labelFile);
+    int spaceX = (int) Math.ceil(Util.mmToDots(labelFile.getColumnSpacing(), labelFile.getDpi()));
+    int spaceY = (int) Math.ceil(Util.mmToDots(labelFile.getRowSpacing(), labelFile.getDpi()));
+    if (labelFile.isDensePacking()) {
+      plan.layoutPacked(spaceX, spaceY);
+    } else {
+      plan.layoutRows(spaceX, spaceY);
+    }
+    if (plan.roll) {
+      int bottom = plan.clipY;
+      for (int i = 0; i < plan.count; i++) {
+        bottom = Math.max(bottom, plan.ys[i] + plan.getGeometry(i).getHeight());
+      }
+      plan.clipHeight = Math.max(1, bottom - plan.clipY);
+      plan.pageHeight = plan.clipY + plan.clipHeight + plan.bottomMargin;
+    }
+    return plan;
+  }
+
+  private final double dpi;
+  private final int pageWidth;
+  private final boolean roll;
+  private final int segmentHeight;
+  private final int bottomMargin;
+  private final int clipX;
+  private final int clipY;
+  private final int clipWidth;
+  private int pageHeight;
+  private int clipHeight;
+  private final LabelGeometry[] geometries;
+  private final String[][] texts;
+  private final int[] setStarts;
+  private int count;
+  private int pageCount;
+  private int[] pageStarts;
+  private int[] pages;
+  private int[] xs;
+  private int[] ys;
+  private int[] setIndices;
+  private int[] labelIndices;
+  private boolean[] rotations;
+
+  private LayoutPlan(LabelFile labelFile) {
+    dpi = labelFile.getDpi();
+    pageWidth = (int) Math.ceil(Util.mmToDots(labelFile.getPageWidth(), dpi));
+    roll = labelFile.isRoll();
+    segmentHeight = (int) Math.ceil(Util.mmToDots(labelFile.getPageHeight(), dpi));
+    pageHeight = roll ? ROLL_HEIGHT : segmentHeight;
+    int startX = 0;
+    int startY = 0;
+    int endY = 0;
+    int availableWidth = pageWidth;
+    int availableHeight = pageHeight;
+    Margins pageMargins = labelFile.getPageMargins();
+    if (pageMargins != null) {
+      startX = (int) Math.ceil(Util.mmToDots(pageMargins.getLeft(), dpi));
+      startY = (int) Math.ceil(Util.mmToDots(pageMargins.getTop(), dpi));
+      endY = (int) Math.ceil(Util.mmToDots(pageMargins.getBottom(), dpi));
+      availableWidth -= startX;
+      availableWidth -= (int) Math.ceil(Util.mmToDots(pageMargins.getRight(), dpi));
+      availableHeight -= startY;
+      availableHeight -= endY;
+    }
+    bottomMargin = endY;
+    clipX = startX;
+    clipY = startY;
+    clipWidth = availableWidth;
+    clipHeight = availableHeight;
+    List<LabelSet> labelSets = labelFile.getLabelSets();
+    geometries = new LabelGeometry[labelSets.size()];
+    texts = new String[labelSets.size()][];
+    setStarts = new int[labelSets.size() + 1];
+    for (int s = 0; s < geometries.length; s++) {
+      LabelSet labelSet = labelSets.get(s);
+      geometries[s] = LabelGeometry.compile(labelSet, dpi);
+      geometries[s].validate();
+      texts[s] = labelSet.getLabels().toArray(new String[0]);
+      setStarts[s + 1] = setStarts[s] + texts[s].length;
+    }
+    int capacity = Math.max(16, setStarts[geometries.length]);
+    pageStarts = new int[16];
+    pages = new int[capacity];
+    xs = new int[capacity];
+    ys = new int[capacity];
+    setIndices = new int[capacity];
+    labelIndices = new int[capacity];
+    rotations = new boolean[capacity];
+  }
+
+  /**
+   * Places labels in rows of their bounds, a new row being started for every
+   * label set.
+   */
+  private void layoutRows(int spaceX, int spaceY) {
+    int startX = clipX;
+    int startY = clipY;
+    int availableWidth = clipWidth;
+    int availableHeight = clipHeight;
+    int x = startX;
+    int y = startY;
+    int page = 0;
+    for (int s = 0; s < geometries.length; s++) {
+      Dimension bounds = geometries[s].getBounds();
+      bounds.width += spaceX;
+      bounds.height += spaceY;
+      for (int l = 0; l < texts[s].length; l++) {
+        if (x + bounds.width > availableWidth) {
+          x = startX;
+          y += bounds.height;
+        }
+        if (y + bounds.height > availableHeight) {
+          if (pageStarts[page] == count) {
+            throw new IllegalStateException("Label does not fit on the page.");
+          }
+          startPage(++page, count);
+          x = startX;
+          y = startY;
+        }
+        add(page, x, y, s, l, false);
+        x += bounds.width;
+      }
+      x = startX;
+      y += bounds.height;
+    }
+    finish(page);
+  }
+
+  /**
+   * Places labels of all sets in shared rows, each as far left as its outline
+   * allows, curved ones turned by 180 degrees when that brings them closer.
+   * Each row is then moved up as far as the outlines of the rows above allow.
+   */
+  private void layoutPacked(int spaceX, int spaceY) {
+    Profile[] upright = new Profile[geometries.length];
+    Profile[] rotated = new Profile[geometries.length];
+    int maxWidth = 0;
+    int maxHeight = 0;
+    for (int s = 0; s < geometries.length; s++) {
+      if (texts[s].length > 0) {
+        upright[s] = Profile.of(geometries[s], false);
+        if (geometries[s].getType() == LabelGeometry.CONE) {
+          rotated[s] = Profile.of(geometries[s], true);
+        }
+        maxWidth = Math.max(maxWidth, upright[s].width);
+        maxHeight = Math.max(maxHeight, upright[s].height);
+      }
+    }
+    int right = clipX + clipWidth;
+    int[] rowEdges = new int[maxHeight];
+    int[] skyline = new int[pageWidth + maxWidth];
+    Arrays.fill(rowEdges, Integer.MIN_VALUE);
+    Arrays.fill(skyline, Integer.MIN_VALUE);
+    int page = 0;
+    int rowStart = 0;
+    int rowY = clipY;
+    for (int s = 0; s < geometries.length; s++) {
+      int width = geometries[s].getWidth();
+      for (int l = 0; l < texts[s].length; l++) {
+        boolean rotate = false;
+        int x = upright[s].fitX(rowEdges, clipX, spaceX);
+        if (rotated[s] != null) {
+          int rx = rotated[s].fitX(rowEdges, clipX, spaceX);
+          if (rx < x) {
+            rotate = true;
+            x = rx;
+          }
+        }
+        if ((x + width > right) && (count > rowStart)) {
+          page = placeRow(rowStart, page, rowY, upright, rotated, skyline, spaceY);
+          rowY = ys[rowStart];
+          rowStart = count;
+          Arrays.fill(rowEdges, Integer.MIN_VALUE);
+          rotate = false;
+          x = clipX;
+        }
+        if (x + width > right) {
+          throw new IllegalStateException("Label does not fit on the page.");
+        }
+        add(page, x, 0, s, l, rotate);
+        (rotate ? rotated[s] : upright[s]).extendRow(rowEdges, x);
+      }
+    }
+    if (count > rowStart) {
+      page = placeRow(rowStart, page, rowY, upright, rotated, skyline, spaceY);
+    }
+    finish(page);
+  }
+
+  /**
+   * Moves the labels of the row starting at the given placement down to the
+   * first position clear of the rows above, on the next page if the row does
+   * not fit on the current one. Returns the page of the row.
+   */
+  private int placeRow(int rowStart, int page, int minY, Profile[] upright, Profile[] rotated, int[] skyline, int spaceY) {
+    int y = rowY(rowStart, minY, upright, rotated, skyline, spaceY);
+    if (rowBottom(rowStart, y) > clipY + clipHeight) {
+      if (pageStarts[page] == rowStart) {
+        throw new IllegalStateException("Label does not fit on the page.");
+      }
+      startPage(++page, rowStart);
+      Arrays.fill(skyline, Integer.MIN_VALUE);
+      y = clipY;
+      if (rowBottom(rowStart, y) > clipY + clipHeight) {
+        throw new IllegalStateException("Label does not fit on the page.");
+      }
+    }
+    for (int i = rowStart; i < count; i++) {
+      pages[i] = page;
+      ys[i] = y;
+      (rotations[i] ? rotated : upright)[setIndices[i]].extendSkyline(skyline, xs[i], y);
+    }
+    return page;
+  }
+
+  private int rowY(int rowStart, int minY, Profile[] upright, Profile[] rotated, int[] skyline, int spaceY) {
+    int y = minY;
+    for (int i = rowStart; i < count; i++) {
+      y = Math.max(y, (rotations[i] ? rotated : upright)[setIndices[i]].fitY(skyline, xs[i], spaceY));
+    }
+    return y;
+  }
+
+  private int rowBottom(int rowStart, int y) {
+    int bottom = y;
+    for (int i = rowStart; i < count; i++) {
+      bottom = Math.max(bottom, y + geometries[setIndices[i]].getHeight());
+    }
+    return bottom;
+  }
+
+  private void add(int page, int x, int y, int setIndex, int labelIndex, boolean rotated) {
+    if (count == xs.length) {
+      int capacity = count * 2;
+      pages = Arrays.copyOf(pages, capacity);
+      xs = Arrays.copyOf(xs, capacity);
+      ys = Arrays.copyOf(ys, capacity);
+      setIndices = Arrays.copyOf(setIndices, capacity);
+      labelIndices = Arrays.copyOf(labelIndices, capacity);
+      rotations = Arrays.copyOf(rotations, capacity);
+    }
+    pages[count] = page;
+    xs[count] = x;
+    ys[count] = y;
+    setIndices[count] = setIndex;
+    labelIndices[count] = labelIndex;
+    rotations[count] = rotated;
+    count++;
+  }
+
+  private void startPage(int page, int start) {
+    if (page + 1 >= pageStarts.length) {
+      pageStarts = Arrays.copyOf(pageStarts, pageStarts.length * 2);
+    }
+    pageStarts[page] = start;
+  }
+
+  private void finish(int lastPage) {
+    pageCount = lastPage + 1;
+    pageStarts = Arrays.copyOf(pageStarts, pageCount + 1);
+    pageStarts[pageCount] = count;
+  }
+
+  public double getDpi() {
+    return dpi;
+  }
+
+  public int getPageWidth() {
+    return pageWidth;
+  }
+
+  /**
+   * Returns the page height, which on a roll is the height of all labels
+   * with the top and bottom margins.
+   */
+  public int getPageHeight() {
+    return pageHeight;
+  }
+
+  public boolean isRoll() {
+    return roll;
+  }
+
+  /**
+   * Returns the height of the segments a roll is cut into by paged outputs,
+   * or the page height if this is not a roll.
+   */
+  public int getSegmentHeight() {
+    return segmentHeight;
+  }
+
+  /**
+   * Returns the number of segments paged outputs write, which is the number of
+   * roll segments or the page count.
+   */
+  public int getSegmentCount() {
+    if (roll) {
+      return (pageHeight + segmentHeight - 1) / segmentHeight;
+    }
+    return pageCount;
+  }
+
+  public int getSegmentPage(int segment) {
+    return roll ? 0 : segment;
+  }
+
+  public int getSegmentTop(int segment) {
+    return roll ? segment * segmentHeight : 0;
+  }
+
+  /**
+   * Returns the height of the given segment, which for the last roll segment
+   * may be less than the segment height.
+   */
+  public int getSegmentRows(int segment) {
+    return roll ? Math.min(segmentHeight, pageHeight - segment * segmentHeight) : pageHeight;
+  }
+
+  public int getClipX() {
+    return clipX;
+  }
+
+  public int getClipY() {
+    return clipY;
+  }
+
+  public int getClipWidth() {
+    return clipWidth;
+  }
+
+  public int getClipHeight() {
+    return clipHeight;
+  }
+
+  /**
+   * Returns the number of pages, at least 1 even if there are no labels.
+   */
+  public int getPageCount() {
+    return pageCount;
+  }
+
+  /**
+   * Returns the number of placed labels.
+   */
+  public int getCount() {
+    return count;
+  }
+
+  public int getSetCount() {
+    return geometries.length;
+  }
+
+  public LabelGeometry getSetGeometry(int setIndex) {
+    return geometries[setIndex];
+  }
+
+  /**
+   * Returns the index of the first placement on the given page.
+   */
+  public int getPageStart(int page) {
+    return pageStarts[page];
+  }
+
+  /**
+   * Returns the index after the last placement on the given page.
+   */
+  public int getPageEnd(int page) {
+    return pageStarts[page + 1];
+  }
+
+  /**
+   * Returns the index of the placement of the given label of the given set.
+   */
+  public int indexOf(int setIndex, int labelIndex) {
+    if ((labelIndex < 0) || (labelIndex >= texts[setIndex].length)) {
+      throw new IndexOutOfBoundsException(String.format("Label index %d out of bounds.", labelIndex));
+    }
+    return setStarts[setIndex] + labelIndex;
+  }
+
+  public int getPage(int index) {
+    return pages[index];
+  }
+
+  public int getX(int index) {
+    return xs[index];
+  }
+
+  public int getY(int index) {
+    return ys[index];
+  }
+
+  public int getSetIndex(int index) {
+    return setIndices[index];
+  }
+
+  public int getLabelIndex(int index) {
+    return labelIndices[index];
+  }
+
+  /**
+   * Returns whether the label is turned by 180 degrees within its bounds.
+   */
+  public boolean isRotated(int index) {
+    return rotations[index];
+  }
+
+  public LabelGeometry getGeometry(int index) {
+    return geometries[setIndices[index]];
+  }
+
+  public String getText(int index) {
+    return texts[setIndices[index]][labelIndices[index]];
+  }
+
+  /**
+   * Returns a 64-bit hash of everything the plan puts on the given page: the
+   * page size and clip, and every label with its geometry, position and text.
+   * Equal pages of plans of separately loaded files have equal hashes, so
+   * only the pages with a different hash need to be rendered again.
+   */
+  public long getPageHash(int page) {
+    long h = Util.hash(0L, Double.doubleToLongBits(dpi));
+    h = Util.hash(h, pageWidth);
+    h = Util.hash(h, pageHeight);
+    h = Util.hash(h, roll ? segmentHeight : 0);
+    h = Util.hash(h, clipX);
+    h = Util.hash(h, clipY);
+    h = Util.hash(h, clipWidth);
+    h = Util.hash(h, clipHeight);
+    for (int i = pageStarts[page]; i < pageStarts[page + 1]; i++) {
+      h = Util.hash(h, getGeometry(i).getContentHash());
+      h = Util.hash(h, ((long) xs[i] << 32) | (ys[i] & 0xFFFFFFFFL));
+      h = Util.hash(h, rotations[i] ? 1L : 0L);
+      h = Util.hash(h, getText(i));
+    }
+    return h;
+  }
+
+  /**
+   * Returns the index of the first placement at or after the given one on its
+   * page, which reaches below the given row, or the page end.
+   */
+  public int skipAbove(int index, int pageEnd, int top) {
+    while ((index < pageEnd) && (ys[index] + geometries[setIndices[index]].getHeight() <= top)) {
+      index++;
+    }
+    return index;
+  }
+
+  /**
+   * Returns the first index from the given one, of a label placed at or below
+   * the given row.
+   */
+  public int skipBelow(int index, int pageEnd, int bottom) {
+    while ((index < pageEnd) && (ys[index] < bottom)) {
+      index++;
+    }
+    return index;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("LayoutPlan [pageWidth=");
+    sb.append(pageWidth);
+    sb.append(", pageHeight=");
+    sb.append(pageHeight);
+    sb.append(", pages=");
+    sb.append(pageCount);
+    sb.append(", labels=");
+    sb.append(count);
+    sb.append("]");
+    return sb.toString();
+  }
+
+  /**
+   * Extent of a label outline along each row and column of its bounds, one
+   * pixel larger like background stamps. Empty rows and columns have the start
+   * after the end.
+   */
+  private static final class Profile {
+
+    private final int width;
+    private final int height;
+    private final int[] left;
+    private final int[] right;
+    private final int[] top;
+    private final int[] bottom;
+
+    private Profile(int width, int height) {
+      this.width = width;
+      this.height = height;
+      left = new int[height];
+      right = new int[height];
+      top = new int[width];
+      bottom = new int[width];
+      Arrays.fill(left, width);
+      Arrays.fill(right, -1);
+      Arrays.fill(top, height);
+      Arrays.fill(bottom, -1);
+    }
+
+    private static Profile of(LabelGeometry geometry, boolean rotated) {
+      BufferedImage mask = new BufferedImage(geometry.getWidth() + 1, geometry.getHeight() + 1, BufferedImage.TYPE_BYTE_GRAY);
+      Graphics2D g = mask.createGraphics();
+      try {
+        LabelRenderer.initGraphics(g);
+        g.setColor(Color.WHITE);
+        if (rotated) {
+          g.translate(geometry.getWidth(), geometry.getHeight());
+          g.scale(-1d, -1d);
+        }
+        g.fill(geometry.getOutline());
+      } finally {
+        g.dispose();
+      }
+      Profile profile = new Profile(mask.getWidth(), mask.getHeight());
+      byte[] data = ((DataBufferByte) mask.getRaster().getDataBuffer()).getData();
+      for (int y = 0; y < profile.height; y++) {
+        for (int x = 0; x < profile.width; x++) {
+          if (data[y * profile.width + x] != 0) {
+            profile.left[y] = Math.min(profile.left[y], x);
+            profile.right[y] = Math.max(profile.right[y], x);
+            profile.top[x] = Math.min(profile.top[x], y);
+            profile.bottom[x] = Math.max(profile.bottom[x], y);
+          }
+        }
+      }
+      return profile;
+    }
+
+    /**
+     * Returns the leftmost position at least the spacing right of the row
+     * edges, which hold the rightmost filled pixel of each row of the row.
+     */
+    private int fitX(int[] rowEdges, int minX, int spaceX) {
+      int x = minX;
+      for (int y = 0; y < height; y++) {
+        if ((left[y] <= right[y]) && (rowEdges[y] != Integer.MIN_VALUE)) {
+          x = Math.max(x, rowEdges[y] + 1 + spaceX - left[y]);
+        }
+      }
+      return x;
+    }
+
+    private void extendRow(int[] rowEdges, int x) {
+      for (int y = 0; y < height; y++) {
+        if (left[y] <= right[y]) {
+          rowEdges[y] = Math.max(rowEdges[y], x + right[y]);
+        }
+      }
+    }
+
+    /**
+     * Returns the topmost position at least the spacing below the skyline,
+     * which holds the lowest filled pixel of each column of the page.
+     */
+    private int fitY(int[] skyline, int x, int spaceY) {
+      int y = Integer.MIN_VALUE;
+      for (int c = 0; c < width; c++) {
+        if ((top[c] <= bottom[c]) && (skyline[x + c] != Integer.MIN_VALUE)) {
+          y = Math.max(y, skyline[x + c] + 1 + spaceY - top[c]);
+        }
+      }
+      return y;
+    }
+
+    private void extendSkyline(int[] skyline, int x, int y) {
+      for (int c = 0; c < width; c++) {
+        if (top[c] <= bottom[c]) {
+          skyline[x + c] = Math.max(skyline[x + c], y + bottom[c]);
+        }
+      }
+    }
+
+  }
+
+}
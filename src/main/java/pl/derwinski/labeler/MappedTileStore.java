@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Fixed size slots of tile data kept off the heap, in a sparse temporary file
+ * mapped into memory and paged by the operating system. The file is deleted
+ * when the store is closed.
+ *
+ * @author Dominik Derwiński
+ */
+public final class MappedTileStore implements Closeable {
+
+  private static final long MAX_CHUNK_SIZE = 1L << 30;
+
+  private final int slotBytes;
+  private final int slotsPerChunk;
+  private final FileChannel channel;
+  private final MappedByteBuffer[] chunks;
+  private final IntBuffer[] intChunks;
+
+  public MappedTileStore(int slots, int slotBytes) throws IOException {
+    if ((slots <= 0) || (slotBytes <= 0) || ((slotBytes & 3) != 0)) {
+      throw new IllegalArgumentException("Slot count and size must be greater than 0, size a multiple of 4.");
+    }
+    this.slotBytes = slotBytes;
+    this.slotsPerChunk = (int) Math.max(1L, MAX_CHUNK_SIZE / slotBytes);
+    Path path = Files.createTempFile("labeler", ".tiles");
+    this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SPARSE, StandardOpenOption.DELETE_ON_CLOSE);
+    int count = (slots + slotsPerChunk - 1) / slotsPerChunk;
+    this.chunks = new MappedByteBuffer[count];
+    this.intChunks = new IntBuffer[count];
+    try {
+      for (int i = 0; i < count; i++) {
+        long size = (long) Math.min(slotsPerChunk, slots - i * slotsPerChunk) * slotBytes;
+        chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * slotsPerChunk * slotBytes, size);
+        chunks[i].order(ByteOrder.nativeOrder());
+        intChunks[i] = chunks[i].asIntBuffer();
+      }
+    } catch (IOException | RuntimeException ex) {
+      channel.close();
+      throw ex;
+    }
+  }
+
+  public int getSlotBytes() {
+    return slotBytes;
+  }
+
+  public void write(int slot, int[] data) {
+    intChunks[slot / slotsPerChunk].put((slot % slotsPerChunk) * (slotBytes / 4), data, 0, slotBytes / 4);
+  }
+
+  public void write(int slot, byte[] data) {
+    chunks[slot / slotsPerChunk].put((slot % slotsPerChunk) * slotBytes, data, 0, slotBytes);
+  }
+
+  public void read(int slot, int[] data) {
+    intChunks[slot / slotsPerChunk].get((slot % slotsPerChunk) * (slotBytes / 4), data, 0, slotBytes / 4);
+  }
+
+  public void read(int slot, byte[] data) {
+    chunks[slot / slotsPerChunk].get((slot % slotsPerChunk) * slotBytes, data, 0, slotBytes);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Provides the stream an encoded page is written to. Pages are opened in
+ * order, and each stream is closed by the caller once the page is complete. A
+ * null stream skips the page.
+ *
+ * @author Dominik Derwiński
+ */
+@FunctionalInterface
+public interface PageOutput {
+
+  OutputStream openPage(int pageIndex) throws IOException;
+
+}
@@ -16,27 +16,33 @@
  */
 package pl.derwinski.labeler;
 
-import java.awt.Dimension;
+import java.awt.AlphaComposite;
+import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Iterator;
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageTypeSpecifier;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.metadata.IIOInvalidTreeException;
-import javax.imageio.metadata.IIOMetadata;
-import javax.imageio.metadata.IIOMetadataNode;
-import javax.imageio.stream.ImageOutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.Deflater;
 import pl.derwinski.labeler.data.LabelFile;
-import pl.derwinski.labeler.data.LabelSet;
-import pl.derwinski.labeler.data.Margins;
 
 /**
  *
@@ -44,108 +50,1238 @@ import pl.derwinski.labeler.data.Margins;
  */
 public final class PageRenderer {
 
+  private static final int SLICE_THRESHOLD = 16;
+  private static final int STRIP_HEIGHT = 256;
+
+  private ForkJoinPool pool;
+  private int bandHeight;
+  private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+  private int pixelFormat = PixelFormat.AUTO;
+  private StampCache stampCache = new StampCache(StampCache.DEFAULT_MAX_BYTES);
+  private StampCache.Statistics stampStatistics;
+  private long mappedThreshold = Runtime.getRuntime().maxMemory() / 4L;
+  private RenderProgress progress;
+  private BitSet selectedPages;
+  private LayoutPlan plan;
+
   public PageRenderer() {
 
   }
 
-  public void render(LabelFile labelFile, File file) throws IOException {
-    try (FileOutputStream fos = new FileOutputStream(file, false);
-            BufferedOutputStream bos = new BufferedOutputStream(fos)) {
-      render(labelFile, bos);
+  public ForkJoinPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Enables parallel rendering on the given pool, or disables it if null. Up to
+   * as many pages as the pool parallelism are rendered at the same time, and
+   * the labels of each page are split between workers as well, unless the
+   * pixel format is binary. Pages are still passed to the sink one by one, in
+   * order.
+   */
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  public int getBandHeight() {
+    return bandHeight;
+  }
+
+  /**
+   * Enables banded rendering of file and stream output, or disables it if 0.
+   * Pages are then rasterized in strips of the given height, which are encoded
+   * as soon as they are complete, instead of allocating the whole page.
+   */
+  public void setBandHeight(int bandHeight) {
+    if (bandHeight < 0) {
+      throw new IllegalArgumentException("Band height must be greater or equal 0.");
+    }
+    this.bandHeight = bandHeight;
+  }
+
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * Sets the deflate level of PNG output, from 0 (fastest) to 9 (smallest), or
+   * -1 for the default.
+   */
+  public void setCompressionLevel(int compressionLevel) {
+    if ((compressionLevel < -1) || (compressionLevel > 9)) {
+      throw new IllegalArgumentException("Compression level must be between -1 and 9.");
+    }
+    this.compressionLevel = compressionLevel;
+  }
+
+  public int getPixelFormat() {
+    return pixelFormat;
+  }
+
+  /**
+   * Sets the pixel format of rendered pages, one of the {@link PixelFormat}
+   * constants. By default the smallest format holding all colours of the file
+   * is chosen, see {@link PixelFormat#select(LabelFile)}.
+   */
+  public void setPixelFormat(int pixelFormat) {
+    if ((pixelFormat < PixelFormat.AUTO) || (pixelFormat > PixelFormat.BINARY)) {
+      throw new IllegalArgumentException(String.format("Unknown pixel format %d.", pixelFormat));
+    }
+    this.pixelFormat = pixelFormat;
+  }
+
+  public StampCache getStampCache() {
+    return stampCache;
+  }
+
+  /**
+   * Sets the cache of rasterized labels reused for repeated texts, or
+   * disables it if null, so every label is drawn from scratch.
+   */
+  public void setStampCache(StampCache stampCache) {
+    this.stampCache = stampCache;
+  }
+
+  /**
+   * Returns the stamp statistics of the last raster job, or null.
+   */
+  public StampCache.Statistics getStampStatistics() {
+    return stampStatistics;
+  }
+
+  public long getMappedThreshold() {
+    return mappedThreshold;
+  }
+
+  /**
+   * Sets the raster size in bytes above which unbanded PNG pages are kept in a
+   * memory-mapped temporary file instead of the heap, with only the tiles
+   * being drawn into resident. By default a quarter of the maximum heap.
+   */
+  public void setMappedThreshold(long mappedThreshold) {
+    if (mappedThreshold < 0L) {
+      throw new IllegalArgumentException("Mapped threshold must be greater or equal 0.");
     }
+    this.mappedThreshold = mappedThreshold;
+  }
+
+  public RenderProgress getProgress() {
+    return progress;
+  }
+
+  /**
+   * Sets the progress the following renders report to and check for
+   * cancellation between labels, bands and pages, or disables both if null.
+   */
+  public void setProgress(RenderProgress progress) {
+    this.progress = progress;
+  }
+
+  public BitSet getSelectedPages() {
+    return selectedPages;
   }
 
+  /**
+   * Restricts the following raster and SVG renders to the pages of the given
+   * indices, roll segments counted as pages, or renders all pages if null.
+   * Other pages are neither drawn nor passed to the output, so their earlier
+   * files are kept. PDF documents are always written whole.
+   */
+  public void setSelectedPages(BitSet selectedPages) {
+    this.selectedPages = selectedPages;
+  }
+
+  /**
+   * Makes the next render use the given plan, laid out from the same file,
+   * instead of laying the file out again.
+   */
+  void setLayoutPlan(LayoutPlan plan) {
+    this.plan = plan;
+  }
+
+  private LayoutPlan plan(LabelFile labelFile) {
+    LayoutPlan result = plan != null ? plan : LayoutPlan.create(labelFile);
+    plan = null;
+    return result;
+  }
+
+  private boolean isSelected(int pageIndex) {
+    return (selectedPages == null) || selectedPages.get(pageIndex);
+  }
+
+  private int countSelected(int pageCount) {
+    return selectedPages == null ? pageCount : selectedPages.get(0, pageCount).cardinality();
+  }
+
+  private Layout prepare(LabelFile labelFile) {
+    checkCancelled();
+    Layout layout = layout(labelFile, plan(labelFile), pixelFormat);
+    layout.stamps = stampCache;
+    layout.statistics = new StampCache.Statistics();
+    layout.progress = progress;
+    layout.statistics.addLabels(countSelectedLabels(layout.plan));
+    stampStatistics = layout.statistics;
+    return layout;
+  }
+
+  /**
+   * Returns the number of placements on the selected pages, each counted once
+   * however many tiles or bands it is drawn into. A roll counts whole.
+   */
+  private long countSelectedLabels(LayoutPlan plan) {
+    if ((selectedPages == null) || plan.isRoll()) {
+      return plan.getCount();
+    }
+    long count = 0L;
+    for (int p = 0; p < plan.getPageCount(); p++) {
+      if (isSelected(p)) {
+        count += plan.getPageEnd(p) - plan.getPageStart(p);
+      }
+    }
+    return count;
+  }
+
+  private void checkCancelled() {
+    if (progress != null) {
+      progress.checkCancelled();
+    }
+  }
+
+  private void laidOut(int labels, int pages) {
+    if (progress != null) {
+      progress.laidOut(labels, pages);
+    }
+  }
+
+  private void pageRendered() {
+    if (progress != null) {
+      progress.pageRendered();
+    }
+  }
+
+  /**
+   * Returns the output counting the bytes written to it in the progress, if
+   * any.
+   */
+  private PageOutput counted(PageOutput output) {
+    RenderProgress p = progress;
+    if (p == null) {
+      return output;
+    }
+    return pageIndex -> {
+      OutputStream os = output.openPage(pageIndex);
+      return os != null ? new CountingOutputStream(os, p) : null;
+    };
+  }
+
+  private OutputStream counted(OutputStream os) {
+    return progress != null ? new CountingOutputStream(os, progress) : os;
+  }
+
+  private Executor getEncoderExecutor() {
+    return pool != null ? pool : ForkJoinPool.commonPool();
+  }
+
+  /**
+   * Renders the pages into the file, or files numbered after it if there are
+   * several, in the format of its extension: PDF, SVG, TIFF or PNG. Pages are
+   * written to temporary files next to it, which replace the earlier files
+   * only once all are complete, and are deleted if rendering fails or is
+   * cancelled.
+   */
+  public int render(LabelFile labelFile, File file) throws IOException {
+    return renderReplacing(file, part -> renderFile(labelFile, part));
+  }
+
+  private int renderFile(LabelFile labelFile, File file) throws IOException {
+    if (file.getName().toLowerCase().endsWith(".pdf")) {
+      try (FileOutputStream fos = new FileOutputStream(file, false);
+              BufferedOutputStream bos = new BufferedOutputStream(fos)) {
+        return renderPdf(labelFile, bos);
+      }
+    }
+    if (file.getName().toLowerCase().endsWith(".svg")) {
+      return renderSvg(labelFile, new FilePageSink(file, "svg"));
+    }
+    if (file.getName().toLowerCase().endsWith(".tif") || file.getName().toLowerCase().endsWith(".tiff")) {
+      return renderRunLength(labelFile, new FilePageSink(file, file.getName().toLowerCase().endsWith(".tiff") ? "tiff" : "tif"));
+    }
+    FilePageSink sink = new FilePageSink(file);
+    sink.setCompressionLevel(compressionLevel);
+    sink.setExecutor(getEncoderExecutor());
+    if ((bandHeight > 0) || labelFile.isRoll()) {
+      return renderBanded(labelFile, sink);
+    } else {
+      return renderTiled(labelFile, sink);
+    }
+  }
+
+  /**
+   * Renders the only page into the stream as a PNG image. A layout with more
+   * pages, or a selection of more than one, is rejected before anything is
+   * written, render those to a file or a {@link PageOutput} instead.
+   */
   public void render(LabelFile labelFile, OutputStream os) throws IOException {
-    int pageWidth = (int) Math.ceil(Util.mmToDots(labelFile.getPageWidth(), labelFile.getDpi()));
-    int pageHeight = (int) Math.ceil(Util.mmToDots(labelFile.getPageHeight(), labelFile.getDpi()));
-    int startX = 0;
-    int x = 0;
-    int y = 0;
-    int availableWidth = pageWidth;
-    int availableHeight = pageHeight;
-    Margins pageMargins = labelFile.getPageMargins();
-    if (pageMargins != null) {
-      startX = x = (int) Math.ceil(Util.mmToDots(pageMargins.getLeft(), labelFile.getDpi()));
-      y = (int) Math.ceil(Util.mmToDots(pageMargins.getTop(), labelFile.getDpi()));
-      availableWidth -= x;
-      availableWidth -= (int) Math.ceil(Util.mmToDots(pageMargins.getRight(), labelFile.getDpi()));
-      availableHeight -= y;
-      availableHeight -= (int) Math.ceil(Util.mmToDots(pageMargins.getBottom(), labelFile.getDpi()));
-    }
-    int spaceX = (int) Math.ceil(Util.mmToDots(labelFile.getColumnSpacing(), labelFile.getDpi()));
-    int spaceY = (int) Math.ceil(Util.mmToDots(labelFile.getRowSpacing(), labelFile.getDpi()));
-    BufferedImage pageImage = new BufferedImage(pageWidth, pageHeight, BufferedImage.TYPE_INT_ARGB);
-    Graphics2D g = pageImage.createGraphics();
-    LabelRenderer.initGraphics(g);
-    g.setPaint(labelFile.getPagePaint().createPaint());
-    g.fillRect(0, 0, pageWidth, pageHeight);
-    g.setClip(x, y, availableWidth, availableHeight);
+    Layout layout = prepare(labelFile);
+    int pageCount = layout.plan.getPageCount();
+    if (countSelected(pageCount) > 1) {
+      throw new IllegalStateException(String.format("Layout has %d pages, a stream holds only one.", pageCount));
+    }
+    PageOutput output = pageIndex -> new FilterOutputStream(os) {
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+
+    };
+    if ((bandHeight > 0) || layout.plan.isRoll()) {
+      renderBanded(layout, output);
+    } else {
+      renderTiled(layout, output);
+    }
+  }
+
+  /**
+   * Renders into a temporary file in the directory of the file and moves the
+   * page files written into place if rendering completes, or deletes them.
+   * The temporary file is only created for its unique name, pages which are
+   * not selected are not written and keep their earlier files. A PDF document
+   * is a single file, whatever its page count.
+   */
+  private int renderReplacing(File file, FileRender render) throws IOException {
+    File target = file.getAbsoluteFile();
+    String name = target.getName();
+    int dot = name.lastIndexOf('.');
+    String suffix = dot < 0 ? "" : name.substring(dot);
+    File part = File.createTempFile(String.format("%s-part-", Util.getFileName(target)), suffix, target.getParentFile());
+    part.delete();
+    String extension = getPageExtension(target);
+    FilePageSink parts = new FilePageSink(part, extension);
+    FilePageSink targets = new FilePageSink(target, extension);
+    boolean moved = false;
+    try {
+      int count = render.render(part);
+      boolean pdf = extension.equals("pdf");
+      for (int i = 0; i < (pdf ? 1 : count); i++) {
+        if ((pdf == false) && (isSelected(i) == false)) {
+          continue;
+        }
+        File page = parts.getPageFile(i);
+        if (page.isFile() == false) {
+          throw new IOException(String.format("Page %d was not written to %s.", i + 1, page));
+        }
+      }
+      for (int i = 0; i < (pdf ? 1 : count); i++) {
+        File page = parts.getPageFile(i);
+        if (page.isFile()) {
+          move(page, targets.getPageFile(i));
+        }
+      }
+      moved = true;
+      if ((pdf == false) && (selectedPages == null)) {
+        deleteStalePages(targets, count);
+      }
+      return count;
+    } finally {
+      if (moved == false) {
+        String prefix = Util.getFileName(part);
+        File[] leftovers = target.getParentFile().listFiles((dir, n) -> n.startsWith(prefix) && ((n.length() == prefix.length()) || (n.charAt(prefix.length()) == '.') || (n.charAt(prefix.length()) == '-')));
+        if (leftovers != null) {
+          for (File leftover : leftovers) {
+            leftover.delete();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes the numbered page files of an earlier render with more pages than
+   * the given count.
+   */
+  private static void deleteStalePages(FilePageSink targets, int count) throws IOException {
+    if (count == 0) {
+      Files.deleteIfExists(targets.getPageFile(0).toPath());
+    }
+    File first = targets.getPageFile(1);
+    String name = first.getName();
+    String prefix = name.substring(0, name.lastIndexOf('-') + 1);
+    String suffix = name.substring(name.lastIndexOf('.'));
+    File[] pages = first.getParentFile().listFiles((dir, n) -> n.startsWith(prefix) && n.endsWith(suffix) && (n.length() > prefix.length() + suffix.length()));
+    if (pages == null) {
+      return;
+    }
+    for (File page : pages) {
+      String number = page.getName().substring(prefix.length(), page.getName().length() - suffix.length());
+      if (number.chars().allMatch(Character::isDigit) && (number.length() < 10) && (Integer.parseInt(number) > count)) {
+        Files.deleteIfExists(page.toPath());
+      }
+    }
+  }
+
+  private static String getPageExtension(File file) {
+    String name = file.getName().toLowerCase();
+    if (name.endsWith(".pdf")) {
+      return "pdf";
+    } else if (name.endsWith(".svg")) {
+      return "svg";
+    } else if (name.endsWith(".tiff")) {
+      return "tiff";
+    } else if (name.endsWith(".tif")) {
+      return "tif";
+    }
+    return "png";
+  }
+
+  private static void move(File source, File target) throws IOException {
+    try {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException ex) {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Writes all pages as a single vector PDF document, each page flushed to the
+   * stream as soon as it is complete. A roll is cut into pages of the segment
+   * height, labels crossing a cut are drawn clipped on both pages.
+   */
+  public int renderPdf(LabelFile labelFile, OutputStream os) throws IOException {
+    checkCancelled();
+    LayoutPlan plan = plan(labelFile);
+    laidOut(plan.getCount(), plan.getSegmentCount());
+    Paint pagePaint = labelFile.getPagePaint().createPaint();
+    PdfWriter pdf = new PdfWriter(counted(os), plan.getDpi(), compressionLevel);
+    LabelRenderer renderer = new LabelRenderer();
+    for (int s = 0; s < plan.getSegmentCount(); s++) {
+      int p = plan.getSegmentPage(s);
+      int top = plan.getSegmentTop(s);
+      int rows = plan.getSegmentRows(s);
+      PdfWriter.Page pdfPage = pdf.beginPage(plan.getPageWidth(), rows);
+      pdfPage.fillRect(pagePaint, 0, 0, plan.getPageWidth(), rows);
+      if (plan.isRoll()) {
+        pdfPage.translate(0, -top);
+        pdfPage.clipRect(0, top, plan.getPageWidth(), rows);
+      }
+      pdfPage.clipRect(plan.getClipX(), plan.getClipY(), plan.getClipWidth(), plan.getClipHeight());
+      int end = plan.getPageEnd(p);
+      int first = plan.skipAbove(plan.getPageStart(p), end, top);
+      end = plan.skipBelow(first, end, top + rows);
+      for (int i = first; i < end; i++) {
+        checkCancelled();
+        renderer.render(plan.getGeometry(i), plan.getX(i), plan.getY(i), plan.isRotated(i), pdfPage, plan.getText(i));
+      }
+      pdf.endPage();
+      pageRendered();
+    }
+    pdf.finish();
+    return plan.getSegmentCount();
+  }
+
+  /**
+   * Writes each page as a separate SVG document, streamed to the output
+   * opened for it.
+   */
+  public int renderSvg(LabelFile labelFile, PageOutput output) throws IOException {
+    checkCancelled();
+    LayoutPlan plan = plan(labelFile);
+    laidOut(plan.getCount(), countSelected(plan.getPageCount()));
+    output = counted(output);
+    Paint pagePaint = labelFile.getPagePaint().createPaint();
     LabelRenderer renderer = new LabelRenderer();
+    for (int p = 0; p < plan.getPageCount(); p++) {
+      if (isSelected(p) == false) {
+        continue;
+      }
+      try (OutputStream os = output.openPage(p)) {
+        if (os != null) {
+          SvgWriter svg = new SvgWriter(os, plan.getPageWidth(), plan.getPageHeight(), plan.getDpi());
+          svg.fillRect(pagePaint, 0, 0, plan.getPageWidth(), plan.getPageHeight());
+          svg.clipRect(plan.getClipX(), plan.getClipY(), plan.getClipWidth(), plan.getClipHeight());
+          for (int i = plan.getPageStart(p); i < plan.getPageEnd(p); i++) {
+            checkCancelled();
+            renderer.render(plan.getGeometry(i), plan.getX(i), plan.getY(i), plan.isRotated(i), svg, plan.getText(i));
+          }
+          svg.finish();
+        }
+      }
+      pageRendered();
+    }
+    return plan.getPageCount();
+  }
+
+  /**
+   * Replays a display list into a file at the given resolution, like
+   * {@link #render(LabelFile, File)} does. PDF and SVG files are resolution
+   * independent and written at the resolution of the list, TIFF files are not
+   * supported and other files are written as PNG images.
+   */
+  public int render(DisplayList list, double dpi, File file) throws IOException {
+    String extension = getPageExtension(file);
+    if (extension.equals("tif") || extension.equals("tiff")) {
+      throw new IllegalArgumentException("Display lists cannot be rendered to TIFF files.");
+    }
+    return renderReplacing(file, part -> renderFile(list, dpi, part));
+  }
+
+  private int renderFile(DisplayList list, double dpi, File file) throws IOException {
+    if (file.getName().toLowerCase().endsWith(".pdf")) {
+      try (FileOutputStream fos = new FileOutputStream(file, false);
+              BufferedOutputStream bos = new BufferedOutputStream(fos)) {
+        return renderPdf(list, bos);
+      }
+    }
+    if (file.getName().toLowerCase().endsWith(".svg")) {
+      return renderSvg(list, new FilePageSink(file, "svg"));
+    }
+    FilePageSink sink = new FilePageSink(file, getPageExtension(file));
+    sink.setCompressionLevel(compressionLevel);
+    sink.setExecutor(getEncoderExecutor());
+    return render(list, dpi, sink);
+  }
+
+  /**
+   * Replays a display list into pages at the given resolution and passes them
+   * to the sink, without laying out or fitting text again. Page images are in
+   * the pixel format set on this renderer, and pages are drawn one at a time.
+   * A roll is passed as segments of the segment height.
+   */
+  public int render(DisplayList list, double dpi, PageSink sink) throws IOException {
+    if (dpi <= 0d) {
+      throw new IllegalArgumentException("DPI must be greater than 0.");
+    }
+    checkCancelled();
+    PixelFormat format = createFormat(list);
+    int width = Util.mmToPixels(list.getPageWidth(), dpi);
+    int height = Util.mmToPixels(list.getPageHeight(), dpi);
+    int segment = Math.min(height, Util.mmToPixels(list.getSegmentHeight(), dpi));
+    BufferedImage pageImage = null;
+    BufferedImage stripImage = null;
+    laidOut(list.getLabelCount(), list.getPageCount() * ((height + segment - 1) / segment));
+    int pageIndex = 0;
+    for (int p = 0; p < list.getPageCount(); p++) {
+      for (int top = 0; top < height; top += segment) {
+        int rows = Math.min(segment, height - top);
+        checkCancelled();
+        if ((pageImage == null) || (pageImage.getHeight() != rows)) {
+          pageImage = format.createImage(width, rows);
+        }
+        if (format.isDrawnDirectly()) {
+          replayRows(list, p, dpi, format, top, rows, pageImage);
+        } else {
+          if (stripImage == null) {
+            stripImage = format.createDrawingImage(width, Math.min(STRIP_HEIGHT, segment));
+          }
+          int[] source = ((DataBufferInt) stripImage.getRaster().getDataBuffer()).getData();
+          byte[] target = ((DataBufferByte) pageImage.getRaster().getDataBuffer()).getData();
+          for (int strip = 0; strip < rows; strip += stripImage.getHeight()) {
+            checkCancelled();
+            int stripRows = Math.min(stripImage.getHeight(), rows - strip);
+            replayRows(list, p, dpi, format, top + strip, stripRows, stripImage);
+            format.toIndices(source, 0, target, strip * width, stripRows * width);
+          }
+        }
+        sink.accept(pageIndex++, pageImage, dpi);
+        pageRendered();
+      }
+    }
+    return pageIndex;
+  }
+
+  private PixelFormat createFormat(DisplayList list) {
+    if (pixelFormat == PixelFormat.AUTO) {
+      return list.getFormat() != null ? list.getFormat() : PixelFormat.ARGB_FORMAT;
+    } else if (pixelFormat == PixelFormat.INDEXED) {
+      return list.getIndexedFormat();
+    }
+    return PixelFormat.create(pixelFormat, null);
+  }
+
+  private static void replayRows(DisplayList list, int page, double dpi, PixelFormat format, int top, int rows, BufferedImage image) {
+    Graphics2D g = image.createGraphics();
     try {
-      for (LabelSet labelSet : labelFile.getLabelSets()) {
-        renderer.configure(labelSet, labelFile.getDpi());
-        renderer.validate();
-        Dimension bounds = renderer.getBounds();
-        bounds.width += spaceX;
-        bounds.height += spaceY;
-        for (String label : labelSet.getLabels()) {
-          if (x + bounds.width > availableWidth) {
-            x = startX;
-            y += bounds.height;
+      initGraphics(format, g);
+      g.translate(0, -top);
+      g.clipRect(0, top, image.getWidth(), rows);
+      list.replay(page, g, dpi);
+    } finally {
+      g.dispose();
+    }
+  }
+
+  /**
+   * Replays a display list as a single vector PDF document, like
+   * {@link #renderPdf(LabelFile, OutputStream)} does.
+   */
+  public int renderPdf(DisplayList list, OutputStream os) throws IOException {
+    double dpi = list.getDpi();
+    double mm = Util.MM_PER_INCH / dpi;
+    int width = Util.mmToPixels(list.getPageWidth(), dpi);
+    int height = Util.mmToPixels(list.getPageHeight(), dpi);
+    int segment = Math.min(height, Util.mmToPixels(list.getSegmentHeight(), dpi));
+    laidOut(list.getLabelCount(), list.getPageCount() * ((height + segment - 1) / segment));
+    PdfWriter pdf = new PdfWriter(counted(os), dpi, compressionLevel);
+    for (int p = 0; p < list.getPageCount(); p++) {
+      for (int top = 0; top < height; top += segment) {
+        int rows = Math.min(segment, height - top);
+        checkCancelled();
+        PdfWriter.Page pdfPage = pdf.beginPage(width, rows);
+        if (list.getPagePaint() != null) {
+          pdfPage.fillRect(list.getPagePaint(), 0, 0, width, rows);
+        }
+        if (list.isRoll()) {
+          pdfPage.translate(0, -top);
+          pdfPage.clipRect(0, top, width, rows);
+        }
+        pdfPage.clipRect(list.getClipX() / mm, list.getClipY() / mm, list.getClipWidth() / mm, list.getClipHeight() / mm);
+        list.replay(p, top * mm, rows * mm, pdfPage);
+        pdf.endPage();
+        pageRendered();
+      }
+    }
+    pdf.finish();
+    return pdf.getPageCount();
+  }
+
+  /**
+   * Replays a display list as separate SVG documents, like
+   * {@link #renderSvg(LabelFile, PageOutput)} does.
+   */
+  public int renderSvg(DisplayList list, PageOutput output) throws IOException {
+    double dpi = list.getDpi();
+    double mm = Util.MM_PER_INCH / dpi;
+    int width = Util.mmToPixels(list.getPageWidth(), dpi);
+    int height = Util.mmToPixels(list.getPageHeight(), dpi);
+    laidOut(list.getLabelCount(), list.getPageCount());
+    output = counted(output);
+    for (int p = 0; p < list.getPageCount(); p++) {
+      checkCancelled();
+      try (OutputStream os = output.openPage(p)) {
+        if (os != null) {
+          SvgWriter svg = new SvgWriter(os, width, height, dpi);
+          if (list.getPagePaint() != null) {
+            svg.fillRect(list.getPagePaint(), 0, 0, width, height);
           }
-          if (y + bounds.height > availableHeight) {
-            return;
+          svg.clipRect(list.getClipX() / mm, list.getClipY() / mm, list.getClipWidth() / mm, list.getClipHeight() / mm);
+          list.replay(p, 0d, list.getPageHeight(), svg);
+          svg.finish();
+        }
+      }
+      pageRendered();
+    }
+    return list.getPageCount();
+  }
+
+  /**
+   * Renders the pages in horizontal bands, streaming each band into a PNG
+   * encoder, so at most one band raster is alive at a time. A roll is written
+   * as a single image of its whole height.
+   */
+  public int renderBanded(LabelFile labelFile, PageOutput output) throws IOException {
+    return renderBanded(prepare(labelFile), output);
+  }
+
+  private int renderBanded(Layout layout, PageOutput output) throws IOException {
+    laidOut(layout.plan.getCount(), countSelected(layout.plan.getPageCount()));
+    int band = layout.pageHeight;
+    if (bandHeight > 0) {
+      band = Math.min(bandHeight, layout.pageHeight);
+    } else if (layout.plan.isRoll()) {
+      band = Math.min(STRIP_HEIGHT, layout.pageHeight);
+    }
+    BufferedImage bandImage = layout.format.createDrawingImage(layout.pageWidth, band);
+    output = counted(output);
+    for (int p = 0; p < layout.plan.getPageCount(); p++) {
+      if (isSelected(p) == false) {
+        continue;
+      }
+      try (OutputStream os = output.openPage(p)) {
+        if (os != null) {
+          PngEncoder encoder = new PngEncoder(os, layout.pageWidth, layout.pageHeight, layout.dpi, layout.format, compressionLevel, getEncoderExecutor());
+          int first = layout.plan.getPageStart(p);
+          int end = layout.plan.getPageEnd(p);
+          for (int top = 0; top < layout.pageHeight; top += band) {
+            int rows = Math.min(band, layout.pageHeight - top);
+            first = layout.plan.skipAbove(first, end, top);
+            renderBand(layout, first, end, top, rows, bandImage);
+            encoder.writeRows(bandImage, rows);
           }
-          renderer.render(x, y, g, label);
-          x += bounds.width;
+          encoder.finish();
+        }
+      }
+      pageRendered();
+    }
+    return layout.plan.getPageCount();
+  }
+
+  /**
+   * Renders the pages in horizontal bands into run length encoded rasters,
+   * and passes them to the sink. A page is only held as runs, so its memory
+   * grows with the label edges instead of the page area.
+   */
+  public int renderRunLength(LabelFile labelFile, RunLengthSink sink) throws IOException {
+    Layout layout = prepare(labelFile);
+    laidOut(layout.plan.getCount(), countSelected(layout.plan.getPageCount()));
+    int band = Math.min(bandHeight > 0 ? bandHeight : STRIP_HEIGHT, layout.pageHeight);
+    BufferedImage bandImage = layout.format.createDrawingImage(layout.pageWidth, band);
+    for (int p = 0; p < layout.plan.getPageCount(); p++) {
+      if (isSelected(p) == false) {
+        continue;
+      }
+      RunLengthPage page = new RunLengthPage(layout.format, layout.pageWidth, layout.pageHeight);
+      int first = layout.plan.getPageStart(p);
+      int end = layout.plan.getPageEnd(p);
+      for (int top = 0; top < layout.pageHeight; top += band) {
+        int rows = Math.min(band, layout.pageHeight - top);
+        first = layout.plan.skipAbove(first, end, top);
+        renderBand(layout, first, end, top, rows, bandImage);
+        page.appendRows(bandImage, rows);
+      }
+      page.trim();
+      sink.accept(p, page, layout.dpi);
+      pageRendered();
+    }
+    return layout.plan.getPageCount();
+  }
+
+  private static void renderBand(Layout layout, int first, int end, int top, int rows, BufferedImage bandImage) {
+    if (layout.progress != null) {
+      layout.progress.checkCancelled();
+    }
+    Graphics2D g = bandImage.createGraphics();
+    try {
+      g.setPaint(layout.pagePaint);
+      g.fillRect(0, 0, layout.pageWidth, rows);
+      initGraphics(layout.format, g);
+      g.translate(0, -top);
+      g.clipRect(layout.clipX, layout.clipY, layout.clipWidth, layout.clipHeight);
+      g.clipRect(0, top, layout.pageWidth, rows);
+      LabelRenderer renderer = new LabelRenderer();
+      renderer.setBackgroundStamps(true);
+      LayoutPlan plan = layout.plan;
+      for (int i = first; i < end; i++) {
+        int y = plan.getY(i);
+        if (y >= top + rows) {
+          break;
+        }
+        if (y + plan.getGeometry(i).getHeight() > top) {
+          renderLabel(layout, renderer, g, i);
         }
-        x = startX;
-        y += bounds.height;
       }
     } finally {
       g.dispose();
-      saveGridImage(pageImage, os, labelFile.getDpi());
     }
   }
 
-  private void saveGridImage(BufferedImage pageImage, OutputStream output, double dpi) throws IOException {
-    // https://stackoverflow.com/questions/321736/how-to-set-dpi-information-in-an-image
-    Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName("png");
-    while (it.hasNext()) {
-      ImageWriter writer = it.next();
-      ImageWriteParam writeParam = writer.getDefaultWriteParam();
-      ImageTypeSpecifier typeSpecifier = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_RGB);
-      IIOMetadata metadata = writer.getDefaultImageMetadata(typeSpecifier, writeParam);
-      if ((metadata.isReadOnly()) || (metadata.isStandardMetadataFormatSupported() == false)) {
+  /**
+   * Renders the pages into sparse tiled rasters and streams each one into a
+   * PNG encoder. Only tiles labels are drawn into take memory and fill time,
+   * the rest share a single tile of the page colour.
+   */
+  public int renderTiled(LabelFile labelFile, PageOutput output) throws IOException {
+    return renderTiled(prepare(labelFile), output);
+  }
+
+  private int renderTiled(Layout layout, PageOutput output) throws IOException {
+    if ((layout.pagePaint instanceof Color) == false) {
+      return renderBanded(layout, output);
+    }
+    laidOut(layout.plan.getCount(), countSelected(layout.plan.getSegmentCount()));
+    output = counted(output);
+    LayoutPlan plan = layout.plan;
+    ArrayDeque<ForkJoinTask<TiledPage>> pending = new ArrayDeque<>();
+    ArrayDeque<Integer> pendingIndices = new ArrayDeque<>();
+    ArrayDeque<TiledPage> free = new ArrayDeque<>();
+    ArrayList<TiledPage> created = new ArrayList<>();
+    int window = pool != null ? Math.max(1, pool.getParallelism()) : 1;
+    try {
+      for (int s = 0; s < plan.getSegmentCount(); s++) {
+        if (isSelected(s) == false) {
+          continue;
+        }
+        if (pending.size() >= window) {
+          TiledPage page = pending.poll().join();
+          writeTiled(layout, page, output, pendingIndices.poll());
+          free.push(page);
+        }
+        TiledPage page = free.isEmpty() ? null : free.pop();
+        if ((page == null) || (page.getHeight() != plan.getSegmentRows(s))) {
+          page = createTiledPage(layout, plan.getSegmentRows(s));
+          created.add(page);
+        }
+        page.reset();
+        int p = plan.getSegmentPage(s);
+        int top = plan.getSegmentTop(s);
+        int end = plan.getPageEnd(p);
+        int first = plan.skipAbove(plan.getPageStart(p), end, top);
+        end = plan.skipBelow(first, end, top + page.getHeight());
+        if (pool != null) {
+          pending.add(pool.submit(new TiledTask(layout, first, end, top, page)));
+          pendingIndices.add(s);
+        } else {
+          renderLabels(layout, first, end, top, page);
+          writeTiled(layout, page, output, s);
+          free.push(page);
+        }
+      }
+      while (pending.isEmpty() == false) {
+        writeTiled(layout, pending.poll().join(), output, pendingIndices.poll());
+      }
+    } finally {
+      for (ForkJoinTask<TiledPage> task : pending) {
+        task.cancel(false);
+      }
+      for (TiledPage page : created) {
+        page.close();
+      }
+    }
+    return plan.getSegmentCount();
+  }
+
+  private TiledPage createTiledPage(Layout layout, int rows) throws IOException {
+    int columns = (layout.pageWidth + TiledPage.TILE_SIZE - 1) / TiledPage.TILE_SIZE;
+    long tiles = (long) columns * ((rows + TiledPage.TILE_SIZE - 1) / TiledPage.TILE_SIZE);
+    if (tiles * TiledPage.getTileBytes(layout.format) > mappedThreshold) {
+      return new TiledPage(layout.format, layout.pageWidth, rows, (Color) layout.pagePaint, 2 * columns);
+    }
+    return new TiledPage(layout.format, layout.pageWidth, rows, (Color) layout.pagePaint);
+  }
+
+  private void writeTiled(Layout layout, TiledPage page, PageOutput output, int pageIndex) throws IOException {
+    try (OutputStream os = output.openPage(pageIndex)) {
+      if (os != null) {
+        PngEncoder encoder = new PngEncoder(os, page.getWidth(), page.getHeight(), layout.dpi, layout.format, compressionLevel, getEncoderExecutor());
+        page.writeTo(encoder);
+        encoder.finish();
+      }
+    }
+    pageRendered();
+  }
+
+  /**
+   * Draws labels into the tiles of a tiled page they cover. A label covering
+   * several tiles is rasterized once, as its stamp or into a scratch image of
+   * its visible part, and the clipped parts are copied into each tile.
+   */
+  private static void renderLabels(Layout layout, int from, int to, int top, TiledPage page) {
+    LabelRenderer renderer = new LabelRenderer();
+    renderer.setBackgroundStamps(true);
+    LayoutPlan plan = layout.plan;
+    BufferedImage scratch = null;
+    for (int i = from; i < to; i++) {
+      LabelGeometry geometry = plan.getGeometry(i);
+      int left = Math.max(plan.getX(i), layout.clipX);
+      int right = Math.min(plan.getX(i) + geometry.getWidth(), layout.clipX + layout.clipWidth);
+      int upper = Math.max(Math.max(plan.getY(i), layout.clipY), top);
+      int lower = Math.min(Math.min(plan.getY(i) + geometry.getHeight(), layout.clipY + layout.clipHeight), top + page.getHeight());
+      if ((left >= right) || (upper >= lower)) {
         continue;
       }
-      setDPI(metadata, dpi);
+      int firstRow = (upper - top) / TiledPage.TILE_SIZE;
+      int lastRow = (lower - top - 1) / TiledPage.TILE_SIZE;
+      int firstColumn = left / TiledPage.TILE_SIZE;
+      int lastColumn = (right - 1) / TiledPage.TILE_SIZE;
+      BufferedImage stamp = null;
+      boolean scratched = false;
+      if ((firstRow != lastRow) || (firstColumn != lastColumn)) {
+        if (layout.progress != null) {
+          layout.progress.checkCancelled();
+        }
+        if (layout.stamps != null) {
+          stamp = layout.stamps.getStamp(geometry, plan.getText(i), layout.format.isAntialiased(), layout.statistics);
+        } else if (4L * (right - left) * (lower - upper) <= StampCache.DEFAULT_MAX_BYTES) {
+          if ((scratch == null) || (scratch.getWidth() < right - left) || (scratch.getHeight() < lower - upper)) {
+            int width = Math.max(right - left, scratch != null ? scratch.getWidth() : 0);
+            int height = Math.max(lower - upper, scratch != null ? scratch.getHeight() : 0);
+            scratch = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+          }
+          rasterize(layout, renderer, i, left, upper, right - left, lower - upper, scratch);
+          scratched = true;
+        }
+      }
+      for (int row = firstRow; row <= lastRow; row++) {
+        for (int column = firstColumn; column <= lastColumn; column++) {
+          Graphics2D g = page.getTile(column, row).createGraphics();
+          try {
+            initGraphics(layout.format, g);
+            g.translate(-column * TiledPage.TILE_SIZE, -row * TiledPage.TILE_SIZE - top);
+            g.setClip(layout.clipX, layout.clipY, layout.clipWidth, layout.clipHeight);
+            if (scratched) {
+              g.drawImage(scratch, left, upper, right, lower, 0, 0, right - left, lower - upper, null);
+            } else if (stamp != null) {
+              int x = plan.getX(i);
+              int y = plan.getY(i);
+              int w = geometry.getWidth();
+              int h = geometry.getHeight();
+              if (plan.isRotated(i)) {
+                g.drawImage(stamp, x + w, y + h, x, y, 0, 0, w, h, null);
+              } else {
+                g.drawImage(stamp, x, y, null);
+              }
+            } else {
+              renderLabel(layout, renderer, g, i);
+            }
+          } finally {
+            g.dispose();
+            page.releaseTile(column, row);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Draws the part of the label in the given page rectangle into the top left
+   * corner of the scratch image, cleared first.
+   */
+  private static void rasterize(Layout layout, LabelRenderer renderer, int index, int left, int upper, int width, int height, BufferedImage scratch) {
+    Graphics2D g = scratch.createGraphics();
+    try {
+      g.setComposite(AlphaComposite.Clear);
+      g.fillRect(0, 0, width, height);
+      g.setComposite(AlphaComposite.SrcOver);
+      initGraphics(layout.format, g);
+      g.clipRect(0, 0, width, height);
+      g.translate(-left, -upper);
+      renderLabel(layout, renderer, g, index);
+    } finally {
+      g.dispose();
+    }
+  }
 
-      try (ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
-        writer.setOutput(stream);
-        writer.write(metadata, new IIOImage(pageImage, null, metadata), writeParam);
+  /**
+   * Renders the pages and passes them to the sink. Page images are in the
+   * pixel format set on this renderer. A roll is passed as segments of the
+   * segment height, the last one may be shorter.
+   */
+  public int render(LabelFile labelFile, PageSink sink) throws IOException {
+    Layout layout = prepare(labelFile);
+    laidOut(layout.plan.getCount(), countSelected(layout.plan.getSegmentCount()));
+    if (pool == null) {
+      BufferedImage pageImage = null;
+      for (int s = 0; s < layout.plan.getSegmentCount(); s++) {
+        if (isSelected(s) == false) {
+          continue;
+        }
+        pageImage = layout.reuseImage(pageImage, s);
+        renderPage(layout, s, pageImage);
+        sink.accept(s, pageImage, layout.dpi);
+        pageRendered();
       }
+    } else {
+      renderParallel(layout, sink);
+    }
+    return layout.plan.getSegmentCount();
+  }
+
+  private void renderParallel(Layout layout, PageSink sink) throws IOException {
+    int window = Math.max(1, pool.getParallelism());
+    ArrayDeque<ForkJoinTask<BufferedImage>> pending = new ArrayDeque<>();
+    ArrayDeque<Integer> pendingIndices = new ArrayDeque<>();
+    ArrayDeque<BufferedImage> free = new ArrayDeque<>();
+    try {
+      for (int s = 0; s < layout.plan.getSegmentCount(); s++) {
+        if (isSelected(s) == false) {
+          continue;
+        }
+        if (pending.size() >= window) {
+          BufferedImage pageImage = pending.poll().join();
+          sink.accept(pendingIndices.poll(), pageImage, layout.dpi);
+          pageRendered();
+          free.push(pageImage);
+        }
+        BufferedImage pageImage = layout.reuseImage(free.poll(), s);
+        pending.add(pool.submit(new PageTask(layout, s, pageImage)));
+        pendingIndices.add(s);
+      }
+      while (pending.isEmpty() == false) {
+        sink.accept(pendingIndices.poll(), pending.poll().join(), layout.dpi);
+        pageRendered();
+      }
+    } finally {
+      for (ForkJoinTask<BufferedImage> task : pending) {
+        task.cancel(false);
+      }
+    }
+  }
+
+  private static void initGraphics(PixelFormat format, Graphics2D g) {
+    LabelRenderer.initGraphics(g);
+    if (format.isAntialiased() == false) {
+      g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+      g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+    }
+  }
+
+  private static void renderPage(Layout layout, int segment, BufferedImage pageImage) {
+    LayoutPlan plan = layout.plan;
+    int page = plan.getSegmentPage(segment);
+    int top = plan.getSegmentTop(segment);
+    int rows = plan.getSegmentRows(segment);
+    if (layout.format.isDrawnDirectly() == false) {
+      renderStrips(layout, page, top, rows, pageImage);
       return;
     }
+    Graphics2D g = pageImage.createGraphics();
+    try {
+      g.setPaint(layout.pagePaint);
+      g.fillRect(0, 0, layout.pageWidth, rows);
+    } finally {
+      g.dispose();
+    }
+    int end = plan.getPageEnd(page);
+    int first = plan.skipAbove(plan.getPageStart(page), end, top);
+    renderLabels(layout, first, plan.skipBelow(first, end, top + rows), top, pageImage);
+  }
+
+  /**
+   * Renders rows of a page in a format which cannot be drawn into directly,
+   * through an RGB strip converted after each pass.
+   */
+  private static void renderStrips(Layout layout, int page, int pageTop, int pageRows, BufferedImage pageImage) {
+    int strip = Math.min(STRIP_HEIGHT, pageRows);
+    BufferedImage stripImage = layout.format.createDrawingImage(layout.pageWidth, strip);
+    int[] source = ((DataBufferInt) stripImage.getRaster().getDataBuffer()).getData();
+    byte[] target = ((DataBufferByte) pageImage.getRaster().getDataBuffer()).getData();
+    int first = layout.plan.getPageStart(page);
+    int end = layout.plan.getPageEnd(page);
+    for (int top = pageTop; top < pageTop + pageRows; top += strip) {
+      int rows = Math.min(strip, pageTop + pageRows - top);
+      first = layout.plan.skipAbove(first, end, top);
+      renderBand(layout, first, end, top, rows, stripImage);
+      layout.format.toIndices(source, 0, target, (top - pageTop) * layout.pageWidth, rows * layout.pageWidth);
+    }
+  }
+
+  private static void renderLabels(Layout layout, int from, int to, int top, BufferedImage pageImage) {
+    Graphics2D g = pageImage.createGraphics();
+    try {
+      initGraphics(layout.format, g);
+      g.translate(0, -top);
+      g.setClip(layout.clipX, layout.clipY, layout.clipWidth, layout.clipHeight);
+      LabelRenderer renderer = new LabelRenderer();
+      renderer.setBackgroundStamps(true);
+      for (int i = from; i < to; i++) {
+        renderLabel(layout, renderer, g, i);
+      }
+    } finally {
+      g.dispose();
+    }
+  }
+
+  private static void renderLabel(Layout layout, LabelRenderer renderer, Graphics2D g, int index) {
+    if (layout.progress != null) {
+      layout.progress.checkCancelled();
+    }
+    LayoutPlan plan = layout.plan;
+    if (layout.stamps != null) {
+      layout.stamps.render(plan.getGeometry(index), plan.getX(index), plan.getY(index), plan.isRotated(index), g, plan.getText(index), layout.format.isAntialiased(), layout.statistics);
+    } else {
+      renderer.render(plan.getGeometry(index), plan.getX(index), plan.getY(index), plan.isRotated(index), g, plan.getText(index));
+    }
+  }
+
+  private static Layout layout(LabelFile labelFile, LayoutPlan plan, int pixelFormat) {
+    Layout layout = new Layout();
+    layout.plan = plan;
+    layout.format = PixelFormat.create(pixelFormat, labelFile);
+    layout.dpi = layout.plan.getDpi();
+    layout.pageWidth = layout.plan.getPageWidth();
+    layout.pageHeight = layout.plan.getPageHeight();
+    layout.pagePaint = labelFile.getPagePaint().createPaint();
+    layout.clipX = layout.plan.getClipX();
+    layout.clipY = layout.plan.getClipY();
+    layout.clipWidth = layout.plan.getClipWidth();
+    layout.clipHeight = layout.plan.getClipHeight();
+    return layout;
+  }
+
+  static void saveGridImage(BufferedImage pageImage, OutputStream output, double dpi, int compressionLevel, Executor executor) throws IOException {
+    PngEncoder encoder = new PngEncoder(output, pageImage.getWidth(), pageImage.getHeight(), dpi, PixelFormat.of(pageImage), compressionLevel, executor);
+    encoder.writeRows(pageImage, pageImage.getHeight());
+    encoder.finish();
+  }
+
+  private static final class Layout {
+
+    private LayoutPlan plan;
+    private double dpi;
+    private int pageWidth;
+    private int pageHeight;
+    private int clipX;
+    private int clipY;
+    private int clipWidth;
+    private int clipHeight;
+    private Paint pagePaint;
+    private PixelFormat format;
+    private StampCache stamps;
+    private StampCache.Statistics statistics;
+    private RenderProgress progress;
+
+    /**
+     * Returns the given image if it fits the segment, or a new one.
+     */
+    private BufferedImage reuseImage(BufferedImage image, int segment) {
+      int rows = plan.getSegmentRows(segment);
+      if ((image != null) && (image.getHeight() == rows)) {
+        return image;
+      }
+      return format.createImage(pageWidth, rows);
+    }
+
+  }
+
+  @FunctionalInterface
+  private interface FileRender {
+
+    int render(File file) throws IOException;
+
+  }
+
+  /**
+   * Counts the bytes passed to the underlying stream in a progress.
+   */
+  private static final class CountingOutputStream extends FilterOutputStream {
+
+    private final RenderProgress progress;
+
+    private CountingOutputStream(OutputStream out, RenderProgress progress) {
+      super(out);
+      this.progress = progress;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      progress.written(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      progress.written(len);
+    }
+
   }
 
-  private void setDPI(IIOMetadata metadata, double dpi) throws IIOInvalidTreeException {
-    double dotsPerMilli = Util.dpiToDpmm(dpi);
+  /**
+   * Whether the labels of one page can be drawn by several workers at once.
+   * Labels never overlap, but formats packing several pixels into a byte are
+   * written a whole byte at a time, so neighbouring labels would race for the
+   * bytes they share.
+   */
+  private static boolean isSliced(Layout layout) {
+    return layout.format.getBitsPerPixel() >= 8;
+  }
+
+  private static final class PageTask extends RecursiveTask<BufferedImage> {
+
+    private static final long serialVersionUID = 1L;
 
-    IIOMetadataNode horizontal = new IIOMetadataNode("HorizontalPixelSize");
-    horizontal.setAttribute("value", Double.toString(dotsPerMilli));
+    private final transient Layout layout;
+    private final int segment;
+    private final transient BufferedImage pageImage;
 
-    IIOMetadataNode vertical = new IIOMetadataNode("VerticalPixelSize");
-    vertical.setAttribute("value", Double.toString(dotsPerMilli));
+    private PageTask(Layout layout, int segment, BufferedImage pageImage) {
+      this.layout = layout;
+      this.segment = segment;
+      this.pageImage = pageImage;
+    }
 
-    IIOMetadataNode dimension = new IIOMetadataNode("Dimension");
-    dimension.appendChild(horizontal);
-    dimension.appendChild(vertical);
+    @Override
+    protected BufferedImage compute() {
+      LayoutPlan plan = layout.plan;
+      int page = plan.getSegmentPage(segment);
+      int top = plan.getSegmentTop(segment);
+      int rows = plan.getSegmentRows(segment);
+      if (layout.format.isDrawnDirectly() == false) {
+        renderStrips(layout, page, top, rows, pageImage);
+        return pageImage;
+      }
+      Graphics2D g = pageImage.createGraphics();
+      try {
+        g.setPaint(layout.pagePaint);
+        g.fillRect(0, 0, layout.pageWidth, rows);
+      } finally {
+        g.dispose();
+      }
+      int end = plan.getPageEnd(page);
+      int first = plan.skipAbove(plan.getPageStart(page), end, top);
+      if (isSliced(layout)) {
+        new SliceTask(layout, first, plan.skipBelow(first, end, top + rows), top, pageImage).invoke();
+      } else {
+        renderLabels(layout, first, plan.skipBelow(first, end, top + rows), top, pageImage);
+      }
+      return pageImage;
+    }
 
-    IIOMetadataNode root = new IIOMetadataNode("javax_imageio_1.0");
-    root.appendChild(dimension);
+  }
+
+  private static final class TiledTask extends RecursiveTask<TiledPage> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient Layout layout;
+    private final int from;
+    private final int to;
+    private final int top;
+    private final transient TiledPage page;
+
+    private TiledTask(Layout layout, int from, int to, int top, TiledPage page) {
+      this.layout = layout;
+      this.from = from;
+      this.to = to;
+      this.top = top;
+      this.page = page;
+    }
+
+    @Override
+    protected TiledPage compute() {
+      if ((to - from <= SLICE_THRESHOLD) || (isSliced(layout) == false)) {
+        renderLabels(layout, from, to, top, page);
+      } else {
+        int mid = (from + to) >>> 1;
+        invokeAll(new TiledTask(layout, from, mid, top, page), new TiledTask(layout, mid, to, top, page));
+      }
+      return page;
+    }
+
+  }
+
+  private static final class SliceTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient Layout layout;
+    private final int from;
+    private final int to;
+    private final int top;
+    private final transient BufferedImage pageImage;
+
+    private SliceTask(Layout layout, int from, int to, int top, BufferedImage pageImage) {
+      this.layout = layout;
+      this.from = from;
+      this.to = to;
+      this.top = top;
+      this.pageImage = pageImage;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= SLICE_THRESHOLD) {
+        renderLabels(layout, from, to, top, pageImage);
+      } else {
+        int mid = (from + to) >>> 1;
+        invokeAll(new SliceTask(layout, from, mid, top, pageImage), new SliceTask(layout, mid, to, top, pageImage));
+      }
+    }
 
-    metadata.mergeTree("javax_imageio_1.0", root);
   }
 
 }
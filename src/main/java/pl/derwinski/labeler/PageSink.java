@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Receives finished pages in order. The image is reused for the next page, so
+ * it must not be retained after the call returns.
+ *
+ * @author Dominik Derwiński
+ */
+@FunctionalInterface
+public interface PageSink {
+
+  void accept(int pageIndex, BufferedImage page, double dpi) throws IOException;
+
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.Color;
+import java.awt.Paint;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.PathIterator;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a multi-page PDF document page by page. Coordinates are given in
+ * dots, like in raster output, and scaled to points in each page content.
+ * Each distinct glyph and label background is written once as a Form XObject
+ * and placed with its transform, so pages are flushed as soon as they end and only the cross
+ * reference table is kept until the document is finished.
+ *
+ * @author Dominik Derwiński
+ */
+public final class PdfWriter {
+
+  private static final int CATALOG = 1;
+  private static final int PAGES = 2;
+  private static final FontRenderContext FONT_RENDER_CONTEXT = new FontRenderContext(null, true, false);
+
+  private final OutputStream output;
+  private final double dpi;
+  private final int level;
+  private final ArrayList<Long> offsets = new ArrayList<>();
+  private final ArrayList<Integer> pages = new ArrayList<>();
+  private final HashMap<GlyphCache.Glyph, Integer> glyphs = new HashMap<>();
+  private final IdentityHashMap<LabelGeometry, Integer> backgrounds = new IdentityHashMap<>();
+  private final HashMap<Integer, Integer> alphas = new HashMap<>();
+  private long offset;
+  private Page page;
+  private boolean finished;
+
+  /**
+   * @param dpi resolution of the coordinates passed to pages
+   * @param level deflate level of content streams, from 0 (not compressed) to
+   * 9 (smallest), or -1 for the default
+   */
+  public PdfWriter(OutputStream output, double dpi, int level) throws IOException {
+    if (dpi <= 0d) {
+      throw new IllegalArgumentException("DPI must be greater than 0.");
+    }
+    if ((level < -1) || (level > 9)) {
+      throw new IllegalArgumentException("Compression level must be between -1 and 9.");
+    }
+    this.output = output;
+    this.dpi = dpi;
+    this.level = level;
+    offsets.add(0L);
+    offsets.add(0L);
+    writeBytes(new byte[]{'%', 'P', 'D', 'F', '-', '1', '.', '4', '\n', '%', (byte) 0xe2, (byte) 0xe3, (byte) 0xcf, (byte) 0xd3, '\n'});
+  }
+
+  public int getPageCount() {
+    return pages.size();
+  }
+
+  /**
+   * Starts a new page of the given size in dots. The page must be ended with
+   * {@link #endPage()} before the next one is started.
+   */
+  public Page beginPage(int width, int height) {
+    if (finished) {
+      throw new IllegalStateException("Document is already finished.");
+    }
+    if (page != null) {
+      throw new IllegalStateException("Previous page is not ended.");
+    }
+    page = new Page(width, height);
+    return page;
+  }
+
+  public void endPage() throws IOException {
+    if (page == null) {
+      throw new IllegalStateException("No page is started.");
+    }
+    Page current = page;
+    page = null;
+    int contents = writeStream("", current.content);
+    StringBuilder sb = new StringBuilder();
+    sb.append("<< /Type /Page /Parent ").append(PAGES).append(" 0 R /MediaBox [0 0 ");
+    appendNumber(sb, toPoints(current.width));
+    sb.append(' ');
+    appendNumber(sb, toPoints(current.height));
+    sb.append("] /Resources << /XObject <<");
+    for (Integer glyph : current.glyphs.values()) {
+      sb.append(" /G").append(glyph).append(' ').append(glyph).append(" 0 R");
+    }
+    for (Integer background : current.backgrounds.values()) {
+      sb.append(" /B").append(background).append(' ').append(background).append(" 0 R");
+    }
+    sb.append(" >> /ExtGState <<");
+    for (Integer alpha : current.alphas.values()) {
+      sb.append(" /A").append(alpha).append(' ').append(alpha).append(" 0 R");
+    }
+    sb.append(" >> >> /Contents ").append(contents).append(" 0 R >>");
+    pages.add(writeObject(sb));
+    output.flush();
+  }
+
+  /**
+   * Writes the page tree, the cross reference table and the trailer.
+   */
+  public void finish() throws IOException {
+    if (page != null) {
+      throw new IllegalStateException("Last page is not ended.");
+    }
+    if (finished) {
+      return;
+    }
+    finished = true;
+    StringBuilder sb = new StringBuilder();
+    sb.append("<< /Type /Pages /Kids [");
+    for (Integer p : pages) {
+      sb.append(' ').append(p).append(" 0 R");
+    }
+    sb.append(" ] /Count ").append(pages.size()).append(" >>");
+    writeObject(PAGES, sb);
+    sb.setLength(0);
+    sb.append("<< /Type /Catalog /Pages ").append(PAGES).append(" 0 R >>");
+    writeObject(CATALOG, sb);
+    long xref = offset;
+    sb.setLength(0);
+    sb.append("xref\n0 ").append(offsets.size() + 1).append('\n');
+    sb.append("0000000000 65535 f \n");
+    for (Long o : offsets) {
+      String s = Long.toString(o);
+      for (int i = s.length(); i < 10; i++) {
+        sb.append('0');
+      }
+      sb.append(s).append(" 00000 n \n");
+    }
+    sb.append("trailer\n<< /Size ").append(offsets.size() + 1).append(" /Root ").append(CATALOG).append(" 0 R >>\n");
+    sb.append("startxref\n").append(xref).append("\n%%EOF\n");
+    writeBytes(sb.toString().getBytes(StandardCharsets.US_ASCII));
+    output.flush();
+  }
+
+  private double toPoints(double dots) {
+    return dots * 72d / dpi;
+  }
+
+  private int getGlyph(GlyphCache.Glyph glyph) throws IOException {
+    Integer object = glyphs.get(glyph);
+    if (object == null) {
+      StringBuilder content = new StringBuilder();
+      appendPath(content, glyph.getOutline().getPathIterator(null));
+      content.append(glyph.getOutline().getWindingRule() == PathIterator.WIND_EVEN_ODD ? "f*" : "f");
+      StringBuilder dict = new StringBuilder();
+      dict.append(" /Type /XObject /Subtype /Form /BBox [");
+      appendNumber(dict, Math.floor(glyph.getX()) - 1d);
+      dict.append(' ');
+      appendNumber(dict, Math.floor(glyph.getY()) - 1d);
+      dict.append(' ');
+      appendNumber(dict, Math.ceil(glyph.getX() + glyph.getWidth()) + 1d);
+      dict.append(' ');
+      appendNumber(dict, Math.ceil(glyph.getY() + glyph.getHeight()) + 1d);
+      dict.append(']');
+      object = writeStream(dict.toString(), content);
+      glyphs.put(glyph, object);
+    }
+    return object;
+  }
+
+  private int getBackground(LabelGeometry geometry) throws IOException {
+    Integer object = backgrounds.get(geometry);
+    if (object == null) {
+      StringBuilder content = new StringBuilder();
+      PathIterator it = geometry.getOutline().getPathIterator(null);
+      appendPath(content, it);
+      content.append(it.getWindingRule() == PathIterator.WIND_EVEN_ODD ? "f*" : "f");
+      StringBuilder dict = new StringBuilder();
+      dict.append(" /Type /XObject /Subtype /Form /BBox [-1 -1 ");
+      dict.append(geometry.getWidth() + 1).append(' ').append(geometry.getHeight() + 1).append(']');
+      object = writeStream(dict.toString(), content);
+      backgrounds.put(geometry, object);
+    }
+    return object;
+  }
+
+  private int getAlpha(int alpha) throws IOException {
+    Integer object = alphas.get(alpha);
+    if (object == null) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("<< /Type /ExtGState /ca ");
+      appendNumber(sb, alpha / 255d);
+      sb.append(" >>");
+      object = writeObject(sb);
+      alphas.put(alpha, object);
+    }
+    return object;
+  }
+
+  private int writeObject(StringBuilder body) throws IOException {
+    offsets.add(0L);
+    int object = offsets.size();
+    writeObject(object, body);
+    return object;
+  }
+
+  private void writeObject(int object, StringBuilder body) throws IOException {
+    offsets.set(object - 1, offset);
+    body.insert(0, String.format("%d 0 obj\n", object));
+    body.append("\nendobj\n");
+    writeBytes(body.toString().getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private int writeStream(String dictionary, StringBuilder content) throws IOException {
+    byte[] data = content.toString().getBytes(StandardCharsets.US_ASCII);
+    String filter = "";
+    if (level != 0) {
+      data = deflate(data);
+      filter = " /Filter /FlateDecode";
+    }
+    offsets.add(offset);
+    int object = offsets.size();
+    writeBytes(String.format("%d 0 obj\n<<%s /Length %d%s >>\nstream\n", object, dictionary, data.length, filter).getBytes(StandardCharsets.US_ASCII));
+    writeBytes(data);
+    writeBytes("\nendstream\nendobj\n".getBytes(StandardCharsets.US_ASCII));
+    return object;
+  }
+
+  private byte[] deflate(byte[] data) {
+    Deflater deflater = new Deflater(level);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+      byte[] buffer = new byte[8192];
+      while (deflater.finished() == false) {
+        int n = deflater.deflate(buffer);
+        bos.write(buffer, 0, n);
+      }
+      return bos.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private void writeBytes(byte[] data) throws IOException {
+    output.write(data);
+    offset += data.length;
+  }
+
+  private static void appendPath(StringBuilder sb, PathIterator it) {
+    double[] c = new double[6];
+    double lastX = 0d;
+    double lastY = 0d;
+    while (it.isDone() == false) {
+      switch (it.currentSegment(c)) {
+        case PathIterator.SEG_MOVETO:
+          appendPoints(sb, c, 1);
+          sb.append("m\n");
+          lastX = c[0];
+          lastY = c[1];
+          break;
+        case PathIterator.SEG_LINETO:
+          appendPoints(sb, c, 1);
+          sb.append("l\n");
+          lastX = c[0];
+          lastY = c[1];
+          break;
+        case PathIterator.SEG_QUADTO:
+          double x1 = lastX + 2d * (c[0] - lastX) / 3d;
+          double y1 = lastY + 2d * (c[1] - lastY) / 3d;
+          double x2 = c[2] + 2d * (c[0] - c[2]) / 3d;
+          double y2 = c[3] + 2d * (c[1] - c[3]) / 3d;
+          c[4] = c[2];
+          c[5] = c[3];
+          c[0] = x1;
+          c[1] = y1;
+          c[2] = x2;
+          c[3] = y2;
+          appendPoints(sb, c, 3);
+          sb.append("c\n");
+          lastX = c[4];
+          lastY = c[5];
+          break;
+        case PathIterator.SEG_CUBICTO:
+          appendPoints(sb, c, 3);
+          sb.append("c\n");
+          lastX = c[4];
+          lastY = c[5];
+          break;
+        default:
+          sb.append("h\n");
+          break;
+      }
+      it.next();
+    }
+  }
+
+  private static void appendPoints(StringBuilder sb, double[] c, int count) {
+    for (int i = 0; i < count * 2; i++) {
+      appendNumber(sb, c[i]);
+      sb.append(' ');
+    }
+  }
+
+  private static void appendNumber(StringBuilder sb, double v) {
+    Util.formatNumber(sb, v, 3);
+  }
+
+  private static void appendNumber(StringBuilder sb, double v, int decimals) {
+    Util.formatNumber(sb, v, decimals);
+  }
+
+  private static Color toColor(Paint paint) {
+    if (paint instanceof Color) {
+      return (Color) paint;
+    } else {
+      throw new IllegalStateException("Only colour paints can be written to PDF.");
+    }
+  }
+
+  /**
+   * Content of a single page, drawn in dots with the y axis pointing down.
+   */
+  public final class Page implements LabelCanvas {
+
+    private final int width;
+    private final int height;
+    private final StringBuilder content = new StringBuilder(65536);
+    private final Map<GlyphCache.Glyph, Integer> glyphs = new HashMap<>();
+    private final Map<LabelGeometry, Integer> backgrounds = new IdentityHashMap<>();
+    private final Map<Integer, Integer> alphas = new LinkedHashMap<>();
+    private Color fill;
+
+    private Page(int width, int height) {
+      this.width = width;
+      this.height = height;
+      double scale = 72d / dpi;
+      appendNumber(content, scale, 6);
+      content.append(" 0 0 ");
+      appendNumber(content, -scale, 6);
+      content.append(" 0 ");
+      appendNumber(content, toPoints(height));
+      content.append(" cm\n");
+    }
+
+    public int getWidth() {
+      return width;
+    }
+
+    public int getHeight() {
+      return height;
+    }
+
+    public void fillRect(Paint paint, double x, double y, double w, double h) {
+      setFill(paint);
+      appendNumber(content, x);
+      content.append(' ');
+      appendNumber(content, y);
+      content.append(' ');
+      appendNumber(content, w);
+      content.append(' ');
+      appendNumber(content, h);
+      content.append(" re f\n");
+    }
+
+    /**
+     * Intersects the clip of the rest of the page with the given rectangle.
+     */
+    public void clipRect(double x, double y, double w, double h) {
+      appendNumber(content, x);
+      content.append(' ');
+      appendNumber(content, y);
+      content.append(' ');
+      appendNumber(content, w);
+      content.append(' ');
+      appendNumber(content, h);
+      content.append(" re W n\n");
+    }
+
+    /**
+     * Moves the origin of the rest of the page by the given offset.
+     */
+    public void translate(double x, double y) {
+      content.append("1 0 0 1 ");
+      appendNumber(content, x);
+      content.append(' ');
+      appendNumber(content, y);
+      content.append(" cm\n");
+    }
+
+    public void fill(Shape shape, Paint paint) {
+      setFill(paint);
+      PathIterator it = shape.getPathIterator(null);
+      appendPath(content, it);
+      content.append(it.getWindingRule() == PathIterator.WIND_EVEN_ODD ? "f*\n" : "f\n");
+    }
+
+    @Override
+    public FontRenderContext getFontRenderContext() {
+      return FONT_RENDER_CONTEXT;
+    }
+
+    @Override
+    public void fillBackground(LabelGeometry geometry, int x, int y, boolean rotated) {
+      setFill(geometry.getBackgroundPaint());
+      int object;
+      try {
+        object = getBackground(geometry);
+      } catch (IOException ex) {
+        throw new IllegalStateException("Failed to write label background.", ex);
+      }
+      backgrounds.put(geometry, object);
+      if (rotated) {
+        content.append("q -1 0 0 -1 ").append(x + geometry.getWidth()).append(' ').append(y + geometry.getHeight());
+      } else {
+        content.append("q 1 0 0 1 ").append(x).append(' ').append(y);
+      }
+      content.append(" cm /B").append(object).append(" Do Q\n");
+    }
+
+    @Override
+    public void fillGlyph(LabelGeometry geometry, GlyphCache.Glyph glyph, AffineTransform transform) {
+      setFill(geometry.getTextPaint());
+      int object;
+      try {
+        object = getGlyph(glyph);
+      } catch (IOException ex) {
+        throw new IllegalStateException("Failed to write glyph.", ex);
+      }
+      glyphs.put(glyph, object);
+      content.append("q ");
+      appendNumber(content, transform.getScaleX(), 6);
+      content.append(' ');
+      appendNumber(content, transform.getShearY(), 6);
+      content.append(' ');
+      appendNumber(content, transform.getShearX(), 6);
+      content.append(' ');
+      appendNumber(content, transform.getScaleY(), 6);
+      content.append(' ');
+      appendNumber(content, transform.getTranslateX());
+      content.append(' ');
+      appendNumber(content, transform.getTranslateY());
+      content.append(" cm /G").append(object).append(" Do Q\n");
+    }
+
+    @Override
+    public void endText(LabelGeometry geometry) {
+
+    }
+
+    private void setFill(Paint paint) {
+      Color c = toColor(paint);
+      if (c.equals(fill)) {
+        return;
+      }
+      if ((fill == null) || (fill.getAlpha() != c.getAlpha())) {
+        int object;
+        try {
+          object = getAlpha(c.getAlpha());
+        } catch (IOException ex) {
+          throw new IllegalStateException("Failed to write graphics state.", ex);
+        }
+        alphas.put(c.getAlpha(), object);
+        content.append("/A").append(object).append(" gs\n");
+      }
+      if ((fill == null) || (fill.getRGB() << 8 != c.getRGB() << 8)) {
+        appendNumber(content, c.getRed() / 255d);
+        content.append(' ');
+        appendNumber(content, c.getGreen() / 255d);
+        content.append(' ');
+        appendNumber(content, c.getBlue() / 255d);
+        content.append(" rg\n");
+      }
+      fill = c;
+    }
+
+  }
+
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import pl.derwinski.labeler.data.ColorPaint;
+import pl.derwinski.labeler.data.LabelFile;
+import pl.derwinski.labeler.data.LabelPaint;
+import pl.derwinski.labeler.data.LabelSet;
+
+/**
+ * Raster and PNG colour type of rendered pages.
+ *
+ * @author Dominik Derwiński
+ */
+public final class PixelFormat {
+
+  public static final int AUTO = -1;
+  public static final int ARGB = 0;
+  public static final int RGB = 1;
+  public static final int GRAY = 2;
+  public static final int INDEXED = 3;
+  public static final int BINARY = 4;
+
+  public static final PixelFormat ARGB_FORMAT = new PixelFormat(ARGB, null);
+
+  private static final int MAX_RAMP_STEPS = 63;
+  private static final int MIN_RAMP_STEPS = 3;
+
+  /**
+   * Picks the smallest format able to hold every colour the labels of the file
+   * can produce, antialiasing included. Binary output is never chosen
+   * automatically, as it drops antialiasing.
+   */
+  public static PixelFormat select(LabelFile labelFile) {
+    return select(labelFile, false);
+  }
+
+  /**
+   * Builds the indexed format holding every colour the labels of the file can
+   * produce, even if a smaller format would do.
+   *
+   * @throws IllegalStateException if the colours cannot be indexed, naming why
+   */
+  public static PixelFormat createIndexed(LabelFile labelFile) {
+    return select(labelFile, true);
+  }
+
+  private static PixelFormat select(LabelFile labelFile, boolean indexed) {
+    Color page = getColor(labelFile.getPagePaint());
+    if ((page == null) || (page.getAlpha() != 255)) {
+      if (indexed) {
+        throw new IllegalStateException("An indexed image needs an opaque single colour page paint.");
+      }
+      return ARGB_FORMAT;
+    }
+    LinkedHashSet<Long> pairs = new LinkedHashSet<>();
+    LinkedHashSet<Integer> colors = new LinkedHashSet<>();
+    colors.add(page.getRGB());
+    boolean gray = isGray(page);
+    for (int i = 0; i < labelFile.getLabelSets().size(); i++) {
+      LabelSet labelSet = labelFile.getLabelSets().get(i);
+      Color background = getColor(labelSet.getBackgroundPaint());
+      Color text = getColor(labelSet.getTextPaint());
+      if ((background == null) || (text == null)) {
+        if (indexed) {
+          throw new IllegalStateException(String.format("An indexed image needs single colour paints, label set %d has another.", i + 1));
+        }
+        return new PixelFormat(RGB, null);
+      }
+      gray = gray && isGray(background) && isGray(text);
+      Color effectiveBackground = blend(background, page);
+      Color effectiveText = blend(text, effectiveBackground);
+      colors.add(effectiveBackground.getRGB());
+      colors.add(effectiveText.getRGB());
+      pairs.add(pair(effectiveBackground, page));
+      pairs.add(pair(effectiveText, effectiveBackground));
+    }
+    if (gray && (indexed == false)) {
+      return new PixelFormat(GRAY, null);
+    }
+    int start = pairs.isEmpty() ? 0 : Math.min(MAX_RAMP_STEPS, (256 - colors.size()) / pairs.size());
+    for (int steps = Math.max(start, MIN_RAMP_STEPS); steps >= MIN_RAMP_STEPS; steps--) {
+      LinkedHashSet<Integer> palette = new LinkedHashSet<>(colors);
+      for (Long pair : pairs) {
+        Color a = new Color((int) (pair >>> 32));
+        Color b = new Color(pair.intValue());
+        for (int s = 1; s <= steps; s++) {
+          palette.add(mix(a, b, (double) s / (double) (steps + 1)));
+        }
+      }
+      if (palette.size() <= 256) {
+        return new PixelFormat(INDEXED, createColorModel(8, palette));
+      }
+    }
+    if (indexed) {
+      throw new IllegalStateException(String.format("Too many colours for an indexed image, %d colours and %d blends need more than 256 entries.", colors.size(), pairs.size()));
+    }
+    return new PixelFormat(RGB, null);
+  }
+
+  public static PixelFormat create(int type, LabelFile labelFile) {
+    switch (type) {
+      case AUTO:
+        return select(labelFile);
+      case ARGB:
+        return ARGB_FORMAT;
+      case RGB:
+      case GRAY:
+        return new PixelFormat(type, null);
+      case INDEXED:
+        return createIndexed(labelFile);
+      case BINARY:
+        LinkedHashSet<Integer> palette = new LinkedHashSet<>();
+        palette.add(Color.BLACK.getRGB());
+        palette.add(Color.WHITE.getRGB());
+        return new PixelFormat(BINARY, createColorModel(1, palette));
+      default:
+        throw new IllegalArgumentException(String.format("Unknown pixel format %d.", type));
+    }
+  }
+
+  /**
+   * Returns the format of an image created by {@link #createImage(int, int)}.
+   */
+  public static PixelFormat of(BufferedImage image) {
+    switch (image.getType()) {
+      case BufferedImage.TYPE_INT_ARGB:
+        return ARGB_FORMAT;
+      case BufferedImage.TYPE_INT_RGB:
+        return new PixelFormat(RGB, null);
+      case BufferedImage.TYPE_BYTE_GRAY:
+        return new PixelFormat(GRAY, null);
+      case BufferedImage.TYPE_BYTE_INDEXED:
+        return new PixelFormat(INDEXED, (IndexColorModel) image.getColorModel());
+      case BufferedImage.TYPE_BYTE_BINARY:
+        if (image.getColorModel().getPixelSize() == 1) {
+          return new PixelFormat(BINARY, (IndexColorModel) image.getColorModel());
+        }
+        break;
+    }
+    throw new IllegalArgumentException(String.format("Unsupported image type %d.", image.getType()));
+  }
+
+  private static Color getColor(LabelPaint paint) {
+    if (paint instanceof ColorPaint) {
+      return ((ColorPaint) paint).createColor();
+    } else {
+      return null;
+    }
+  }
+
+  private static boolean isGray(Color c) {
+    return (c.getRed() == c.getGreen()) && (c.getGreen() == c.getBlue());
+  }
+
+  private static Color blend(Color top, Color bottom) {
+    return new Color(mix(top, bottom, top.getAlpha() / 255d));
+  }
+
+  private static long pair(Color a, Color b) {
+    return ((long) a.getRGB() << 32) | (b.getRGB() & 0xffffffffL);
+  }
+
+  private static int mix(Color a, Color b, double t) {
+    int r = (int) Math.round(a.getRed() * t + b.getRed() * (1d - t));
+    int g = (int) Math.round(a.getGreen() * t + b.getGreen() * (1d - t));
+    int bl = (int) Math.round(a.getBlue() * t + b.getBlue() * (1d - t));
+    return 0xff000000 | (r << 16) | (g << 8) | bl;
+  }
+
+  private static IndexColorModel createColorModel(int bits, LinkedHashSet<Integer> palette) {
+    int[] cmap = new int[palette.size()];
+    int i = 0;
+    for (Integer c : palette) {
+      cmap[i++] = c;
+    }
+    return new IndexColorModel(bits, cmap.length, cmap, 0, false, -1, DataBuffer.TYPE_BYTE);
+  }
+
+  private final int type;
+  private final IndexColorModel colorModel;
+  private final int[] palette;
+  private final ConcurrentHashMap<Integer, Byte> nearest = new ConcurrentHashMap<>();
+
+  private PixelFormat(int type, IndexColorModel colorModel) {
+    this.type = type;
+    this.colorModel = colorModel;
+    if (colorModel != null) {
+      palette = new int[colorModel.getMapSize()];
+      colorModel.getRGBs(palette);
+    } else {
+      palette = null;
+    }
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  public IndexColorModel getColorModel() {
+    return colorModel;
+  }
+
+  public boolean isAntialiased() {
+    return type != BINARY;
+  }
+
+  /**
+   * Whether labels are drawn straight into the page raster. Indexed pages are
+   * drawn into an RGB raster first and quantized exactly, as Java2D dithers
+   * when drawing into indexed images.
+   */
+  public boolean isDrawnDirectly() {
+    return type != INDEXED;
+  }
+
+  public int getImageType() {
+    switch (type) {
+      case ARGB:
+        return BufferedImage.TYPE_INT_ARGB;
+      case RGB:
+        return BufferedImage.TYPE_INT_RGB;
+      case GRAY:
+        return BufferedImage.TYPE_BYTE_GRAY;
+      case INDEXED:
+        return BufferedImage.TYPE_BYTE_INDEXED;
+      default:
+        return BufferedImage.TYPE_BYTE_BINARY;
+    }
+  }
+
+  public BufferedImage createImage(int width, int height) {
+    if (colorModel != null) {
+      return new BufferedImage(width, height, getImageType(), colorModel);
+    } else {
+      return new BufferedImage(width, height, getImageType());
+    }
+  }
+
+  /**
+   * Creates an image labels can be drawn into, later converted with
+   * {@link #toIndex(int)} if this format is not drawn directly.
+   */
+  public BufferedImage createDrawingImage(int width, int height) {
+    if (isDrawnDirectly()) {
+      return createImage(width, height);
+    } else {
+      return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+  }
+
+  public int getPngColorType() {
+    switch (type) {
+      case ARGB:
+        return 6;
+      case RGB:
+        return 2;
+      case GRAY:
+        return 0;
+      default:
+        return 3;
+    }
+  }
+
+  public int getPngBitDepth() {
+    return type == BINARY ? 1 : 8;
+  }
+
+  public int getBitsPerPixel() {
+    switch (type) {
+      case ARGB:
+        return 32;
+      case RGB:
+        return 24;
+      case BINARY:
+        return 1;
+      default:
+        return 8;
+    }
+  }
+
+  public int[] getPalette() {
+    return palette != null ? Arrays.copyOf(palette, palette.length) : null;
+  }
+
+  /**
+   * Maps an RGB colour to the index of the palette entry, or the nearest one.
+   */
+  public byte toIndex(int rgb) {
+    rgb |= 0xff000000;
+    Byte index = nearest.get(rgb);
+    if (index == null) {
+      int r = (rgb >> 16) & 0xff;
+      int g = (rgb >> 8) & 0xff;
+      int b = rgb & 0xff;
+      int best = 0;
+      int bestDistance = Integer.MAX_VALUE;
+      for (int i = 0; i < palette.length; i++) {
+        int dr = ((palette[i] >> 16) & 0xff) - r;
+        int dg = ((palette[i] >> 8) & 0xff) - g;
+        int db = (palette[i] & 0xff) - b;
+        int distance = dr * dr + dg * dg + db * db;
+        if (distance < bestDistance) {
+          best = i;
+          bestDistance = distance;
+          if (distance == 0) {
+            break;
+          }
+        }
+      }
+      index = (byte) best;
+      nearest.putIfAbsent(rgb, index);
+    }
+    return index;
+  }
+
+  /**
+   * Maps a run of RGB pixels to palette indices.
+   */
+  public void toIndices(int[] rgb, int offset, byte[] target, int targetOffset, int length) {
+    if (length <= 0) {
+      return;
+    }
+    int last = ~rgb[offset];
+    byte index = 0;
+    for (int i = 0; i < length; i++) {
+      int c = rgb[offset + i];
+      if (c != last) {
+        index = toIndex(c);
+        last = c;
+      }
+      target[targetOffset + i] = index;
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("PixelFormat [type=");
+    sb.append(type);
+    sb.append(", colors=");
+    sb.append(palette != null ? palette.length : 0);
+    sb.append("]");
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a PNG image row by row, so the whole image never has to be in memory.
+ * Rows are filtered adaptively and collected into blocks, which are deflated
+ * independently (each primed with the tail of the previous block) and can be
+ * compressed in parallel on the given executor, then joined into a single
+ * zlib stream in order.
+ *
+ * @author Dominik Derwiński
+ */
+public final class PngEncoder {
+
+  private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+  private static final int CHUNK_SIZE = 65536;
+  private static final int BLOCK_SIZE = 131072;
+  private static final int DICTIONARY_SIZE = 32768;
+
+  private final DataOutputStream output;
+  private final int width;
+  private final int height;
+  private final PixelFormat format;
+  private final int bytesPerPixel;
+  private final int level;
+  private final Executor executor;
+  private final int maxPending;
+  private final int rowLength;
+  private byte[] previous;
+  private byte[] current;
+  private final byte[][] filtered = new byte[5][];
+  private byte[] block;
+  private int blockLength;
+  private byte[] dictionary;
+  private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+  private final Adler32 adler = new Adler32();
+  private final ByteArrayOutputStream idat = new ByteArrayOutputStream(CHUNK_SIZE);
+  private final CRC32 crc = new CRC32();
+  private int rowsWritten;
+
+  public PngEncoder(OutputStream output, int width, int height, double dpi) throws IOException {
+    this(output, width, height, dpi, PixelFormat.ARGB_FORMAT, Deflater.DEFAULT_COMPRESSION, null);
+  }
+
+  public PngEncoder(OutputStream output, int width, int height, double dpi, int level, Executor executor) throws IOException {
+    this(output, width, height, dpi, PixelFormat.ARGB_FORMAT, level, executor);
+  }
+
+  /**
+   * @param format pixel format deciding the colour type and bit depth of the
+   * image
+   * @param level deflate level, from 0 (fastest) to 9 (smallest), or -1 for
+   * the default
+   * @param executor executor compressing blocks in parallel, or null to
+   * compress them on the calling thread
+   */
+  public PngEncoder(OutputStream output, int width, int height, double dpi, PixelFormat format, int level, Executor executor) throws IOException {
+    if ((width <= 0) || (height <= 0)) {
+      throw new IllegalArgumentException("Image size must be greater than 0.");
+    }
+    if ((level < -1) || (level > 9)) {
+      throw new IllegalArgumentException("Compression level must be between -1 and 9.");
+    }
+    this.output = new DataOutputStream(output);
+    this.width = width;
+    this.height = height;
+    this.format = format;
+    this.bytesPerPixel = Math.max(1, format.getBitsPerPixel() / 8);
+    this.level = level;
+    this.executor = executor;
+    this.maxPending = executor != null ? Math.max(2, Runtime.getRuntime().availableProcessors() * 2) : 1;
+    this.rowLength = (int) (((long) width * format.getBitsPerPixel() + 7L) / 8L);
+    this.previous = new byte[rowLength];
+    this.current = new byte[rowLength];
+    for (int i = 0; i < filtered.length; i++) {
+      filtered[i] = new byte[rowLength];
+    }
+    this.block = new byte[BLOCK_SIZE + rowLength + 1];
+    this.output.write(SIGNATURE);
+    writeHeader();
+    if (format.getPalette() != null) {
+      writePalette(format.getPalette());
+    }
+    writePhysicalSize(dpi);
+    idat.write(0x78);
+    idat.write(0x9c);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public PixelFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * Appends the first rows of an image, which must be in the pixel format of
+   * the encoder, or an RGB image if the format is not drawn directly.
+   */
+  public void writeRows(BufferedImage image, int rows) throws IOException {
+    DataBuffer buffer = image.getRaster().getDataBuffer();
+    SampleModel sm = image.getSampleModel();
+    if (buffer instanceof DataBufferInt) {
+      int scanline = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+      writeRows(((DataBufferInt) buffer).getData(), buffer.getOffset(), scanline, rows);
+    } else if (buffer instanceof DataBufferByte) {
+      int scanline;
+      if (sm instanceof MultiPixelPackedSampleModel) {
+        scanline = ((MultiPixelPackedSampleModel) sm).getScanlineStride();
+      } else {
+        scanline = ((ComponentSampleModel) sm).getScanlineStride();
+      }
+      writeRows(((DataBufferByte) buffer).getData(), buffer.getOffset(), scanline, rows);
+    } else {
+      throw new IllegalArgumentException("Unsupported image type.");
+    }
+  }
+
+  /**
+   * Appends rows of ARGB or RGB pixels, as stored in a TYPE_INT_ARGB or
+   * TYPE_INT_RGB raster, converting them to the pixel format of the encoder.
+   */
+  public void writeRows(int[] argb, int offset, int scanline, int rows) throws IOException {
+    if (rowsWritten + rows > height) {
+      throw new IllegalStateException("Too many rows.");
+    }
+    int type = format.getType();
+    for (int r = 0; r < rows; r++) {
+      int p = offset + r * scanline;
+      if (type == PixelFormat.INDEXED) {
+        format.toIndices(argb, p, current, 0, width);
+        appendRow();
+        continue;
+      }
+      int j = 0;
+      for (int i = 0; i < width; i++) {
+        int c = argb[p + i];
+        switch (type) {
+          case PixelFormat.ARGB:
+            current[j++] = (byte) (c >> 16);
+            current[j++] = (byte) (c >> 8);
+            current[j++] = (byte) c;
+            current[j++] = (byte) (c >> 24);
+            break;
+          case PixelFormat.RGB:
+            current[j++] = (byte) (c >> 16);
+            current[j++] = (byte) (c >> 8);
+            current[j++] = (byte) c;
+            break;
+          case PixelFormat.GRAY:
+            current[j++] = (byte) ((((c >> 16) & 0xff) * 77 + ((c >> 8) & 0xff) * 150 + (c & 0xff) * 29 + 128) >> 8);
+            break;
+          default:
+            if (format.toIndex(c) != 0) {
+              current[i >> 3] |= (byte) (0x80 >>> (i & 7));
+            } else {
+              current[i >> 3] &= (byte) ~(0x80 >>> (i & 7));
+            }
+            break;
+        }
+      }
+      appendRow();
+    }
+  }
+
+  /**
+   * Appends rows already in the pixel format of the encoder, as stored in a
+   * TYPE_BYTE_GRAY, TYPE_BYTE_INDEXED or TYPE_BYTE_BINARY raster.
+   */
+  public void writeRows(byte[] data, int offset, int scanline, int rows) throws IOException {
+    if (format.getBitsPerPixel() > 8) {
+      throw new IllegalStateException("Byte rows require a gray, indexed or binary format.");
+    }
+    if (rowsWritten + rows > height) {
+      throw new IllegalStateException("Too many rows.");
+    }
+    for (int r = 0; r < rows; r++) {
+      System.arraycopy(data, offset + r * scanline, current, 0, rowLength);
+      appendRow();
+    }
+  }
+
+  /**
+   * Appends all rows of a run length encoded page, which must be in the pixel
+   * format of the encoder. Each row is expanded from its runs only when it
+   * differs from the previous one.
+   */
+  public void writeRows(RunLengthPage page) throws IOException {
+    if (page.getWidth() != width) {
+      throw new IllegalArgumentException("Page width does not match the encoder.");
+    }
+    if (rowsWritten + page.getRowsAppended() > height) {
+      throw new IllegalStateException("Too many rows.");
+    }
+    int[] runs = page.getRuns();
+    int type = format.getType();
+    for (int y = 0; y < page.getRowsAppended(); y++) {
+      int p = page.getRowOffset(y);
+      if ((y > 0) && (p == page.getRowOffset(y - 1))) {
+        System.arraycopy(previous, 0, current, 0, rowLength);
+        appendRow();
+        continue;
+      }
+      if (type == PixelFormat.BINARY) {
+        Arrays.fill(current, (byte) 0);
+      }
+      int x = 0;
+      int j = 0;
+      for (int i = 0; i < page.getRowRunCount(y); i++) {
+        int n = runs[p + 2 * i];
+        int c = runs[p + 2 * i + 1];
+        switch (type) {
+          case PixelFormat.ARGB:
+            for (int k = 0; k < n; k++) {
+              current[j++] = (byte) (c >> 16);
+              current[j++] = (byte) (c >> 8);
+              current[j++] = (byte) c;
+              current[j++] = (byte) (c >> 24);
+            }
+            break;
+          case PixelFormat.RGB:
+            for (int k = 0; k < n; k++) {
+              current[j++] = (byte) (c >> 16);
+              current[j++] = (byte) (c >> 8);
+              current[j++] = (byte) c;
+            }
+            break;
+          case PixelFormat.BINARY:
+            if (c != 0) {
+              for (int k = x; k < x + n; k++) {
+                current[k >> 3] |= (byte) (0x80 >>> (k & 7));
+              }
+            }
+            break;
+          default:
+            Arrays.fill(current, j, j + n, (byte) c);
+            j += n;
+            break;
+        }
+        x += n;
+      }
+      appendRow();
+    }
+  }
+
+  private void appendRow() throws IOException {
+    int filter = filterRow(rowsWritten == 0);
+    block[blockLength++] = (byte) filter;
+    System.arraycopy(filtered[filter], 0, block, blockLength, rowLength);
+    blockLength += rowLength;
+    byte[] swap = previous;
+    previous = current;
+    current = swap;
+    rowsWritten++;
+    if (blockLength >= BLOCK_SIZE) {
+      submitBlock(false);
+    }
+  }
+
+  public void finish() throws IOException {
+    if (rowsWritten != height) {
+      throw new IllegalStateException(String.format("Expected %d rows, got %d.", height, rowsWritten));
+    }
+    submitBlock(true);
+    while (pending.isEmpty() == false) {
+      writeCompressed(pending.poll());
+    }
+    int checksum = (int) adler.getValue();
+    idat.write(checksum >>> 24);
+    idat.write(checksum >>> 16);
+    idat.write(checksum >>> 8);
+    idat.write(checksum);
+    flushData();
+    writeChunk("IEND", new byte[0], 0);
+    output.flush();
+  }
+
+  private int filterRow(boolean first) {
+    byte[] none = filtered[0];
+    byte[] sub = filtered[1];
+    byte[] up = filtered[2];
+    byte[] average = filtered[3];
+    byte[] paeth = filtered[4];
+    long sumNone = 0;
+    long sumSub = 0;
+    long sumUp = 0;
+    long sumAverage = 0;
+    long sumPaeth = 0;
+    for (int i = 0; i < rowLength; i++) {
+      int x = current[i] & 0xff;
+      int a = i >= bytesPerPixel ? current[i - bytesPerPixel] & 0xff : 0;
+      int b = first ? 0 : previous[i] & 0xff;
+      int c = (first || (i < bytesPerPixel)) ? 0 : previous[i - bytesPerPixel] & 0xff;
+
+      none[i] = (byte) x;
+      sumNone += x;
+
+      byte v = (byte) (x - a);
+      sub[i] = v;
+      sumSub += Math.abs(v);
+
+      v = (byte) (x - b);
+      up[i] = v;
+      sumUp += Math.abs(v);
+
+      v = (byte) (x - ((a + b) >>> 1));
+      average[i] = v;
+      sumAverage += Math.abs(v);
+
+      int pa = Math.abs(b - c);
+      int pb = Math.abs(a - c);
+      int pc = Math.abs(a + b - c - c);
+      int predictor = ((pa <= pb) && (pa <= pc)) ? a : (pb <= pc) ? b : c;
+      v = (byte) (x - predictor);
+      paeth[i] = v;
+      sumPaeth += Math.abs(v);
+    }
+    int best = 0;
+    long bestSum = sumNone;
+    if (sumSub < bestSum) {
+      best = 1;
+      bestSum = sumSub;
+    }
+    if (sumUp < bestSum) {
+      best = 2;
+      bestSum = sumUp;
+    }
+    if (sumAverage < bestSum) {
+      best = 3;
+      bestSum = sumAverage;
+    }
+    if (sumPaeth < bestSum) {
+      best = 4;
+    }
+    return best;
+  }
+
+  private void submitBlock(boolean last) throws IOException {
+    byte[] data = block;
+    int length = blockLength;
+    byte[] dict = dictionary;
+    adler.update(data, 0, length);
+    if (last == false) {
+      int n = Math.min(DICTIONARY_SIZE, length);
+      dictionary = Arrays.copyOfRange(data, length - n, length);
+      block = new byte[BLOCK_SIZE + rowLength + 1];
+      blockLength = 0;
+    }
+    if (executor != null) {
+      pending.add(CompletableFuture.supplyAsync(() -> deflate(data, length, dict, last), executor));
+    } else {
+      pending.add(CompletableFuture.completedFuture(deflate(data, length, dict, last)));
+    }
+    while (pending.size() >= maxPending) {
+      writeCompressed(pending.poll());
+    }
+  }
+
+  private byte[] deflate(byte[] data, int length, byte[] dict, boolean last) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      if (dict != null) {
+        deflater.setDictionary(dict);
+      }
+      deflater.setInput(data, 0, length);
+      ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(64, length / 4));
+      byte[] buffer = new byte[CHUNK_SIZE];
+      if (last) {
+        deflater.finish();
+        while (deflater.finished() == false) {
+          int n = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+          bos.write(buffer, 0, n);
+        }
+      } else {
+        int n;
+        do {
+          n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          bos.write(buffer, 0, n);
+        } while (n == buffer.length);
+      }
+      return bos.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private void writeCompressed(CompletableFuture<byte[]> future) throws IOException {
+    byte[] data;
+    try {
+      data = future.join();
+    } catch (CompletionException ex) {
+      throw new IOException("Compression failed.", ex.getCause());
+    }
+    idat.write(data, 0, data.length);
+    if (idat.size() >= CHUNK_SIZE) {
+      flushData();
+    }
+  }
+
+  private void flushData() throws IOException {
+    if (idat.size() > 0) {
+      writeChunk("IDAT", idat.toByteArray(), idat.size());
+      idat.reset();
+    }
+  }
+
+  private void writeHeader() throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(13);
+    DataOutputStream dos = new DataOutputStream(bos);
+    dos.writeInt(width);
+    dos.writeInt(height);
+    dos.writeByte(format.getPngBitDepth());
+    dos.writeByte(format.getPngColorType());
+    dos.writeByte(0);
+    dos.writeByte(0);
+    dos.writeByte(0);
+    writeChunk("IHDR", bos.toByteArray(), bos.size());
+  }
+
+  private void writePalette(int[] palette) throws IOException {
+    byte[] data = new byte[palette.length * 3];
+    for (int i = 0; i < palette.length; i++) {
+      data[i * 3] = (byte) (palette[i] >> 16);
+      data[i * 3 + 1] = (byte) (palette[i] >> 8);
+      data[i * 3 + 2] = (byte) palette[i];
+    }
+    writeChunk("PLTE", data, data.length);
+  }
+
+  private void writePhysicalSize(double dpi) throws IOException {
+    int ppm = (int) Math.round((dpi * 1000d) / Util.MM_PER_INCH);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(9);
+    DataOutputStream dos = new DataOutputStream(bos);
+    dos.writeInt(ppm);
+    dos.writeInt(ppm);
+    dos.writeByte(1);
+    writeChunk("pHYs", bos.toByteArray(), bos.size());
+  }
+
+  private void writeChunk(String type, byte[] data, int length) throws IOException {
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    crc.reset();
+    crc.update(typeBytes);
+    crc.update(data, 0, length);
+    output.writeInt(length);
+    output.write(typeBytes);
+    output.write(data, 0, length);
+    output.writeInt((int) crc.getValue());
+  }
+
+}
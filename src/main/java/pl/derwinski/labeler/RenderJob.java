@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Render job queued on a {@link RenderScheduler}. Jobs of higher priority are
+ * started first, jobs of the same priority in the order submitted.
+ * Cancelling a job which is already running marks it done at once, the
+ * renderer stops at its next check of the progress.
+ *
+ * @author Dominik Derwiński
+ */
+public final class RenderJob<V> extends FutureTask<V> implements Comparable<RenderJob<?>> {
+
+  private final RenderProgress progress;
+  private final int priority;
+  private final long sequence;
+
+  RenderJob(RenderTask<V> task, RenderProgress progress, int priority, long sequence) {
+    super(() -> task.run(progress));
+    this.progress = progress;
+    this.priority = priority;
+    this.sequence = sequence;
+  }
+
+  public RenderProgress getProgress() {
+    return progress;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  @Override
+  public void run() {
+    if (isDone() == false) {
+      progress.started();
+      super.run();
+    }
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    progress.cancel();
+    return super.cancel(mayInterruptIfRunning);
+  }
+
+  @Override
+  protected void done() {
+    Throwable failure = null;
+    if (isCancelled() == false) {
+      try {
+        get();
+      } catch (ExecutionException ex) {
+        failure = ex.getCause();
+      } catch (CancellationException | InterruptedException ex) {
+        failure = ex;
+      }
+    }
+    progress.finished(failure);
+  }
+
+  @Override
+  public int compareTo(RenderJob<?> other) {
+    if (priority != other.priority) {
+      return priority > other.priority ? -1 : 1;
+    }
+    return Long.compare(sequence, other.sequence);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("RenderJob [name=");
+    sb.append(progress.getName());
+    sb.append(", priority=");
+    sb.append(priority);
+    sb.append(", done=");
+    sb.append(isDone());
+    sb.append(", cancelled=");
+    sb.append(isCancelled());
+    sb.append("]");
+    return sb.toString();
+  }
+
+}
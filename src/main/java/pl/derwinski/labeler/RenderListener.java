@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+/**
+ * Receives the progress events of a render job, one of the
+ * {@link RenderProgress} event constants. Events are delivered on the thread
+ * doing the work, so listeners must return quickly and hand anything else,
+ * like updating a window, over to another thread.
+ *
+ * @author Dominik Derwiński
+ */
+@FunctionalInterface
+public interface RenderListener {
+
+  void progressed(RenderProgress progress, int event);
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress of a render job: labels laid out, pages rendered and bytes
+ * encoded, shared between the thread doing the work and the ones watching
+ * it. Counters add up over all renders of the job. Cancelling is cooperative,
+ * renderers check the flag between labels and bands and stop with a
+ * {@link CancellationException}.
+ *
+ * @author Dominik Derwiński
+ */
+public final class RenderProgress {
+
+  public static final int STARTED = 0;
+  public static final int LAID_OUT = 1;
+  public static final int PAGE_RENDERED = 2;
+  public static final int COMPLETED = 3;
+  public static final int CANCELLED = 4;
+  public static final int FAILED = 5;
+
+  private final String name;
+  private final CopyOnWriteArrayList<RenderListener> listeners = new CopyOnWriteArrayList<>();
+  private final AtomicInteger labels = new AtomicInteger();
+  private final AtomicInteger pages = new AtomicInteger();
+  private final AtomicInteger pagesRendered = new AtomicInteger();
+  private final LongAdder bytes = new LongAdder();
+  private volatile boolean cancelled;
+  private volatile Throwable failure;
+
+  public RenderProgress(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void addListener(RenderListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(RenderListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Returns the number of labels laid out.
+   */
+  public int getLabels() {
+    return labels.get();
+  }
+
+  /**
+   * Returns the number of pages laid out, roll segments counted as pages.
+   */
+  public int getPages() {
+    return pages.get();
+  }
+
+  public int getPagesRendered() {
+    return pagesRendered.get();
+  }
+
+  /**
+   * Returns the number of bytes written to page outputs and streams.
+   */
+  public long getBytes() {
+    return bytes.sum();
+  }
+
+  /**
+   * Returns the rendered part of the laid out pages, from 0 to 1.
+   */
+  public double getFraction() {
+    int total = pages.get();
+    return total > 0 ? Math.min(1d, (double) pagesRendered.get() / total) : 0d;
+  }
+
+  /**
+   * Returns the exception the job failed with, or null.
+   */
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  /**
+   * Asks the renderers using this progress to stop as soon as possible.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Throws a CancellationException if the job was cancelled.
+   */
+  public void checkCancelled() {
+    if (cancelled) {
+      throw new CancellationException(String.format("Rendering %s was cancelled.", name));
+    }
+  }
+
+  void started() {
+    fire(STARTED);
+  }
+
+  void laidOut(int labelCount, int pageCount) {
+    labels.addAndGet(labelCount);
+    pages.addAndGet(pageCount);
+    fire(LAID_OUT);
+  }
+
+  void pageRendered() {
+    pagesRendered.incrementAndGet();
+    fire(PAGE_RENDERED);
+  }
+
+  void written(int length) {
+    bytes.add(length);
+  }
+
+  void finished(Throwable failure) {
+    this.failure = failure;
+    fire(cancelled ? CANCELLED : failure != null ? FAILED : COMPLETED);
+  }
+
+  private void fire(int event) {
+    for (RenderListener listener : listeners) {
+      listener.progressed(this, event);
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("RenderProgress [name=");
+    sb.append(name);
+    sb.append(", labels=");
+    sb.append(labels.get());
+    sb.append(", pages=");
+    sb.append(pagesRendered.get());
+    sb.append("/");
+    sb.append(pages.get());
+    sb.append(", bytes=");
+    sb.append(bytes.sum());
+    sb.append(", cancelled=");
+    sb.append(cancelled);
+    sb.append("]");
+    return sb.toString();
+  }
+
+}
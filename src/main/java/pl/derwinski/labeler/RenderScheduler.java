@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs render jobs on a fixed number of threads, interactive work like a
+ * preview ahead of exports and exports ahead of bulk jobs. Listeners added to
+ * the scheduler receive the events of every job submitted afterwards.
+ *
+ * @author Dominik Derwiński
+ */
+public final class RenderScheduler implements Closeable {
+
+  public static final int PRIORITY_BULK = 0;
+  public static final int PRIORITY_NORMAL = 5;
+  public static final int PRIORITY_INTERACTIVE = 10;
+
+  private final ThreadPoolExecutor executor;
+  private final CopyOnWriteArrayList<RenderListener> listeners = new CopyOnWriteArrayList<>();
+  private final Set<RenderJob<?>> jobs = ConcurrentHashMap.newKeySet();
+  private final AtomicLong sequence = new AtomicLong();
+
+  public RenderScheduler(int threads) {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("Thread count must be greater than 0.");
+    }
+    AtomicInteger count = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), r -> {
+      Thread thread = new Thread(r, String.format("render-job-%d", count.incrementAndGet()));
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public void addListener(RenderListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(RenderListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Queues a task with the given priority, one of the priority constants or
+   * any other value, higher running first.
+   */
+  public <V> RenderJob<V> submit(String name, int priority, RenderTask<V> task) {
+    return submit(name, priority, task, null);
+  }
+
+  /**
+   * Queues a task like {@link #submit(String, int, RenderTask)}, with a
+   * listener of its own added before it can start.
+   */
+  public <V> RenderJob<V> submit(String name, int priority, RenderTask<V> task, RenderListener listener) {
+    if (executor.isShutdown()) {
+      throw new IllegalStateException("Scheduler is closed.");
+    }
+    RenderProgress progress = new RenderProgress(name);
+    for (RenderListener l : listeners) {
+      progress.addListener(l);
+    }
+    if (listener != null) {
+      progress.addListener(listener);
+    }
+    RenderJob<V> job = new RenderJob<>(task, progress, priority, sequence.getAndIncrement());
+    progress.addListener((p, event) -> {
+      if (event >= RenderProgress.COMPLETED) {
+        jobs.remove(job);
+      }
+    });
+    jobs.add(job);
+    executor.execute(job);
+    return job;
+  }
+
+  /**
+   * Returns the number of jobs waiting for a thread.
+   */
+  public int getQueued() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Returns the number of jobs queued or running.
+   */
+  public int getPending() {
+    return jobs.size();
+  }
+
+  /**
+   * Cancels all jobs, queued and running, and stops the threads once the
+   * running jobs return.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+    for (RenderJob<?> job : jobs) {
+      job.cancel(false);
+    }
+    executor.getQueue().clear();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("RenderScheduler [threads=");
+    sb.append(executor.getMaximumPoolSize());
+    sb.append(", queued=");
+    sb.append(getQueued());
+    sb.append(", pending=");
+    sb.append(jobs.size());
+    sb.append("]");
+    return sb.toString();
+  }
+
+}
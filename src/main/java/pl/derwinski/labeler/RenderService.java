@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import pl.derwinski.labeler.data.LabelFile;
+
+/**
+ * HTTP service rendering label files posted to {@code /render}. Requests are
+ * read and answered on virtual threads, while layout and rendering run on a
+ * fixed number of platform threads with a bounded queue. A request finding
+ * the queue full is answered with 429 and a Retry-After header at once, one
+ * arriving while the service stops with 503.
+ * <p>
+ * The request body is the label file XML. The {@code format} parameter
+ * selects {@code png} (default) or {@code pdf}, the {@code page} parameter
+ * the PNG page, from 1. The page count is returned in the X-Page-Count
+ * header. Files with pages larger than {@link #MAX_PAGE_PIXELS} or more than
+ * {@link #MAX_PAGES} pages are answered with 422 before anything is drawn.
+ * <p>
+ * Responses are rendered into memory and sent once complete, so a slow client
+ * never holds a render thread, and a failed render can still be answered with
+ * an error status.
+ *
+ * @author Dominik Derwiński
+ */
+public final class RenderService implements Closeable {
+
+  public static final int DEFAULT_PORT = 8080;
+  public static final int DEFAULT_QUEUE_SIZE = 256;
+  public static final int MAX_REQUEST_BYTES = 4 << 20;
+  public static final long MAX_PAGE_PIXELS = 1L << 26;
+  public static final int MAX_PAGES = 1000;
+
+  private static final int BAND_HEIGHT = 256;
+  private static final int RETRY_AFTER_SECONDS = 1;
+  private static final String USAGE = "Usage: RenderService [-b address] [-p port] [-j threads] [-q queue size]";
+
+  private final HttpServer server;
+  private final ExecutorService requestExecutor;
+  private final ThreadPoolExecutor renderExecutor;
+  private final ForkJoinPool encoderPool;
+  private final StampCache stampCache = new StampCache(StampCache.DEFAULT_MAX_BYTES);
+  private final LongAdder rendered = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+
+  /**
+   * Binds the service to the given address, port 0 choosing a free one. The
+   * service does not accept requests until started.
+   */
+  public RenderService(InetSocketAddress address, int threads, int queueSize) throws IOException {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("Thread count must be greater than 0.");
+    }
+    if (queueSize < 0) {
+      throw new IllegalArgumentException("Queue size must be greater or equal 0.");
+    }
+    AtomicInteger count = new AtomicInteger();
+    BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>();
+    renderExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue, r -> {
+      Thread thread = new Thread(r, String.format("render-%d", count.incrementAndGet()));
+      thread.setDaemon(true);
+      return thread;
+    });
+    encoderPool = new ForkJoinPool(threads);
+    requestExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    server = HttpServer.create(address, 0);
+    server.setExecutor(requestExecutor);
+    server.createContext("/render", this::handle);
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Returns the number of requests answered with an image.
+   */
+  public long getRendered() {
+    return rendered.sum();
+  }
+
+  /**
+   * Returns the number of requests turned away because the queue was full.
+   */
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  /**
+   * Returns the number of requests which could not be rendered.
+   */
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  /**
+   * Returns the number of requests waiting for a render thread.
+   */
+  public int getQueued() {
+    return renderExecutor.getQueue().size();
+  }
+
+  /**
+   * Stops accepting requests, answers the queued ones with 503, waits a second
+   * for the ones being rendered and stops the render threads.
+   */
+  @Override
+  public void close() {
+    renderExecutor.shutdown();
+    ArrayList<Runnable> queued = new ArrayList<>();
+    renderExecutor.getQueue().drainTo(queued);
+    cancel(queued);
+    server.stop(1);
+    cancel(renderExecutor.shutdownNow());
+    requestExecutor.shutdownNow();
+    encoderPool.shutdownNow();
+  }
+
+  private static void cancel(Iterable<Runnable> tasks) {
+    for (Runnable task : tasks) {
+      if (task instanceof Future) {
+        ((Future<?>) task).cancel(false);
+      }
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if ("POST".equalsIgnoreCase(exchange.getRequestMethod()) == false) {
+        exchange.getResponseHeaders().set("Allow", "POST");
+        sendText(exchange, 405, "Only POST is supported.");
+        return;
+      }
+      String format = "png";
+      int page = 1;
+      String query = exchange.getRequestURI().getRawQuery();
+      if (query != null) {
+        for (String parameter : query.split("&")) {
+          int i = parameter.indexOf('=');
+          String name = URLDecoder.decode(i < 0 ? parameter : parameter.substring(0, i), StandardCharsets.UTF_8);
+          String value = i < 0 ? "" : URLDecoder.decode(parameter.substring(i + 1), StandardCharsets.UTF_8);
+          if (name.equals("format")) {
+            format = value.toLowerCase();
+          } else if (name.equals("page")) {
+            try {
+              page = Integer.parseInt(value);
+            } catch (NumberFormatException ex) {
+              page = 0;
+            }
+          }
+        }
+      }
+      if ((format.equals("png") || format.equals("pdf")) == false) {
+        sendText(exchange, 400, String.format("Unknown format %s.", format));
+        return;
+      }
+      if (page <= 0) {
+        sendText(exchange, 400, "Page must be greater than 0.");
+        return;
+      }
+
+      byte[] body = exchange.getRequestBody().readNBytes(MAX_REQUEST_BYTES + 1);
+      if (body.length > MAX_REQUEST_BYTES) {
+        sendText(exchange, 413, String.format("Label file must not be larger than %d bytes.", MAX_REQUEST_BYTES));
+        return;
+      }
+      LabelFile labelFile;
+      try {
+        labelFile = LabelFile.load(new ByteArrayInputStream(body));
+      } catch (IOException | RuntimeException ex) {
+        sendText(exchange, 400, "Invalid label file.");
+        return;
+      }
+
+      boolean pdf = format.equals("pdf");
+      int pageIndex = page - 1;
+      Future<Result> future;
+      try {
+        future = renderExecutor.submit(() -> render(labelFile, pdf, pageIndex));
+      } catch (RejectedExecutionException ex) {
+        rejected.increment();
+        exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+        if (renderExecutor.isShutdown()) {
+          sendText(exchange, 503, "Service is stopping.");
+        } else {
+          sendText(exchange, 429, "Too many requests, try again later.");
+        }
+        return;
+      }
+
+      Result result;
+      try {
+        result = future.get();
+      } catch (ExecutionException ex) {
+        failed.increment();
+        Throwable cause = ex.getCause();
+        if ((cause instanceof IllegalArgumentException) || (cause instanceof IllegalStateException)) {
+          sendText(exchange, 422, Util.getMessage(cause));
+        } else {
+          sendText(exchange, 500, "Rendering failed.");
+        }
+        return;
+      } catch (CancellationException ex) {
+        exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+        sendText(exchange, 503, "Service is stopping.");
+        return;
+      } catch (InterruptedException ex) {
+        future.cancel(true);
+        Thread.currentThread().interrupt();
+        exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+        sendText(exchange, 503, "Service is stopping.");
+        return;
+      }
+      if (result.data == null) {
+        failed.increment();
+        sendText(exchange, 404, String.format("Page %d does not exist, the file has %d pages.", page, result.pages));
+        return;
+      }
+      rendered.increment();
+      exchange.getResponseHeaders().set("Content-Type", pdf ? "application/pdf" : "image/png");
+      exchange.getResponseHeaders().set("X-Page-Count", Integer.toString(result.pages));
+      exchange.sendResponseHeaders(200, result.data.size());
+      try (OutputStream os = exchange.getResponseBody()) {
+        result.data.writeTo(os);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private Result render(LabelFile labelFile, boolean pdf, int pageIndex) throws IOException {
+    checkSize(Util.mmToPixels(labelFile.getPageWidth(), labelFile.getDpi()), 1);
+    LayoutPlan plan = LayoutPlan.create(labelFile);
+    checkSize(plan.getPageWidth(), pdf ? Math.min(plan.getPageHeight(), plan.getSegmentHeight()) : plan.getPageHeight());
+    if (plan.getSegmentCount() > MAX_PAGES) {
+      throw new IllegalArgumentException(String.format("Label file must not have more than %d pages.", MAX_PAGES));
+    }
+    if ((pdf == false) && (pageIndex >= plan.getPageCount())) {
+      return new Result(plan.getPageCount(), null);
+    }
+    PageRenderer renderer = new PageRenderer();
+    renderer.setStampCache(stampCache);
+    renderer.setPool(encoderPool);
+    ByteArrayOutputStream data = new ByteArrayOutputStream(65536);
+    if (pdf) {
+      return new Result(renderer.renderPdf(labelFile, data), data);
+    }
+    renderer.setBandHeight(BAND_HEIGHT);
+    int pages = renderer.renderBanded(labelFile, p -> p == pageIndex ? data : null);
+    return new Result(pages, pageIndex < pages ? data : null);
+  }
+
+  private static void checkSize(int width, int height) {
+    if ((long) width * height > MAX_PAGE_PIXELS) {
+      throw new IllegalArgumentException(String.format("Page must not be larger than %d pixels.", MAX_PAGE_PIXELS));
+    }
+  }
+
+  private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+    byte[] data = (text + "\n").getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+    exchange.sendResponseHeaders(status, data.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(data);
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("RenderService [port=");
+    sb.append(getPort());
+    sb.append(", threads=");
+    sb.append(renderExecutor.getMaximumPoolSize());
+    sb.append(", queued=");
+    sb.append(getQueued());
+    sb.append(", rendered=");
+    sb.append(rendered.sum());
+    sb.append(", rejected=");
+    sb.append(rejected.sum());
+    sb.append(", failed=");
+    sb.append(failed.sum());
+    sb.append("]");
+    return sb.toString();
+  }
+
+  /**
+   * Starts the service and runs it until the process is stopped.
+   */
+  public static void main(String[] args) throws IOException {
+    System.setProperty("java.awt.headless", "true");
+    InetAddress address = InetAddress.getLoopbackAddress();
+    int port = DEFAULT_PORT;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int queueSize = DEFAULT_QUEUE_SIZE;
+    try {
+      for (int i = 0; i < args.length; i += 2) {
+        if ((args[i].equals("-b") || args[i].equals("-p") || args[i].equals("-j") || args[i].equals("-q")) == false) {
+          throw new IllegalArgumentException(String.format("Unknown option %s.", args[i]));
+        }
+        if (i + 1 >= args.length) {
+          throw new IllegalArgumentException(String.format("Missing value of %s.", args[i]));
+        }
+        if (args[i].equals("-b")) {
+          try {
+            address = InetAddress.getByName(args[i + 1]);
+          } catch (UnknownHostException ex) {
+            throw new IllegalArgumentException(String.format("Unknown address %s.", args[i + 1]));
+          }
+          continue;
+        }
+        int value;
+        try {
+          value = Integer.parseInt(args[i + 1]);
+        } catch (NumberFormatException ex) {
+          throw new IllegalArgumentException(String.format("Invalid number %s.", args[i + 1]));
+        }
+        if (args[i].equals("-p")) {
+          port = value;
+        } else if (args[i].equals("-j")) {
+          threads = value;
+        } else {
+          queueSize = value;
+        }
+      }
+      RenderService service = new RenderService(new InetSocketAddress(address, port), threads, queueSize);
+      Runtime.getRuntime().addShutdownHook(new Thread(service::close));
+      service.start();
+      System.out.println(String.format("Listening on %s port %d.", address.getHostAddress(), service.getPort()));
+    } catch (IllegalArgumentException ex) {
+      System.err.println(ex.getMessage());
+      System.err.println(USAGE);
+      System.exit(BatchRenderer.EXIT_USAGE);
+    }
+  }
+
+  private static final class Result {
+
+    private final int pages;
+    private final ByteArrayOutputStream data;
+
+    private Result(int pages, ByteArrayOutputStream data) {
+      this.pages = pages;
+      this.data = data;
+    }
+
+  }
+
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+/**
+ * Work run by a {@link RenderScheduler}. The task passes the progress to the
+ * renderers it uses, see {@link PageRenderer#setProgress(RenderProgress)},
+ * so they report to it and stop when the job is cancelled.
+ *
+ * @author Dominik Derwiński
+ */
+@FunctionalInterface
+public interface RenderTask<V> {
+
+  V run(RenderProgress progress) throws Exception;
+
+}
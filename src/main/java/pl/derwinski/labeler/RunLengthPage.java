@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Page raster stored as runs of equal pixels on each row, with consecutive
+ * equal rows stored once. Pixels are ARGB values for ARGB and RGB formats,
+ * and gray levels or palette indices for the others.
+ *
+ * @author Dominik Derwiński
+ */
+public final class RunLengthPage {
+
+  private final PixelFormat format;
+  private final int width;
+  private final int height;
+  private final int[] rowOffsets;
+  private final int[] rowRuns;
+  private int[] runs = new int[4096];
+  private int length;
+  private int rowsAppended;
+  private int[] row;
+
+  public RunLengthPage(PixelFormat format, int width, int height) {
+    if ((width <= 0) || (height <= 0)) {
+      throw new IllegalArgumentException("Page size must be greater than 0.");
+    }
+    this.format = Objects.requireNonNull(format);
+    this.width = width;
+    this.height = height;
+    this.rowOffsets = new int[height];
+    this.rowRuns = new int[height];
+  }
+
+  public PixelFormat getFormat() {
+    return format;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getRowsAppended() {
+    return rowsAppended;
+  }
+
+  /**
+   * Returns the number of runs stored, shared rows counted once.
+   */
+  public int getRunCount() {
+    return length / 2;
+  }
+
+  /**
+   * Returns the run data as pairs of run length and pixel. Must not be
+   * modified.
+   */
+  public int[] getRuns() {
+    return runs;
+  }
+
+  /**
+   * Returns the index in {@link #getRuns()} of the first run of the given row.
+   */
+  public int getRowOffset(int y) {
+    return rowOffsets[y];
+  }
+
+  public int getRowRunCount(int y) {
+    return rowRuns[y];
+  }
+
+  /**
+   * Appends the first rows of an image drawn in the drawing format of the page
+   * pixel format.
+   */
+  public void appendRows(BufferedImage image, int rows) {
+    if (image.getWidth() < width) {
+      throw new IllegalArgumentException("Image is narrower than the page.");
+    }
+    if (rowsAppended + rows > height) {
+      throw new IllegalStateException("Too many rows.");
+    }
+    if (row == null) {
+      row = new int[width];
+    }
+    DataBuffer buffer = image.getRaster().getDataBuffer();
+    for (int r = 0; r < rows; r++) {
+      if (buffer instanceof DataBufferInt) {
+        int scanline = ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+        int[] data = ((DataBufferInt) buffer).getData();
+        System.arraycopy(data, buffer.getOffset() + r * scanline, row, 0, width);
+        if (format.getType() == PixelFormat.RGB) {
+          for (int x = 0; x < width; x++) {
+            row[x] |= 0xff000000;
+          }
+        }
+      } else if (image.getSampleModel() instanceof MultiPixelPackedSampleModel) {
+        int scanline = ((MultiPixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+        byte[] data = ((DataBufferByte) buffer).getData();
+        int p = buffer.getOffset() + r * scanline;
+        for (int x = 0; x < width; x++) {
+          row[x] = (data[p + (x >> 3)] >>> (7 - (x & 7))) & 1;
+        }
+      } else {
+        int scanline = ((PixelInterleavedSampleModel) image.getSampleModel()).getScanlineStride();
+        byte[] data = ((DataBufferByte) buffer).getData();
+        int p = buffer.getOffset() + r * scanline;
+        for (int x = 0; x < width; x++) {
+          row[x] = data[p + x] & 0xff;
+        }
+      }
+      appendRow(row, format.isDrawnDirectly() == false);
+    }
+  }
+
+  private void appendRow(int[] pixels, boolean quantize) {
+    int start = length;
+    int x = 0;
+    while (x < width) {
+      int c = pixels[x];
+      int end = x + 1;
+      while ((end < width) && (pixels[end] == c)) {
+        end++;
+      }
+      ensureCapacity(length + 2);
+      runs[length++] = end - x;
+      runs[length++] = quantize ? format.toIndex(c) & 0xff : c;
+      x = end;
+    }
+    int count = (length - start) / 2;
+    if ((rowsAppended > 0) && (rowRuns[rowsAppended - 1] == count)) {
+      int previous = rowOffsets[rowsAppended - 1];
+      if (Arrays.equals(runs, previous, previous + count * 2, runs, start, length)) {
+        length = start;
+        start = previous;
+      }
+    }
+    rowOffsets[rowsAppended] = start;
+    rowRuns[rowsAppended] = count;
+    rowsAppended++;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > runs.length) {
+      runs = Arrays.copyOf(runs, Math.max(capacity, runs.length + (runs.length >> 1)));
+    }
+  }
+
+  /**
+   * Releases the spare capacity of the run data, once all rows are appended.
+   */
+  public void trim() {
+    runs = Arrays.copyOf(runs, length);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("RunLengthPage [width=");
+    sb.append(width);
+    sb.append(", height=");
+    sb.append(height);
+    sb.append(", rows=");
+    sb.append(rowsAppended);
+    sb.append(", runs=");
+    sb.append(length / 2);
+    sb.append("]");
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rasterized labels, each drawn once on a transparent tile of the label bounds
+ * and then composited at every position the same text is placed at. Tiles are
+ * evicted least recently used first once they take more than the byte
+ * budget. Threads missing the same label at once wait for the one drawing
+ * it, so every stamp is rasterized once.
+ *
+ * @author Dominik Derwiński
+ */
+public final class StampCache {
+
+  public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+  private final long maxBytes;
+  private final LinkedHashMap<Key, CompletableFuture<BufferedImage>> stamps = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+
+  public StampCache(long maxBytes) {
+    if (maxBytes <= 0L) {
+      throw new IllegalArgumentException("Cache size must be greater than 0.");
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getBytes() {
+    synchronized (stamps) {
+      return bytes;
+    }
+  }
+
+  public int getSize() {
+    synchronized (stamps) {
+      return stamps.size();
+    }
+  }
+
+  public void clear() {
+    synchronized (stamps) {
+      stamps.clear();
+      bytes = 0L;
+    }
+  }
+
+  /**
+   * Draws the label at the given position, from its stamp if it fits in the
+   * budget, rasterizing the stamp first if needed.
+   */
+  public void render(LabelGeometry geometry, int x, int y, Graphics2D g, String text, boolean antialiased, Statistics statistics) {
+    render(geometry, x, y, false, g, text, antialiased, statistics);
+  }
+
+  /**
+   * Draws the label like {@link #render(LabelGeometry, int, int, Graphics2D,
+   * String, boolean, Statistics)}, turned by 180 degrees within its bounds if
+   * rotated. Rotated labels share the stamp of upright ones.
+   */
+  public void render(LabelGeometry geometry, int x, int y, boolean rotated, Graphics2D g, String text, boolean antialiased, Statistics statistics) {
+    BufferedImage stamp = getStamp(geometry, text, antialiased, statistics);
+    if (stamp == null) {
+      createRenderer().render(geometry, x, y, rotated, g, text);
+      return;
+    }
+    if (rotated) {
+      int w = stamp.getWidth();
+      int h = stamp.getHeight();
+      g.drawImage(stamp, x + w, y + h, x, y, 0, 0, w, h, null);
+    } else {
+      g.drawImage(stamp, x, y, null);
+    }
+  }
+
+  /**
+   * Returns the stamp of the label, upright, rasterizing it first if needed.
+   * Returns null if the label does not fit in the budget, counting it as
+   * rasterized, as the caller then draws it itself.
+   */
+  public BufferedImage getStamp(LabelGeometry geometry, String text, boolean antialiased, Statistics statistics) {
+    long size = 4L * geometry.getWidth() * geometry.getHeight();
+    if ((size > maxBytes) || (size == 0L)) {
+      statistics.rasterized.increment();
+      return null;
+    }
+    Key key = new Key(geometry, text, antialiased);
+    CompletableFuture<BufferedImage> future;
+    boolean created = false;
+    synchronized (stamps) {
+      future = stamps.get(key);
+      if (future == null) {
+        future = new CompletableFuture<>();
+        created = true;
+        stamps.put(key, future);
+        bytes += size;
+        Iterator<Map.Entry<Key, CompletableFuture<BufferedImage>>> it = stamps.entrySet().iterator();
+        while ((bytes > maxBytes) && it.hasNext()) {
+          Key eldest = it.next().getKey();
+          if (eldest.equals(key) == false) {
+            bytes -= eldest.getBytes();
+            it.remove();
+          }
+        }
+      }
+    }
+    BufferedImage stamp;
+    if (created) {
+      statistics.rasterized.increment();
+      try {
+        stamp = createStamp(geometry, text, antialiased);
+      } catch (RuntimeException | Error ex) {
+        synchronized (stamps) {
+          if (stamps.remove(key, future)) {
+            bytes -= size;
+          }
+        }
+        future.completeExceptionally(ex);
+        throw ex;
+      }
+      future.complete(stamp);
+    } else {
+      try {
+        stamp = future.join();
+      } catch (CompletionException ex) {
+        if (ex.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) ex.getCause();
+        }
+        throw ex;
+      }
+    }
+    return stamp;
+  }
+
+  private static LabelRenderer createRenderer() {
+    LabelRenderer renderer = new LabelRenderer();
+    renderer.setBackgroundStamps(true);
+    return renderer;
+  }
+
+  private static BufferedImage createStamp(LabelGeometry geometry, String text, boolean antialiased) {
+    BufferedImage stamp = new BufferedImage(geometry.getWidth(), geometry.getHeight(), BufferedImage.TYPE_INT_ARGB_PRE);
+    Graphics2D g = stamp.createGraphics();
+    try {
+      LabelRenderer.initGraphics(g);
+      if (antialiased == false) {
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+      }
+      createRenderer().render(geometry, 0, 0, g, text);
+    } finally {
+      g.dispose();
+    }
+    return stamp;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("StampCache [maxBytes=");
+    sb.append(maxBytes);
+    synchronized (stamps) {
+      sb.append(", bytes=");
+      sb.append(bytes);
+      sb.append(", size=");
+      sb.append(stamps.size());
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+
+  /**
+   * Counts of a single render job. Labels are counted by the job once per
+   * placement, however many tiles or bands each one is drawn into, and
+   * stamps once per rasterization.
+   */
+  public static final class Statistics {
+
+    private final LongAdder labels = new LongAdder();
+    private final LongAdder rasterized = new LongAdder();
+
+    void addLabels(long count) {
+      labels.add(count);
+    }
+
+    public long getLabels() {
+      return labels.sum();
+    }
+
+    public long getRasterized() {
+      return rasterized.sum();
+    }
+
+    /**
+     * Returns how many labels were drawn per label rasterized, 1 meaning no
+     * label was reused.
+     */
+    public double getDedupRatio() {
+      long r = rasterized.sum();
+      return r > 0L ? (double) labels.sum() / (double) r : 1d;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("Statistics [labels=");
+      sb.append(labels.sum());
+      sb.append(", rasterized=");
+      sb.append(rasterized.sum());
+      sb.append(", dedupRatio=");
+      sb.append(getDedupRatio());
+      sb.append("]");
+      return sb.toString();
+    }
+
+  }
+
+  private static final class Key {
+
+    private final LabelGeometry geometry;
+    private final String text;
+    private final boolean antialiased;
+
+    private Key(LabelGeometry geometry, String text, boolean antialiased) {
+      this.geometry = Objects.requireNonNull(geometry);
+      this.text = text != null ? text : "";
+      this.antialiased = antialiased;
+    }
+
+    private long getBytes() {
+      return 4L * geometry.getWidth() * geometry.getHeight();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if ((o instanceof Key) == false) {
+        return false;
+      }
+      Key k = (Key) o;
+      return (geometry == k.geometry) && (antialiased == k.antialiased) && text.equals(k.text);
+    }
+
+    @Override
+    public int hashCode() {
+      return (31 * System.identityHashCode(geometry) + text.hashCode()) * 2 + (antialiased ? 1 : 0);
+    }
+
+  }
+
+}
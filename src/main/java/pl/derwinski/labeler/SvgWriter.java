@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.Color;
+import java.awt.Paint;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.PathIterator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes a single page as an SVG document, streamed element by element.
+ * Coordinates are given in dots, like in raster output, and the physical
+ * page size is set from the resolution. Each distinct glyph and label
+ * background is defined once as a symbol, and every label is made of uses
+ * of those symbols.
+ *
+ * @author Dominik Derwiński
+ */
+public final class SvgWriter implements LabelCanvas {
+
+  private static final String SVG = "http://www.w3.org/2000/svg";
+  private static final String XLINK = "http://www.w3.org/1999/xlink";
+  private static final FontRenderContext FONT_RENDER_CONTEXT = new FontRenderContext(null, true, false);
+
+  private final XMLStreamWriter xml;
+  private final HashMap<GlyphCache.Glyph, String> glyphs = new HashMap<>();
+  private final IdentityHashMap<LabelGeometry, String> backgrounds = new IdentityHashMap<>();
+  private final StringBuilder sb = new StringBuilder(256);
+  private int groups;
+  private int clips;
+  private boolean finished;
+
+  public SvgWriter(OutputStream output, int width, int height, double dpi) throws IOException {
+    if (dpi <= 0d) {
+      throw new IllegalArgumentException("DPI must be greater than 0.");
+    }
+    try {
+      xml = XMLOutputFactory.newInstance().createXMLStreamWriter(output, "UTF-8");
+      xml.writeStartDocument("UTF-8", "1.0");
+      xml.writeCharacters("\n");
+      xml.writeStartElement("svg");
+      xml.writeDefaultNamespace(SVG);
+      xml.writeNamespace("xlink", XLINK);
+      xml.writeAttribute("version", "1.1");
+      xml.writeAttribute("width", formatLength(width, dpi));
+      xml.writeAttribute("height", formatLength(height, dpi));
+      xml.writeAttribute("viewBox", String.format("0 0 %d %d", width, height));
+      xml.writeCharacters("\n");
+    } catch (XMLStreamException ex) {
+      throw new IOException("Failed to start SVG document.", ex);
+    }
+  }
+
+  private String formatLength(int dots, double dpi) {
+    sb.setLength(0);
+    Util.formatNumber(sb, (dots * Util.MM_PER_INCH) / dpi, 3);
+    sb.append("mm");
+    return sb.toString();
+  }
+
+  public void fillRect(Paint paint, double x, double y, double w, double h) {
+    try {
+      xml.writeEmptyElement("rect");
+      writeNumber("x", x);
+      writeNumber("y", y);
+      writeNumber("width", w);
+      writeNumber("height", h);
+      writeFill(paint);
+      xml.writeCharacters("\n");
+    } catch (XMLStreamException ex) {
+      throw new IllegalStateException("Failed to write rectangle.", ex);
+    }
+  }
+
+  /**
+   * Clips everything drawn until {@link #finish()} to the given rectangle.
+   */
+  public void clipRect(double x, double y, double w, double h) {
+    try {
+      String id = String.format("c%d", ++clips);
+      xml.writeStartElement("clipPath");
+      xml.writeAttribute("id", id);
+      xml.writeEmptyElement("rect");
+      writeNumber("x", x);
+      writeNumber("y", y);
+      writeNumber("width", w);
+      writeNumber("height", h);
+      xml.writeEndElement();
+      xml.writeCharacters("\n");
+      xml.writeStartElement("g");
+      xml.writeAttribute("clip-path", String.format("url(#%s)", id));
+      xml.writeCharacters("\n");
+      groups++;
+    } catch (XMLStreamException ex) {
+      throw new IllegalStateException("Failed to write clip.", ex);
+    }
+  }
+
+  public void fill(Shape shape, Paint paint) {
+    try {
+      xml.writeEmptyElement("path");
+      writePath(shape.getPathIterator(null));
+      writeFill(paint);
+      xml.writeCharacters("\n");
+    } catch (XMLStreamException ex) {
+      throw new IllegalStateException("Failed to write shape.", ex);
+    }
+  }
+
+  @Override
+  public FontRenderContext getFontRenderContext() {
+    return FONT_RENDER_CONTEXT;
+  }
+
+  @Override
+  public void fillBackground(LabelGeometry geometry, int x, int y, boolean rotated) {
+    try {
+      String id = backgrounds.get(geometry);
+      if (id == null) {
+        id = String.format("b%d", backgrounds.size() + 1);
+        writeSymbol(id, geometry.getOutline().getPathIterator(null));
+        backgrounds.put(geometry, id);
+      }
+      xml.writeEmptyElement("use");
+      xml.writeAttribute(XLINK, "href", "#" + id);
+      if (rotated) {
+        xml.writeAttribute("transform", String.format("matrix(-1 0 0 -1 %d %d)", x + geometry.getWidth(), y + geometry.getHeight()));
+      } else {
+        xml.writeAttribute("x", Integer.toString(x));
+        xml.writeAttribute("y", Integer.toString(y));
+      }
+      writeFill(geometry.getBackgroundPaint());
+      xml.writeCharacters("\n");
+    } catch (XMLStreamException ex) {
+      throw new IllegalStateException("Failed to write label background.", ex);
+    }
+  }
+
+  @Override
+  public void fillGlyph(LabelGeometry geometry, GlyphCache.Glyph glyph, AffineTransform transform) {
+    try {
+      String id = glyphs.get(glyph);
+      if (id == null) {
+        id = String.format("g%d", glyphs.size() + 1);
+        writeSymbol(id, glyph.getOutline().getPathIterator(null));
+        glyphs.put(glyph, id);
+      }
+      xml.writeEmptyElement("use");
+      xml.writeAttribute(XLINK, "href", "#" + id);
+      sb.setLength(0);
+      sb.append("matrix(");
+      Util.formatNumber(sb, transform.getScaleX(), 6);
+      sb.append(' ');
+      Util.formatNumber(sb, transform.getShearY(), 6);
+      sb.append(' ');
+      Util.formatNumber(sb, transform.getShearX(), 6);
+      sb.append(' ');
+      Util.formatNumber(sb, transform.getScaleY(), 6);
+      sb.append(' ');
+      Util.formatNumber(sb, transform.getTranslateX(), 3);
+      sb.append(' ');
+      Util.formatNumber(sb, transform.getTranslateY(), 3);
+      sb.append(')');
+      xml.writeAttribute("transform", sb.toString());
+      writeFill(geometry.getTextPaint());
+      xml.writeCharacters("\n");
+    } catch (XMLStreamException ex) {
+      throw new IllegalStateException("Failed to write glyph.", ex);
+    }
+  }
+
+  @Override
+  public void endText(LabelGeometry geometry) {
+
+  }
+
+  /**
+   * Closes all open elements and the document.
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    try {
+      for (; groups > 0; groups--) {
+        xml.writeEndElement();
+        xml.writeCharacters("\n");
+      }
+      xml.writeEndElement();
+      xml.writeCharacters("\n");
+      xml.writeEndDocument();
+      xml.flush();
+    } catch (XMLStreamException ex) {
+      throw new IOException("Failed to finish SVG document.", ex);
+    }
+  }
+
+  private void writeSymbol(String id, PathIterator it) throws XMLStreamException {
+    xml.writeStartElement("symbol");
+    xml.writeAttribute("id", id);
+    xml.writeAttribute("overflow", "visible");
+    xml.writeEmptyElement("path");
+    writePath(it);
+    xml.writeEndElement();
+    xml.writeCharacters("\n");
+  }
+
+  private void writePath(PathIterator it) throws XMLStreamException {
+    sb.setLength(0);
+    double[] c = new double[6];
+    while (it.isDone() == false) {
+      switch (it.currentSegment(c)) {
+        case PathIterator.SEG_MOVETO:
+          sb.append('M');
+          appendPoints(c, 1);
+          break;
+        case PathIterator.SEG_LINETO:
+          sb.append('L');
+          appendPoints(c, 1);
+          break;
+        case PathIterator.SEG_QUADTO:
+          sb.append('Q');
+          appendPoints(c, 2);
+          break;
+        case PathIterator.SEG_CUBICTO:
+          sb.append('C');
+          appendPoints(c, 3);
+          break;
+        default:
+          sb.append('Z');
+          break;
+      }
+      it.next();
+    }
+    xml.writeAttribute("d", sb.toString());
+    if (it.getWindingRule() == PathIterator.WIND_EVEN_ODD) {
+      xml.writeAttribute("fill-rule", "evenodd");
+    }
+  }
+
+  private void appendPoints(double[] c, int count) {
+    for (int i = 0; i < count * 2; i++) {
+      if (i > 0) {
+        sb.append(' ');
+      }
+      Util.formatNumber(sb, c[i], 3);
+    }
+  }
+
+  private void writeNumber(String name, double v) throws XMLStreamException {
+    sb.setLength(0);
+    Util.formatNumber(sb, v, 3);
+    xml.writeAttribute(name, sb.toString());
+  }
+
+  private void writeFill(Paint paint) throws XMLStreamException {
+    if ((paint instanceof Color) == false) {
+      throw new IllegalStateException("Only colour paints can be written to SVG.");
+    }
+    Color c = (Color) paint;
+    xml.writeAttribute("fill", String.format("#%06x", c.getRGB() & 0xffffff));
+    if (c.getAlpha() != 255) {
+      writeNumber("fill-opacity", c.getAlpha() / 255d);
+    }
+  }
+
+}
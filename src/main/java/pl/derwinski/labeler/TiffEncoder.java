@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes a run length encoded page as a PackBits compressed TIFF image,
+ * straight from its runs. Colour samples are stored in separate planes, so
+ * runs of equal pixels stay runs of equal bytes. The compressed size of every
+ * strip is computed from the runs first, so the image directory is written
+ * ahead of the data and the output is never seeked.
+ *
+ * @author Dominik Derwiński
+ */
+public final class TiffEncoder {
+
+  private static final int ROWS_PER_STRIP = 64;
+  private static final int BUFFER_SIZE = 65536;
+  private static final int SHORT = 3;
+  private static final int LONG = 4;
+  private static final int RATIONAL = 5;
+  private static final int[] SHIFTS = {16, 8, 0, 24};
+
+  private final DataOutputStream output;
+  private final double dpi;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private final byte[] literal = new byte[128];
+  private int buffered;
+  private int literalLength;
+  private long packed;
+  private boolean writing;
+  private byte[] bits;
+
+  public TiffEncoder(OutputStream output, double dpi) {
+    this.output = new DataOutputStream(output);
+    this.dpi = dpi;
+  }
+
+  /**
+   * Writes the page as a complete TIFF image. All rows of the page must be
+   * appended.
+   */
+  public void write(RunLengthPage page) throws IOException {
+    if (page.getRowsAppended() != page.getHeight()) {
+      throw new IllegalStateException(String.format("Expected %d rows, got %d.", page.getHeight(), page.getRowsAppended()));
+    }
+    PixelFormat format = page.getFormat();
+    int type = format.getType();
+    int planes = type == PixelFormat.ARGB ? 4 : type == PixelFormat.RGB ? 3 : 1;
+    int strips = (page.getHeight() + ROWS_PER_STRIP - 1) / ROWS_PER_STRIP;
+    long[] counts = new long[planes * strips];
+    for (int plane = 0; plane < planes; plane++) {
+      long size = 0;
+      for (int y = 0; y < page.getHeight(); y++) {
+        if ((y == 0) || (page.getRowOffset(y) != page.getRowOffset(y - 1))) {
+          size = packRow(page, y, plane, false);
+        }
+        counts[plane * strips + y / ROWS_PER_STRIP] += size;
+      }
+    }
+
+    int[] palette = format.getPalette();
+    int bitsPerSample = format.getPngBitDepth();
+    int entries = 13 + (palette != null ? 1 : 0) + (type == PixelFormat.ARGB ? 1 : 0);
+    long offset = 8 + 2 + 12 * entries + 4;
+    long bitsOffset = offset;
+    if (planes > 2) {
+      offset += 2 * planes;
+    }
+    long xResolutionOffset = offset;
+    long yResolutionOffset = offset + 8;
+    offset += 16;
+    long offsetsOffset = offset;
+    long countsOffset = offset;
+    if (counts.length > 1) {
+      countsOffset += 4L * counts.length;
+      offset += 8L * counts.length;
+    }
+    long paletteOffset = offset;
+    if (palette != null) {
+      offset += 6L << bitsPerSample;
+    }
+    long[] offsets = new long[counts.length];
+    for (int i = 0; i < counts.length; i++) {
+      offsets[i] = offset;
+      offset += counts[i];
+    }
+    if (offset > 0xffffffffL) {
+      throw new IllegalStateException("Image is too large for TIFF.");
+    }
+
+    output.writeByte('M');
+    output.writeByte('M');
+    output.writeShort(42);
+    output.writeInt(8);
+    output.writeShort(entries);
+    writeEntry(256, LONG, 1, page.getWidth());
+    writeEntry(257, LONG, 1, page.getHeight());
+    writeEntry(258, SHORT, planes, planes > 2 ? bitsOffset : bitsPerSample);
+    writeEntry(259, SHORT, 1, 32773);
+    writeEntry(262, SHORT, 1, palette != null ? 3 : planes > 1 ? 2 : 1);
+    writeEntry(273, LONG, counts.length, counts.length > 1 ? offsetsOffset : offsets[0]);
+    writeEntry(277, SHORT, 1, planes);
+    writeEntry(278, LONG, 1, ROWS_PER_STRIP);
+    writeEntry(279, LONG, counts.length, counts.length > 1 ? countsOffset : counts[0]);
+    writeEntry(282, RATIONAL, 1, xResolutionOffset);
+    writeEntry(283, RATIONAL, 1, yResolutionOffset);
+    writeEntry(284, SHORT, 1, planes > 1 ? 2 : 1);
+    writeEntry(296, SHORT, 1, 2);
+    if (palette != null) {
+      writeEntry(320, SHORT, 3 << bitsPerSample, paletteOffset);
+    }
+    if (type == PixelFormat.ARGB) {
+      writeEntry(338, SHORT, 1, 2);
+    }
+    output.writeInt(0);
+
+    if (planes > 2) {
+      for (int plane = 0; plane < planes; plane++) {
+        output.writeShort(bitsPerSample);
+      }
+    }
+    long resolution = Math.round(dpi * 100d);
+    for (int i = 0; i < 2; i++) {
+      output.writeInt((int) resolution);
+      output.writeInt(100);
+    }
+    if (counts.length > 1) {
+      for (long o : offsets) {
+        output.writeInt((int) o);
+      }
+      for (long c : counts) {
+        output.writeInt((int) c);
+      }
+    }
+    if (palette != null) {
+      for (int shift = 16; shift >= 0; shift -= 8) {
+        for (int i = 0; i < 1 << bitsPerSample; i++) {
+          output.writeShort(i < palette.length ? ((palette[i] >> shift) & 0xff) * 257 : 0);
+        }
+      }
+    }
+
+    for (int plane = 0; plane < planes; plane++) {
+      for (int strip = 0; strip < strips; strip++) {
+        long size = 0;
+        for (int y = strip * ROWS_PER_STRIP; y < Math.min(page.getHeight(), (strip + 1) * ROWS_PER_STRIP); y++) {
+          size += packRow(page, y, plane, true);
+        }
+        if (size != counts[plane * strips + strip]) {
+          throw new IllegalStateException("Strip size does not match its count.");
+        }
+      }
+    }
+    flushBuffer();
+    output.flush();
+  }
+
+  private void writeEntry(int tag, int type, int count, long value) throws IOException {
+    output.writeShort(tag);
+    output.writeShort(type);
+    output.writeInt(count);
+    if ((type == SHORT) && (count == 1)) {
+      output.writeShort((int) value);
+      output.writeShort(0);
+    } else {
+      output.writeInt((int) value);
+    }
+  }
+
+  /**
+   * Packs one row of one sample plane, writing it if requested, and returns
+   * the packed size. Rows are packed separately, as PackBits requires.
+   */
+  private long packRow(RunLengthPage page, int y, int plane, boolean write) throws IOException {
+    writing = write;
+    packed = 0;
+    literalLength = 0;
+    int[] runs = page.getRuns();
+    int p = page.getRowOffset(y);
+    int n = page.getRowRunCount(y);
+    if (page.getFormat().getType() == PixelFormat.BINARY) {
+      int length = (page.getWidth() + 7) / 8;
+      if ((bits == null) || (bits.length < length)) {
+        bits = new byte[length];
+      }
+      Arrays.fill(bits, 0, length, (byte) 0);
+      int x = 0;
+      for (int i = 0; i < n; i++) {
+        int end = x + runs[p + 2 * i];
+        if (runs[p + 2 * i + 1] != 0) {
+          for (; x < end; x++) {
+            bits[x >> 3] |= (byte) (0x80 >>> (x & 7));
+          }
+        }
+        x = end;
+      }
+      int value = bits[0] & 0xff;
+      int count = 1;
+      for (int i = 1; i < length; i++) {
+        int b = bits[i] & 0xff;
+        if (b == value) {
+          count++;
+        } else {
+          run(value, count);
+          value = b;
+          count = 1;
+        }
+      }
+      run(value, count);
+    } else {
+      int shift = page.getFormat().getBitsPerPixel() > 8 ? SHIFTS[plane] : 0;
+      int value = -1;
+      int count = 0;
+      for (int i = 0; i < n; i++) {
+        int v = (runs[p + 2 * i + 1] >>> shift) & 0xff;
+        if (v == value) {
+          count += runs[p + 2 * i];
+        } else {
+          if (count > 0) {
+            run(value, count);
+          }
+          value = v;
+          count = runs[p + 2 * i];
+        }
+      }
+      run(value, count);
+    }
+    flushLiteral();
+    return packed;
+  }
+
+  private void run(int value, int count) throws IOException {
+    while (count > 0) {
+      if (count == 1) {
+        literal[literalLength++] = (byte) value;
+        if (literalLength == literal.length) {
+          flushLiteral();
+        }
+        return;
+      }
+      flushLiteral();
+      int n = Math.min(128, count);
+      emit(1 - n);
+      emit(value);
+      count -= n;
+    }
+  }
+
+  private void flushLiteral() throws IOException {
+    if (literalLength > 0) {
+      emit(literalLength - 1);
+      for (int i = 0; i < literalLength; i++) {
+        emit(literal[i]);
+      }
+      literalLength = 0;
+    }
+  }
+
+  private void emit(int b) throws IOException {
+    packed++;
+    if (writing) {
+      buffer[buffered++] = (byte) b;
+      if (buffered == buffer.length) {
+        flushBuffer();
+      }
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    output.write(buffer, 0, buffered);
+    buffered = 0;
+  }
+
+}
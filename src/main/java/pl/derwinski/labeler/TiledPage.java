@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Objects;
+
+/**
+ * Page raster split into square tiles, of which only the tiles labels are
+ * drawn into are backed by their own storage. All other tiles share a single
+ * tile of the page colour. Tiles are in the drawing format of the pixel
+ * format, and are kept for reuse when the page is reset.
+ * <p>
+ * A page too large for the heap can keep its tiles in a
+ * {@link MappedTileStore} instead. Only a limited number of tiles is then
+ * resident on the heap to be drawn into, the least recently used one is moved
+ * to the store when another is needed.
+ *
+ * @author Dominik Derwiński
+ */
+public final class TiledPage implements Closeable {
+
+  public static final int TILE_SIZE = 256;
+
+  private final PixelFormat format;
+  private final int width;
+  private final int height;
+  private final int columns;
+  private final int rows;
+  private final BufferedImage blank;
+  private final BufferedImage[] tiles;
+  private final int[] pins;
+  private final long[] uses;
+  private final boolean[] stored;
+  private final ArrayDeque<BufferedImage> free = new ArrayDeque<>();
+  private final MappedTileStore store;
+  private final int maxResident;
+  private int resident;
+  private int allocated;
+  private long clock;
+  private Object blankStrip;
+  private BufferedImage scratch;
+
+  /**
+   * Returns the size of a tile in the drawing format of the given pixel
+   * format.
+   */
+  public static int getTileBytes(PixelFormat format) {
+    switch (format.getType()) {
+      case PixelFormat.GRAY:
+        return TILE_SIZE * TILE_SIZE;
+      case PixelFormat.BINARY:
+        return TILE_SIZE * TILE_SIZE / 8;
+      default:
+        return TILE_SIZE * TILE_SIZE * 4;
+    }
+  }
+
+  /**
+   * Creates a page with all its tiles on the heap.
+   */
+  public TiledPage(PixelFormat format, int width, int height, Color paint) {
+    this(format, width, height, paint, null, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates a page with its tiles in a memory-mapped temporary file, and at
+   * most the given number of them on the heap.
+   */
+  public TiledPage(PixelFormat format, int width, int height, Color paint, int maxResident) throws IOException {
+    this(format, width, height, paint, new MappedTileStore(getTileCount(width, height), getTileBytes(format)), maxResident);
+  }
+
+  private static int getTileCount(int width, int height) {
+    if ((width <= 0) || (height <= 0)) {
+      throw new IllegalArgumentException("Page size must be greater than 0.");
+    }
+    return ((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE);
+  }
+
+  private TiledPage(PixelFormat format, int width, int height, Color paint, MappedTileStore store, int maxResident) {
+    if ((width <= 0) || (height <= 0)) {
+      throw new IllegalArgumentException("Page size must be greater than 0.");
+    }
+    this.format = Objects.requireNonNull(format);
+    this.width = width;
+    this.height = height;
+    this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+    this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+    this.tiles = new BufferedImage[columns * rows];
+    this.pins = new int[tiles.length];
+    this.uses = new long[tiles.length];
+    this.stored = new boolean[tiles.length];
+    this.store = store;
+    this.maxResident = Math.max(1, maxResident);
+    this.blank = format.createDrawingImage(TILE_SIZE, TILE_SIZE);
+    Graphics2D g = blank.createGraphics();
+    try {
+      g.setPaint(paint);
+      g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+    } finally {
+      g.dispose();
+    }
+  }
+
+  public PixelFormat getFormat() {
+    return format;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getColumns() {
+    return columns;
+  }
+
+  public int getRows() {
+    return rows;
+  }
+
+  public boolean isMapped() {
+    return store != null;
+  }
+
+  /**
+   * Returns the number of tiles backed by their own storage.
+   */
+  public synchronized int getAllocatedTiles() {
+    return allocated;
+  }
+
+  /**
+   * Returns the tile at the given column and row to draw into, allocating it
+   * filled with the page colour if it is still blank. The tile origin is at
+   * column and row times {@link #TILE_SIZE}. The tile stays on the heap until
+   * released with {@link #releaseTile(int, int)}.
+   */
+  public synchronized BufferedImage getTile(int column, int row) {
+    int index = row * columns + column;
+    BufferedImage tile = tiles[index];
+    if (tile == null) {
+      tile = obtainImage();
+      if (stored[index]) {
+        if (tile.getRaster().getDataBuffer() instanceof DataBufferInt) {
+          store.read(index, (int[]) getData(tile));
+        } else {
+          store.read(index, (byte[]) getData(tile));
+        }
+      } else {
+        System.arraycopy(getData(blank), 0, getData(tile), 0, blank.getRaster().getDataBuffer().getSize());
+        allocated++;
+      }
+      tiles[index] = tile;
+      resident++;
+    }
+    pins[index]++;
+    uses[index] = ++clock;
+    return tile;
+  }
+
+  public synchronized void releaseTile(int column, int row) {
+    pins[row * columns + column]--;
+  }
+
+  private BufferedImage obtainImage() {
+    if (resident >= maxResident) {
+      int victim = -1;
+      for (int i = 0; i < tiles.length; i++) {
+        if ((tiles[i] != null) && (pins[i] == 0) && ((victim < 0) || (uses[i] < uses[victim]))) {
+          victim = i;
+        }
+      }
+      if (victim >= 0) {
+        BufferedImage image = tiles[victim];
+        if (image.getRaster().getDataBuffer() instanceof DataBufferInt) {
+          store.write(victim, (int[]) getData(image));
+        } else {
+          store.write(victim, (byte[]) getData(image));
+        }
+        stored[victim] = true;
+        tiles[victim] = null;
+        resident--;
+        return image;
+      }
+    }
+    return free.isEmpty() ? format.createDrawingImage(TILE_SIZE, TILE_SIZE) : free.pop();
+  }
+
+  public synchronized boolean isBlank(int column, int row) {
+    int index = row * columns + column;
+    return (tiles[index] == null) && (stored[index] == false);
+  }
+
+  /**
+   * Makes all tiles blank again, keeping their storage for reuse.
+   */
+  public synchronized void reset() {
+    for (int i = 0; i < tiles.length; i++) {
+      if (tiles[i] != null) {
+        free.push(tiles[i]);
+        tiles[i] = null;
+      }
+      pins[i] = 0;
+      stored[i] = false;
+    }
+    resident = 0;
+    allocated = 0;
+  }
+
+  /**
+   * Deletes the temporary file of a mapped page.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (store != null) {
+      store.close();
+    }
+  }
+
+  /**
+   * Appends all rows of the page to the encoder, one row of tiles at a time.
+   * Rows of blank tiles are written from a strip prepared once.
+   */
+  public synchronized void writeTo(PngEncoder encoder) throws IOException {
+    if (encoder.getWidth() != width) {
+      throw new IllegalArgumentException("Page width does not match the encoder.");
+    }
+    boolean ints = blank.getRaster().getDataBuffer() instanceof DataBufferInt;
+    int scanline = ints ? width : (int) (((long) width * format.getBitsPerPixel() + 7L) / 8L);
+    Object strip = ints ? new int[scanline * TILE_SIZE] : new byte[scanline * TILE_SIZE];
+    for (int row = 0; row < rows; row++) {
+      int count = Math.min(TILE_SIZE, height - row * TILE_SIZE);
+      Object source = strip;
+      if (isBlankRow(row)) {
+        if (blankStrip == null) {
+          blankStrip = ints ? new int[scanline * TILE_SIZE] : new byte[scanline * TILE_SIZE];
+          copyRow(-1, blankStrip, scanline, TILE_SIZE);
+        }
+        source = blankStrip;
+      } else {
+        copyRow(row, strip, scanline, count);
+      }
+      if (ints) {
+        encoder.writeRows((int[]) source, 0, scanline, count);
+      } else {
+        encoder.writeRows((byte[]) source, 0, scanline, count);
+      }
+    }
+  }
+
+  private boolean isBlankRow(int row) {
+    for (int column = 0; column < columns; column++) {
+      if ((tiles[row * columns + column] != null) || stored[row * columns + column]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Copies the given row of tiles, or of blank tiles if negative, into a
+   * strip of page rows.
+   */
+  private void copyRow(int row, Object strip, int scanline, int count) {
+    int bits = format.getBitsPerPixel();
+    for (int column = 0; column < columns; column++) {
+      int index = row * columns + column;
+      BufferedImage tile = row >= 0 ? tiles[index] : null;
+      if ((tile == null) && (row >= 0) && stored[index]) {
+        if (scratch == null) {
+          scratch = format.createDrawingImage(TILE_SIZE, TILE_SIZE);
+        }
+        tile = scratch;
+        if (tile.getRaster().getDataBuffer() instanceof DataBufferInt) {
+          store.read(index, (int[]) getData(tile));
+        } else {
+          store.read(index, (byte[]) getData(tile));
+        }
+      }
+      if (tile == null) {
+        tile = blank;
+      }
+      DataBuffer buffer = tile.getRaster().getDataBuffer();
+      int tileScanline = getScanline(tile.getSampleModel());
+      int left = column * TILE_SIZE;
+      int right = Math.min(width, left + TILE_SIZE);
+      if (buffer instanceof DataBufferInt) {
+        int[] data = ((DataBufferInt) buffer).getData();
+        for (int r = 0; r < count; r++) {
+          System.arraycopy(data, buffer.getOffset() + r * tileScanline, strip, r * scanline + left, right - left);
+        }
+      } else {
+        byte[] data = ((DataBufferByte) buffer).getData();
+        int start = (int) (((long) left * bits) / 8L);
+        int end = (int) (((long) right * bits + 7L) / 8L);
+        int padding = (int) (((long) right * bits) & 7L);
+        for (int r = 0; r < count; r++) {
+          System.arraycopy(data, buffer.getOffset() + r * tileScanline, strip, r * scanline + start, end - start);
+          if (padding != 0) {
+            ((byte[]) strip)[r * scanline + end - 1] &= (byte) (0xff << (8 - padding));
+          }
+        }
+      }
+    }
+  }
+
+  private static Object getData(BufferedImage image) {
+    DataBuffer buffer = image.getRaster().getDataBuffer();
+    if (buffer instanceof DataBufferInt) {
+      return ((DataBufferInt) buffer).getData();
+    } else {
+      return ((DataBufferByte) buffer).getData();
+    }
+  }
+
+  private static int getScanline(SampleModel sm) {
+    if (sm instanceof SinglePixelPackedSampleModel) {
+      return ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+    } else if (sm instanceof MultiPixelPackedSampleModel) {
+      return ((MultiPixelPackedSampleModel) sm).getScanlineStride();
+    } else {
+      return ((ComponentSampleModel) sm).getScanlineStride();
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("TiledPage [width=");
+    sb.append(width);
+    sb.append(", height=");
+    sb.append(height);
+    sb.append(", tiles=");
+    sb.append(tiles.length);
+    sb.append(", allocated=");
+    sb.append(allocated);
+    sb.append(", mapped=");
+    sb.append(store != null);
+    sb.append("]");
+    return sb.toString();
+  }
+
+}
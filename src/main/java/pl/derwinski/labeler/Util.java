@@ -35,6 +35,14 @@ public final class Util {
     return (mm * dpi) / MM_PER_INCH;
   }
 
+  /**
+   * Returns the number of whole dots covering the given length, ignoring
+   * rounding errors of lengths converted from dots.
+   */
+  public static int mmToPixels(double mm, double dpi) {
+    return (int) Math.ceil(mmToDots(mm, dpi) - 1e-6d);
+  }
+
   public static double dpiToDpmm(double dpi) {
     return dpi / MM_PER_INCH;
   }
@@ -55,6 +63,60 @@ public final class Util {
     }
   }
 
+  /**
+   * Appends a number in plain notation, rounded to the given number of
+   * decimals, without trailing zeros, as used in PDF and SVG output.
+   */
+  public static void formatNumber(StringBuilder sb, double v, int decimals) {
+    long unit = 1L;
+    for (int i = 0; i < decimals; i++) {
+      unit *= 10L;
+    }
+    long scaled = Math.round(v * unit);
+    if (scaled < 0L) {
+      sb.append('-');
+      scaled = -scaled;
+    }
+    sb.append(scaled / unit);
+    long fraction = scaled % unit;
+    if (fraction != 0L) {
+      sb.append('.');
+      while (fraction != 0L) {
+        unit /= 10L;
+        sb.append((char) ('0' + fraction / unit));
+        fraction %= unit;
+      }
+    }
+  }
+
+  /**
+   * Mixes a value into a 64-bit content hash.
+   */
+  public static long hash(long h, long value) {
+    h = (h ^ value) * 0x9E3779B97F4A7C15L;
+    return h ^ (h >>> 29);
+  }
+
+  /**
+   * Mixes the length and characters of a string into a 64-bit content hash.
+   */
+  public static long hash(long h, String s) {
+    h = hash(h, s.length());
+    for (int i = 0; i < s.length(); i++) {
+      h = hash(h, s.charAt(i));
+    }
+    return h;
+  }
+
+  /**
+   * Returns the message of a failure for reporting, or its description if the
+   * message is missing or blank.
+   */
+  public static String getMessage(Throwable t) {
+    String message = t.getMessage();
+    return (message == null) || message.isBlank() ? t.toString() : message;
+  }
+
   public static String getFileName(File f) {
     String name = f.getName();
     int i = name.lastIndexOf('.');
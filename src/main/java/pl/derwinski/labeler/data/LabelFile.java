@@ -96,6 +96,10 @@ public final class LabelFile implements Serializable, Iterable<LabelSet> {
     private double columnSpacing = 2d;
     @XStreamAsAttribute
     private double rowSpacing = 2d;
+    @XStreamAsAttribute
+    private boolean densePacking;
+    @XStreamAsAttribute
+    private boolean roll;
     private Margins pageMargins = new Margins(20d, 20d, 20d, 20d);
     private LabelPaint pagePaint = new ColorPaint(Color.WHITE);
     @XStreamImplicit
@@ -178,6 +182,32 @@ public final class LabelFile implements Serializable, Iterable<LabelSet> {
         this.rowSpacing = rowSpacing;
     }
 
+    public boolean isDensePacking() {
+        return densePacking;
+    }
+
+    /**
+     * Enables packing labels by their outlines instead of their bounds. Labels
+     * of all sets then share rows, curved labels may be turned by 180 degrees to
+     * interleave, and rows nest into the rows above.
+     */
+    public void setDensePacking(boolean densePacking) {
+        this.densePacking = densePacking;
+    }
+
+    public boolean isRoll() {
+        return roll;
+    }
+
+    /**
+     * Enables continuous roll media. The page height then grows with the
+     * labels, and the set page height is only the length of the segments paged
+     * outputs like PDF cut the roll into.
+     */
+    public void setRoll(boolean roll) {
+        this.roll = roll;
+    }
+
     public Margins getPageMargins() {
         return pageMargins;
     }
@@ -218,6 +248,10 @@ public final class LabelFile implements Serializable, Iterable<LabelSet> {
         sb.append(columnSpacing);
         sb.append(", rowSpacing=");
         sb.append(rowSpacing);
+        sb.append(", densePacking=");
+        sb.append(densePacking);
+        sb.append(", roll=");
+        sb.append(roll);
         sb.append(", pageMargins=");
         sb.append(pageMargins);
         sb.append(", pagePaint=");
@@ -17,6 +17,8 @@
 package pl.derwinski.labeler.gui;
 
 import java.awt.Component;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.util.LinkedHashSet;
 import java.util.Objects;
@@ -25,7 +27,13 @@ import java.util.function.Supplier;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.JTextField;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import pl.derwinski.labeler.PageRenderer;
+import pl.derwinski.labeler.RenderJob;
+import pl.derwinski.labeler.RenderProgress;
+import pl.derwinski.labeler.RenderScheduler;
 import pl.derwinski.labeler.Util;
 import pl.derwinski.labeler.data.LabelFile;
 import pl.derwinski.labeler.data.LabelSet;
@@ -38,6 +46,7 @@ public final class Editor {
 
     private final LinkedHashSet<EditorListener> listeners;
     private final NumberFormat format;
+    private final RenderScheduler scheduler;
 
     private LabelFile labelFile;
     private LabelSet labelSet;
@@ -45,10 +54,12 @@ public final class Editor {
 
     private File dataFile;
     private File imageFile;
+    private RenderJob<Integer> generateJob;
 
     public Editor() {
         this.listeners = new LinkedHashSet<>();
         this.format = new NumberFormat();
+        this.scheduler = new RenderScheduler(1);
         newLabelFile();
     }
 
@@ -151,19 +162,63 @@ public final class Editor {
         return false;
     }
 
+    /**
+     * Asks for the output file and starts generating it in the background,
+     * from a copy of the label file, with a progress dialog allowing to cancel.
+     * Returns true if generating was started.
+     */
     public boolean generateImageFile(Component parent) {
         Objects.requireNonNull(parent);
+        if ((generateJob != null) && (generateJob.isDone() == false)) {
+            if (JOptionPane.showConfirmDialog(parent, String.format("Still generating %s. Cancel it?", generateJob.getProgress().getName()), "Generate", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+                generateJob.cancel(false);
+            }
+            return false;
+        }
         JFileChooser fc = new JFileChooser();
         fc.setFileSelectionMode(JFileChooser.FILES_ONLY);
         fc.setMultiSelectionEnabled(false);
+        fc.addChoosableFileFilter(ExtensionFileFilter.PNG);
+        fc.addChoosableFileFilter(ExtensionFileFilter.PDF);
+        fc.addChoosableFileFilter(ExtensionFileFilter.SVG);
+        fc.addChoosableFileFilter(ExtensionFileFilter.TIF);
         fc.setFileFilter(ExtensionFileFilter.PNG);
         if (imageFile != null) {
+            if (imageFile.getName().toLowerCase().endsWith(".pdf")) {
+                fc.setFileFilter(ExtensionFileFilter.PDF);
+            } else if (imageFile.getName().toLowerCase().endsWith(".svg")) {
+                fc.setFileFilter(ExtensionFileFilter.SVG);
+            } else if (imageFile.getName().toLowerCase().endsWith(".tif")) {
+                fc.setFileFilter(ExtensionFileFilter.TIF);
+            }
             fc.setSelectedFile(imageFile);
         }
         if (fc.showSaveDialog(parent) == JFileChooser.APPROVE_OPTION) {
             try {
-                File f = new File(fc.getSelectedFile().getParent(), String.format("%s.png", Util.getFileName(fc.getSelectedFile())));
-                new PageRenderer().render(labelFile, f);
+                String extension = ExtensionFileFilter.PNG.getExtension();
+                if (fc.getFileFilter() instanceof ExtensionFileFilter) {
+                    extension = ((ExtensionFileFilter) fc.getFileFilter()).getExtension();
+                }
+                File f = new File(fc.getSelectedFile().getParent(), String.format("%s.%s", Util.getFileName(fc.getSelectedFile()), extension));
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                labelFile.save(data);
+                LabelFile copy = LabelFile.load(new ByteArrayInputStream(data.toByteArray()));
+                ProgressMonitor monitor = new ProgressMonitor(parent, String.format("Generating %s", f.getName()), "Laying out labels", 0, 1000);
+                generateJob = scheduler.submit(f.getName(), RenderScheduler.PRIORITY_NORMAL, progress -> {
+                    PageRenderer renderer = new PageRenderer();
+                    renderer.setProgress(progress);
+                    return renderer.render(copy, f);
+                }, (progress, event) -> SwingUtilities.invokeLater(() -> generateProgressed(parent, monitor, progress, event)));
+                RenderJob<Integer> job = generateJob;
+                Timer timer = new Timer(200, null);
+                timer.addActionListener(e -> {
+                    if (job.isDone()) {
+                        timer.stop();
+                    } else if (monitor.isCanceled()) {
+                        job.cancel(false);
+                    }
+                });
+                timer.start();
                 imageFile = f;
                 return true;
             } catch (Exception ex) {
@@ -173,6 +228,31 @@ public final class Editor {
         return false;
     }
 
+    private void generateProgressed(Component parent, ProgressMonitor monitor, RenderProgress progress, int event) {
+        switch (event) {
+            case RenderProgress.LAID_OUT:
+            case RenderProgress.PAGE_RENDERED:
+                monitor.setNote(String.format("%d labels, page %d of %d, %d kB", progress.getLabels(), Math.min(progress.getPagesRendered() + 1, progress.getPages()), progress.getPages(), progress.getBytes() / 1024L));
+                monitor.setProgress((int) (progress.getFraction() * 999d));
+                break;
+            case RenderProgress.COMPLETED:
+                monitor.close();
+                if (progress.getPages() > 1) {
+                    JOptionPane.showMessageDialog(parent, String.format("Generated %d pages.", progress.getPages()), "Generate", JOptionPane.INFORMATION_MESSAGE);
+                }
+                break;
+            case RenderProgress.CANCELLED:
+                monitor.close();
+                break;
+            case RenderProgress.FAILED:
+                monitor.close();
+                JOptionPane.showMessageDialog(parent, "Failed to generate image.", "Generate", JOptionPane.ERROR_MESSAGE);
+                break;
+            default:
+                break;
+        }
+    }
+
     public boolean newLabelSet() {
         labelSet = new LabelSet();
         labelSet.getLabels().add("Example");
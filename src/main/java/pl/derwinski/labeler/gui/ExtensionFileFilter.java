@@ -27,6 +27,9 @@ public final class ExtensionFileFilter extends FileFilter {
 
   public static final ExtensionFileFilter XML = new ExtensionFileFilter("xml");
   public static final ExtensionFileFilter PNG = new ExtensionFileFilter("png");
+  public static final ExtensionFileFilter PDF = new ExtensionFileFilter("pdf");
+  public static final ExtensionFileFilter SVG = new ExtensionFileFilter("svg");
+  public static final ExtensionFileFilter TIF = new ExtensionFileFilter("tif");
 
   private final String extenstion;
   private final String description;
@@ -36,6 +39,10 @@ public final class ExtensionFileFilter extends FileFilter {
     this.description = String.format("%s files", extension.toUpperCase());
   }
 
+  public String getExtension() {
+    return extenstion.substring(1);
+  }
+
   @Override
   public boolean accept(File f) {
     if (f.isDirectory()) {
@@ -59,6 +59,8 @@ public final class PageEditor extends javax.swing.JPanel implements EditorListen
     txtRightMargin.setText(format.doubleToString(labelFile.getPageMargins().getRight()));
     cmdPageColor.setBackground(((ColorPaint) labelFile.getPagePaint()).createColor());
     cmdPageColor.setForeground(((ColorPaint) labelFile.getPagePaint()).createReversedColor());
+    chkDensePacking.setSelected(labelFile.isDensePacking());
+    chkRoll.setSelected(labelFile.isRoll());
   }
 
   @Override
@@ -101,6 +103,8 @@ public final class PageEditor extends javax.swing.JPanel implements EditorListen
     txtRightMargin = new javax.swing.JTextField();
     lblPageColor = new javax.swing.JLabel();
     cmdPageColor = new javax.swing.JButton();
+    chkDensePacking = new javax.swing.JCheckBox();
+    chkRoll = new javax.swing.JCheckBox();
 
     setMinimumSize(new java.awt.Dimension(335, 386));
     java.awt.GridBagLayout layout = new java.awt.GridBagLayout();
@@ -325,6 +329,32 @@ public final class PageEditor extends javax.swing.JPanel implements EditorListen
     gridBagConstraints.anchor = java.awt.GridBagConstraints.WEST;
     gridBagConstraints.insets = new java.awt.Insets(2, 2, 2, 2);
     add(cmdPageColor, gridBagConstraints);
+
+    chkDensePacking.setText("Dense packing");
+    chkDensePacking.addActionListener(new java.awt.event.ActionListener() {
+      public void actionPerformed(java.awt.event.ActionEvent evt) {
+        chkDensePackingActionPerformed(evt);
+      }
+    });
+    gridBagConstraints = new java.awt.GridBagConstraints();
+    gridBagConstraints.gridx = 1;
+    gridBagConstraints.gridy = 10;
+    gridBagConstraints.anchor = java.awt.GridBagConstraints.WEST;
+    gridBagConstraints.insets = new java.awt.Insets(2, 2, 2, 2);
+    add(chkDensePacking, gridBagConstraints);
+
+    chkRoll.setText("Roll media");
+    chkRoll.addActionListener(new java.awt.event.ActionListener() {
+      public void actionPerformed(java.awt.event.ActionEvent evt) {
+        chkRollActionPerformed(evt);
+      }
+    });
+    gridBagConstraints = new java.awt.GridBagConstraints();
+    gridBagConstraints.gridx = 1;
+    gridBagConstraints.gridy = 11;
+    gridBagConstraints.anchor = java.awt.GridBagConstraints.WEST;
+    gridBagConstraints.insets = new java.awt.Insets(2, 2, 2, 2);
+    add(chkRoll, gridBagConstraints);
   }// </editor-fold>//GEN-END:initComponents
 
   private void cmdPageColorActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cmdPageColorActionPerformed
@@ -337,6 +367,16 @@ public final class PageEditor extends javax.swing.JPanel implements EditorListen
     }
   }//GEN-LAST:event_cmdPageColorActionPerformed
 
+  private void chkDensePackingActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_chkDensePackingActionPerformed
+    labelFile.setDensePacking(chkDensePacking.isSelected());
+    editor.triggerAlteredFile();
+  }//GEN-LAST:event_chkDensePackingActionPerformed
+
+  private void chkRollActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_chkRollActionPerformed
+    labelFile.setRoll(chkRoll.isSelected());
+    editor.triggerAlteredFile();
+  }//GEN-LAST:event_chkRollActionPerformed
+
   private void txtDPIFocusLost(java.awt.event.FocusEvent evt) {//GEN-FIRST:event_txtDPIFocusLost
     editor.setDouble(labelFile, txtDPI, labelFile::setDpi, labelFile::getDpi);
   }//GEN-LAST:event_txtDPIFocusLost
@@ -374,6 +414,8 @@ public final class PageEditor extends javax.swing.JPanel implements EditorListen
   }//GEN-LAST:event_txtRightMarginFocusLost
 
   // Variables declaration - do not modify//GEN-BEGIN:variables
+  private javax.swing.JCheckBox chkDensePacking;
+  private javax.swing.JCheckBox chkRoll;
   private javax.swing.JButton cmdPageColor;
   private javax.swing.JLabel lblBottomMargin;
   private javax.swing.JLabel lblColumnSpacing;
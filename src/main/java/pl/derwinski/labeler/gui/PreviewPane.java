@@ -21,7 +21,9 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Paint;
 import java.awt.Toolkit;
+import pl.derwinski.labeler.DisplayList;
 import pl.derwinski.labeler.LabelRenderer;
+import pl.derwinski.labeler.Util;
 import pl.derwinski.labeler.data.LabelFile;
 import pl.derwinski.labeler.data.LabelSet;
 
@@ -33,11 +35,12 @@ public final class PreviewPane extends javax.swing.JPanel implements EditorListe
 
   private static final long serialVersionUID = 1L;
 
-  private final LabelRenderer renderer = new LabelRenderer();
+  private static final double RECORDING_DPI = 600d;
 
   private int dpi = Toolkit.getDefaultToolkit().getScreenResolution();
   private boolean paint = false;
   private String label = null;
+  private DisplayList displayList;
   private Editor editor;
   private Paint pagePaint;
   private LabelSet labelSet;
@@ -71,30 +74,42 @@ public final class PreviewPane extends javax.swing.JPanel implements EditorListe
   @Override
   public void altered(LabelSet labelSet) {
     try {
-      renderer.configure(labelSet, dpi);
-      renderer.validate();
-      Dimension d = renderer.getBounds();
-      d.width = Math.min(d.width, 2048);
-      d.height = Math.min(d.height, 2048);
-      paintPane.setMaximumSize(d);
-      paintPane.setPreferredSize(d);
-      paintPane.setMinimumSize(d);
-      scrollPane.getViewport().revalidate();
-      paint = true;
       if ((labelSet.getLabels() != null) && (labelSet.getLabels().isEmpty() == false)) {
         label = labelSet.getLabels().get(0);
       } else {
         label = null;
       }
+      displayList = DisplayList.record(labelSet, label, RECORDING_DPI);
+      paint = true;
+      resize();
     } catch (Exception ex) {
       paint = false;
       label = null;
+      displayList = null;
       lblInfo.setText(ex.getMessage());
     } finally {
       paintPane.repaint();
     }
   }
 
+  /**
+   * Sizes the preview to the recorded label at the current resolution, the
+   * label is replayed at any resolution without fitting its text again.
+   */
+  private void resize() {
+    if (displayList == null) {
+      return;
+    }
+    Dimension d = new Dimension(Util.mmToPixels(displayList.getPageWidth(), dpi), Util.mmToPixels(displayList.getPageHeight(), dpi));
+    d.width = Math.min(d.width, 2048);
+    d.height = Math.min(d.height, 2048);
+    paintPane.setMaximumSize(d);
+    paintPane.setPreferredSize(d);
+    paintPane.setMinimumSize(d);
+    scrollPane.getViewport().revalidate();
+    paintPane.repaint();
+  }
+
   private void paintPreview(Graphics g) {
     Graphics2D g2 = (Graphics2D) g.create();
     try {
@@ -103,8 +118,8 @@ public final class PreviewPane extends javax.swing.JPanel implements EditorListe
         g2.setPaint(pagePaint);
         g2.fillRect(0, 0, paintPane.getWidth(), paintPane.getHeight());
       }
-      if (paint) {
-        renderer.render(0, 0, g2, label);
+      if (paint && (displayList != null)) {
+        displayList.replay(0, g2, dpi);
       }
     } finally {
       g2.dispose();
@@ -186,17 +201,17 @@ public final class PreviewPane extends javax.swing.JPanel implements EditorListe
 
   private void cmdScreenDPIActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cmdScreenDPIActionPerformed
     dpi = Toolkit.getDefaultToolkit().getScreenResolution();
-    altered(labelSet);
+    resize();
   }//GEN-LAST:event_cmdScreenDPIActionPerformed
 
   private void cmd300DPIActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cmd300DPIActionPerformed
     dpi = 300;
-    altered(labelSet);
+    resize();
   }//GEN-LAST:event_cmd300DPIActionPerformed
 
   private void cmd600DPIActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cmd600DPIActionPerformed
     dpi = 600;
-    altered(labelSet);
+    resize();
   }//GEN-LAST:event_cmd600DPIActionPerformed
 
   // Variables declaration - do not modify//GEN-BEGIN:variables
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author Dominik Derwiński
+ */
+public class BatchRendererTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  public void testExpandFile() throws IOException {
+    Path a = create("a.xml");
+    assertEquals(List.of(a.toFile()), BatchRenderer.expand(a.toString()));
+    assertThrows(IllegalArgumentException.class, () -> BatchRenderer.expand(directory.resolve("missing.xml").toString()));
+  }
+
+  @Test
+  public void testExpandGlob() throws IOException {
+    create("a.xml");
+    create("b.txt");
+    create("sub/c.xml");
+    assertEquals(List.of("a.xml"), names(BatchRenderer.expand(directory + "/*.xml")));
+    assertEquals(List.of("sub/c.xml"), names(BatchRenderer.expand(directory + "/sub/*.xml")));
+    assertThrows(IllegalArgumentException.class, () -> BatchRenderer.expand(directory + "/*.pdf"));
+  }
+
+  @Test
+  public void testExpandRecursiveGlob() throws IOException {
+    create("a.xml");
+    create("sub/b.xml");
+    create("sub/deep/c.xml");
+    create("sub/deep/d.txt");
+    assertEquals(List.of("a.xml", "sub/b.xml", "sub/deep/c.xml"), names(BatchRenderer.expand(directory + "/**/*.xml")));
+    assertEquals(List.of("sub/b.xml", "sub/deep/c.xml"), names(BatchRenderer.expand(directory + "/sub/**/*.xml")));
+    assertEquals(List.of("sub/b.xml"), names(BatchRenderer.expand(directory + "/**/sub/*.xml")));
+  }
+
+  private Path create(String name) throws IOException {
+    Path path = directory.resolve(name);
+    Files.createDirectories(path.getParent());
+    Files.createFile(path);
+    return path;
+  }
+
+  private List<String> names(List<File> files) {
+    ArrayList<String> names = new ArrayList<>();
+    for (File file : files) {
+      names.add(directory.relativize(file.toPath()).toString().replace(File.separatorChar, '/'));
+    }
+    return names;
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pl.derwinski.labeler.data.LabelFile;
+import pl.derwinski.labeler.data.LabelSet;
+
+/**
+ *
+ * @author Dominik Derwiński
+ */
+public class FolderWatcherTest {
+
+  @TempDir
+  Path directory;
+
+  @BeforeAll
+  public static void setUpClass() {
+    System.setProperty("java.awt.headless", "true");
+  }
+
+  @Test
+  public void testUnchangedPng() throws IOException {
+    assertUnchanged("png");
+  }
+
+  @Test
+  public void testUnchangedPdf() throws IOException {
+    assertUnchanged("pdf");
+  }
+
+  @Test
+  public void testUnchangedSvg() throws IOException {
+    assertUnchanged("svg");
+  }
+
+  @Test
+  public void testUnchangedTif() throws IOException {
+    assertUnchanged("tif");
+  }
+
+  /**
+   * Renders a file of several pages, saves it again without changes and
+   * checks nothing is rendered the second time.
+   */
+  private void assertUnchanged(String format) throws IOException {
+    Path input = Files.createDirectories(directory.resolve("input"));
+    File output = Files.createDirectories(directory.resolve("output")).toFile();
+    Path path = input.resolve("labels.xml");
+    LabelFile labelFile = createLabelFile();
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(log, true, StandardCharsets.UTF_8);
+    try (FolderWatcher watcher = new FolderWatcher(input, output, format, out, out)) {
+      labelFile.save(path.toFile());
+      watcher.render(path);
+      String first = log.toString(StandardCharsets.UTF_8);
+      assertTrue(first.contains(": 2 of 2 pages rendered"), first);
+      assertTrue(new File(output, String.format("labels.%s", format)).isFile());
+      log.reset();
+      labelFile.save(path.toFile());
+      watcher.render(path);
+      assertEquals(String.format("%s: unchanged", path), log.toString(StandardCharsets.UTF_8).trim());
+    }
+  }
+
+  private static LabelFile createLabelFile() {
+    LabelFile labelFile = new LabelFile();
+    labelFile.setDpi(100d);
+    labelFile.setPageWidth(120d);
+    labelFile.setPageHeight(90d);
+    LabelSet labelSet = new LabelSet();
+    ArrayList<String> labels = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      labels.add(String.format("Label %d", i + 1));
+    }
+    labelSet.setLabels(labels);
+    ArrayList<LabelSet> labelSets = new ArrayList<>();
+    labelSets.add(labelSet);
+    labelFile.setLabelSets(labelSets);
+    return labelFile;
+  }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
+import java.lang.management.ManagementFactory;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import pl.derwinski.labeler.data.LabelSet;
+
+/**
+ *
+ * @author Dominik Derwiński
+ */
+public class LabelRendererTest {
+
+  private static final String SHORT_TEXT = "Ace";
+  private static final String LONG_TEXT = "Quartermaster";
+  private static final int WARMUP = 20000;
+  private static final int LABELS = 10000;
+  private static final long MAX_BYTES_PER_LABEL = 128L;
+
+  @BeforeAll
+  public static void setUpClass() {
+    System.setProperty("java.awt.headless", "true");
+  }
+
+  @Test
+  public void testConeAllocation() {
+    LabelSet set = new LabelSet();
+    LabelGeometry geometry = LabelGeometry.compile(set, 300d);
+    assertEquals(LabelGeometry.CONE, geometry.getType());
+    assertAllocation(geometry);
+  }
+
+  @Test
+  public void testCylinderAllocation() {
+    LabelSet set = new LabelSet();
+    set.setBottomDiameter(set.getTopDiameter());
+    LabelGeometry geometry = LabelGeometry.compile(set, 300d);
+    assertEquals(LabelGeometry.CYLINDER, geometry.getType());
+    assertAllocation(geometry);
+  }
+
+  @Test
+  public void testQuadrangleAllocation() {
+    LabelSet set = new LabelSet();
+    set.setCoveredAngle(0d);
+    LabelGeometry geometry = LabelGeometry.compile(set, 300d);
+    assertEquals(LabelGeometry.QUADRANGLE, geometry.getType());
+    assertAllocation(geometry);
+  }
+
+  private static void assertAllocation(LabelGeometry geometry) {
+    assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(mx.isThreadAllocatedMemorySupported() && mx.isThreadAllocatedMemoryEnabled());
+
+    LabelRenderer renderer = new LabelRenderer();
+    CountingCanvas canvas = new CountingCanvas();
+    for (int i = 0; i < WARMUP; i++) {
+      renderer.render(geometry, 0, 0, (i & 1) == 1, canvas, SHORT_TEXT);
+      renderer.render(geometry, 0, 0, (i & 1) == 1, canvas, LONG_TEXT);
+    }
+
+    long shortBytes = measure(mx, renderer, geometry, canvas, SHORT_TEXT);
+    long longBytes = measure(mx, renderer, geometry, canvas, LONG_TEXT);
+
+    assertTrue(shortBytes <= MAX_BYTES_PER_LABEL * LABELS, String.format("Rendering allocated %d bytes per label.", shortBytes / LABELS));
+    assertTrue(longBytes <= MAX_BYTES_PER_LABEL * LABELS, String.format("Rendering allocated %d bytes per label.", longBytes / LABELS));
+    long glyphs = (long) LABELS * (LONG_TEXT.length() - SHORT_TEXT.length());
+    assertTrue(longBytes - shortBytes < glyphs, String.format("Rendering allocated %d bytes per glyph.", (longBytes - shortBytes) / glyphs));
+  }
+
+  private static long measure(com.sun.management.ThreadMXBean mx, LabelRenderer renderer, LabelGeometry geometry, CountingCanvas canvas, String text) {
+    canvas.glyphs = 0L;
+    long thread = Thread.currentThread().threadId();
+    long before = mx.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < LABELS; i++) {
+      renderer.render(geometry, 0, 0, (i & 1) == 1, canvas, text);
+    }
+    long allocated = mx.getThreadAllocatedBytes(thread) - before;
+    assertEquals((long) LABELS * text.length(), canvas.glyphs);
+    return allocated;
+  }
+
+  private static final class CountingCanvas implements LabelCanvas {
+
+    private final FontRenderContext frc = new FontRenderContext(null, true, true);
+
+    private long glyphs;
+    private AffineTransform transform;
+
+    @Override
+    public FontRenderContext getFontRenderContext() {
+      return frc;
+    }
+
+    @Override
+    public void fillBackground(LabelGeometry geometry, int x, int y, boolean rotated) {
+    }
+
+    @Override
+    public void fillGlyph(LabelGeometry geometry, GlyphCache.Glyph glyph, AffineTransform transform) {
+      glyphs++;
+      this.transform = transform;
+    }
+
+    @Override
+    public void endText(LabelGeometry geometry) {
+    }
+
+  }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pl.derwinski.labeler.data.ColorPaint;
+import pl.derwinski.labeler.data.LabelFile;
+import pl.derwinski.labeler.data.LabelSet;
+import pl.derwinski.labeler.data.Margins;
+
+/**
+ *
+ * @author Dominik Derwiński
+ */
+public class PageRendererTest {
+
+  private static final String[] EXTENSIONS = {"png", "tif"};
+
+  @TempDir
+  Path directory;
+
+  @BeforeAll
+  public static void setUpClass() {
+    System.setProperty("java.awt.headless", "true");
+  }
+
+  @Test
+  public void testArgbFiles() throws IOException {
+    assertFiles(PixelFormat.ARGB);
+  }
+
+  @Test
+  public void testRgbFiles() throws IOException {
+    assertFiles(PixelFormat.RGB);
+  }
+
+  @Test
+  public void testGrayFiles() throws IOException {
+    assertFiles(PixelFormat.GRAY);
+  }
+
+  @Test
+  public void testIndexedFiles() throws IOException {
+    assertFiles(PixelFormat.INDEXED);
+  }
+
+  @Test
+  public void testBinaryFiles() throws IOException {
+    assertFiles(PixelFormat.BINARY);
+  }
+
+  @Test
+  public void testParallelArgb() throws IOException {
+    assertParallel(PixelFormat.ARGB);
+  }
+
+  @Test
+  public void testParallelIndexed() throws IOException {
+    assertParallel(PixelFormat.INDEXED);
+  }
+
+  @Test
+  public void testParallelBinary() throws IOException {
+    assertParallel(PixelFormat.BINARY);
+  }
+
+  /**
+   * Renders densely placed labels with and without a pool, into page images
+   * and into tiled PNG pages, and checks the pixels are the same.
+   */
+  private void assertParallel(int pixelFormat) throws IOException {
+    LabelFile labelFile = createDenseLabelFile();
+    PageRenderer renderer = new PageRenderer();
+    renderer.setPixelFormat(pixelFormat);
+    renderer.setStampCache(null);
+    ArrayList<int[]> serial = renderPages(renderer, labelFile);
+    ArrayList<int[]> serialTiled = renderTiledPages(renderer, labelFile);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      renderer.setPool(pool);
+      assertSamePages(serial, renderPages(renderer, labelFile));
+      assertSamePages(serialTiled, renderTiledPages(renderer, labelFile));
+    } finally {
+      pool.shutdown();
+    }
+    assertSamePages(serial, serialTiled);
+  }
+
+  private static ArrayList<int[]> renderPages(PageRenderer renderer, LabelFile labelFile) throws IOException {
+    ArrayList<int[]> pages = new ArrayList<>();
+    renderer.render(labelFile, (pageIndex, page, dpi) -> pages.add(page.getRGB(0, 0, page.getWidth(), page.getHeight(), null, 0, page.getWidth())));
+    return pages;
+  }
+
+  private static ArrayList<int[]> renderTiledPages(PageRenderer renderer, LabelFile labelFile) throws IOException {
+    ArrayList<ByteArrayOutputStream> data = new ArrayList<>();
+    renderer.renderTiled(labelFile, pageIndex -> {
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      data.add(os);
+      return os;
+    });
+    ArrayList<int[]> pages = new ArrayList<>();
+    for (ByteArrayOutputStream os : data) {
+      BufferedImage image = ImageIO.read(new ByteArrayInputStream(os.toByteArray()));
+      pages.add(image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()));
+    }
+    return pages;
+  }
+
+  private static void assertSamePages(ArrayList<int[]> expected, ArrayList<int[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int p = 0; p < expected.size(); p++) {
+      assertArrayEquals(expected.get(p), actual.get(p), String.format("Page %d differs.", p + 1));
+    }
+  }
+
+  /**
+   * Renders the file as PNG and TIFF files, and as run length encoded PNG
+   * files, and checks every pixel of every page against the raster passed to
+   * a page sink.
+   */
+  private void assertFiles(int pixelFormat) throws IOException {
+    LabelFile labelFile = createLabelFile();
+    PageRenderer renderer = new PageRenderer();
+    renderer.setPixelFormat(pixelFormat);
+    ArrayList<int[]> expected = new ArrayList<>();
+    int pages = renderer.render(labelFile, (pageIndex, page, dpi) -> {
+      assertEquals(expected.size(), pageIndex);
+      assertEquals(pixelFormat, PixelFormat.of(page).getType());
+      expected.add(page.getRGB(0, 0, page.getWidth(), page.getHeight(), null, 0, page.getWidth()));
+    });
+    assertTrue(pages > 1);
+    for (String extension : EXTENSIONS) {
+      File file = directory.resolve(String.format("labels-%d.%s", pixelFormat, extension)).toFile();
+      assertEquals(pages, renderer.render(labelFile, file));
+      assertPages(expected, new FilePageSink(file, extension));
+    }
+    FilePageSink runLength = new FilePageSink(directory.resolve(String.format("runs-%d.png", pixelFormat)).toFile());
+    assertEquals(pages, renderer.renderRunLength(labelFile, runLength));
+    assertPages(expected, runLength);
+  }
+
+  private static void assertPages(ArrayList<int[]> expected, FilePageSink files) throws IOException {
+    for (int p = 0; p < expected.size(); p++) {
+      BufferedImage image = ImageIO.read(files.getPageFile(p));
+      assertNotNull(image, files.getPageFile(p).getName());
+      int[] actual = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+      assertEquals(expected.get(p).length, actual.length, files.getPageFile(p).getName());
+      for (int i = 0; i < actual.length; i++) {
+        if (expected.get(p)[i] != actual[i]) {
+          throw new AssertionError(String.format("%s differs at %d,%d: expected %08x but was %08x.", files.getPageFile(p).getName(),
+                  i % image.getWidth(), i / image.getWidth(), expected.get(p)[i], actual[i]));
+        }
+      }
+    }
+  }
+
+  private static LabelFile createLabelFile() {
+    LabelFile labelFile = new LabelFile();
+    labelFile.setDpi(100d);
+    labelFile.setPageWidth(120d);
+    labelFile.setPageHeight(90d);
+    ArrayList<LabelSet> labelSets = new ArrayList<>();
+    LabelSet dark = new LabelSet();
+    dark.setBackgroundPaint(new ColorPaint(new Color(40, 60, 140)));
+    dark.setTextPaint(new ColorPaint(new Color(250, 220, 60)));
+    dark.setLabels(createLabels("Ace", 6));
+    labelSets.add(dark);
+    LabelSet light = new LabelSet();
+    light.setBackgroundPaint(new ColorPaint(new Color(200, 230, 200)));
+    light.setTextPaint(new ColorPaint(new Color(160, 20, 20)));
+    light.setLabels(createLabels("Quartermaster", 6));
+    labelSets.add(light);
+    labelFile.setLabelSets(labelSets);
+    return labelFile;
+  }
+
+  /**
+   * Returns a file of small labels placed without spacing, many per page, so
+   * neighbouring labels share bytes of packed pixel rows.
+   */
+  private static LabelFile createDenseLabelFile() {
+    LabelFile labelFile = new LabelFile();
+    labelFile.setDpi(150d);
+    labelFile.setPageWidth(120d);
+    labelFile.setPageHeight(90d);
+    labelFile.setColumnSpacing(0d);
+    labelFile.setRowSpacing(0d);
+    labelFile.setPageMargins(new Margins(3d, 3d, 3d, 3d));
+    LabelSet labelSet = new LabelSet();
+    labelSet.setTopDiameter(7d);
+    labelSet.setBottomDiameter(9d);
+    labelSet.setHeight(6d);
+    labelSet.setLabels(createLabels("Ace", 400));
+    ArrayList<LabelSet> labelSets = new ArrayList<>();
+    labelSets.add(labelSet);
+    labelFile.setLabelSets(labelSets);
+    return labelFile;
+  }
+
+  private static ArrayList<String> createLabels(String prefix, int count) {
+    ArrayList<String> labels = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      labels.add(String.format("%s %d", prefix, i + 1));
+    }
+    return labels;
+  }
+
+}
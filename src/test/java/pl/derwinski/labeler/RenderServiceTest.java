@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2018 Dominik Derwiński
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pl.derwinski.labeler;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import pl.derwinski.labeler.data.LabelFile;
+import pl.derwinski.labeler.data.LabelSet;
+
+/**
+ *
+ * @author Dominik Derwiński
+ */
+public class RenderServiceTest {
+
+  private static final int MAX_ATTEMPTS = 64;
+
+  private final HttpClient client = HttpClient.newHttpClient();
+
+  @BeforeAll
+  public static void setUpClass() {
+    System.setProperty("java.awt.headless", "true");
+  }
+
+  @Test
+  public void testRender() throws Exception {
+    try (RenderService service = start(1, 4)) {
+      byte[] body = save(createLabelFile(100d, 8));
+      HttpResponse<byte[]> response = post(service, "", body);
+      assertEquals(200, response.statusCode());
+      assertEquals("image/png", response.headers().firstValue("Content-Type").orElse(null));
+      assertEquals("2", response.headers().firstValue("X-Page-Count").orElse(null));
+      BufferedImage image = ImageIO.read(new ByteArrayInputStream(response.body()));
+      assertNotNull(image);
+      assertEquals(Util.mmToPixels(120d, 100d), image.getWidth());
+      assertEquals(200, post(service, "?page=2", body).statusCode());
+      assertEquals(404, post(service, "?page=3", body).statusCode());
+      response = post(service, "?format=pdf", body);
+      assertEquals(200, response.statusCode());
+      assertEquals("application/pdf", response.headers().firstValue("Content-Type").orElse(null));
+      assertEquals(400, post(service, "?format=gif", body).statusCode());
+      assertEquals(400, post(service, "", new byte[]{'<'}).statusCode());
+    }
+  }
+
+  @Test
+  public void testOversizedPage() throws Exception {
+    try (RenderService service = start(1, 4)) {
+      HttpResponse<byte[]> response = post(service, "", save(createLabelFile(100000d, 1)));
+      assertEquals(422, response.statusCode());
+      assertEquals(0L, service.getRendered());
+    }
+  }
+
+  @Test
+  public void testQueueFull() throws Exception {
+    try (RenderService service = start(1, 0)) {
+      byte[] body = save(createLabelFile(300d, 64));
+      ArrayList<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>();
+      for (int i = 0; (i < MAX_ATTEMPTS) && (service.getRejected() == 0L); i++) {
+        responses.add(client.sendAsync(request(service, "", body), HttpResponse.BodyHandlers.ofByteArray()));
+        Thread.sleep(5L);
+      }
+      int ok = 0;
+      int rejected = 0;
+      for (CompletableFuture<HttpResponse<byte[]>> future : responses) {
+        HttpResponse<byte[]> response = future.get(60L, TimeUnit.SECONDS);
+        if (response.statusCode() == 429) {
+          assertEquals("1", response.headers().firstValue("Retry-After").orElse(null));
+          rejected++;
+        } else {
+          assertEquals(200, response.statusCode());
+          ok++;
+        }
+      }
+      assertTrue(ok > 0);
+      assertTrue(rejected > 0);
+      assertEquals(rejected, service.getRejected());
+    }
+  }
+
+  @Test
+  public void testCloseAnswersQueued() throws Exception {
+    RenderService service = start(1, 4);
+    LabelFile slow = createLabelFile(600d, 100);
+    slow.setPageWidth(210d);
+    slow.setPageHeight(297d);
+    CompletableFuture<HttpResponse<byte[]>> running = client.sendAsync(request(service, "", save(slow)), HttpResponse.BodyHandlers.ofByteArray());
+    Thread.sleep(500L);
+    CompletableFuture<HttpResponse<byte[]>> queued = client.sendAsync(request(service, "", save(createLabelFile(100d, 1))), HttpResponse.BodyHandlers.ofByteArray());
+    for (int i = 0; (i < MAX_ATTEMPTS) && (service.getQueued() == 0); i++) {
+      Thread.sleep(20L);
+    }
+    assertEquals(1, service.getQueued());
+    assertFalse(running.isDone());
+    service.close();
+    HttpResponse<byte[]> response = queued.get(10L, TimeUnit.SECONDS);
+    assertEquals(503, response.statusCode());
+    assertEquals("1", response.headers().firstValue("Retry-After").orElse(null));
+    running.handle((r, ex) -> r).get(10L, TimeUnit.SECONDS);
+  }
+
+  private static RenderService start(int threads, int queueSize) throws IOException {
+    RenderService service = new RenderService(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), threads, queueSize);
+    service.start();
+    return service;
+  }
+
+  private HttpResponse<byte[]> post(RenderService service, String query, byte[] body) throws IOException, InterruptedException {
+    return client.send(request(service, query, body), HttpResponse.BodyHandlers.ofByteArray());
+  }
+
+  private static HttpRequest request(RenderService service, String query, byte[] body) {
+    return HttpRequest.newBuilder(URI.create(String.format("http://127.0.0.1:%d/render%s", service.getPort(), query)))
+            .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+            .build();
+  }
+
+  private static byte[] save(LabelFile labelFile) throws IOException {
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    labelFile.save(data);
+    return data.toByteArray();
+  }
+
+  private static LabelFile createLabelFile(double dpi, int count) {
+    LabelFile labelFile = new LabelFile();
+    labelFile.setDpi(dpi);
+    labelFile.setPageWidth(120d);
+    labelFile.setPageHeight(90d);
+    LabelSet labelSet = new LabelSet();
+    ArrayList<String> labels = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      labels.add(String.format("Label %d", i + 1));
+    }
+    labelSet.setLabels(labels);
+    ArrayList<LabelSet> labelSets = new ArrayList<>();
+    labelSets.add(labelSet);
+    labelFile.setLabelSets(labelSets);
+    return labelFile;
+  }
+
+}